@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sync;
+
+import org.opendatakit.sync.aggregate.AggregateSynchronizer;
+
+/**
+ * Chooses the fetchLimit (page size) for row requests from the observed cost
+ * of earlier pages.
+ * <p>
+ * Each page should take a fraction of the per-request timeout to download and
+ * decode, and a comparable time to apply to the database (so that the
+ * prefetched download of the next page overlaps the apply of this one). Pages
+ * grow by at most a factor of two per request on fast links and shrink
+ * immediately on slow ones. A request that fails outright halves the size.
+ * <p>
+ * Timings are recorded from both the prefetch and the sync threads, so all
+ * methods are synchronized.
+ */
+public final class AdaptivePageSizer {
+
+  public static final int MIN_PAGE_SIZE = 25;
+  public static final int MAX_PAGE_SIZE = 2000;
+  public static final int INITIAL_PAGE_SIZE = 250;
+
+  /** time budget for one page; a quarter of the request timeout */
+  private static final double TARGET_PAGE_MS = AggregateSynchronizer.HTTP_REQUEST_TIMEOUT_MS / 4.0;
+
+  /** weight given to the newest measurement */
+  private static final double SMOOTHING = 0.5;
+
+  private int pageSize;
+  private double fetchMsPerRow = 0.0;
+  private double applyMsPerRow = 0.0;
+
+  public AdaptivePageSizer() {
+    this(INITIAL_PAGE_SIZE);
+  }
+
+  public AdaptivePageSizer(int initialPageSize) {
+    this.pageSize = clamp(initialPageSize);
+  }
+
+  private static int clamp(int size) {
+    if (size < MIN_PAGE_SIZE) {
+      return MIN_PAGE_SIZE;
+    }
+    if (size > MAX_PAGE_SIZE) {
+      return MAX_PAGE_SIZE;
+    }
+    return size;
+  }
+
+  private static double smooth(double prior, double sample) {
+    return (prior == 0.0) ? sample : (SMOOTHING * sample + (1.0 - SMOOTHING) * prior);
+  }
+
+  /**
+   * @return the fetchLimit to use for the next request.
+   */
+  public synchronized int getPageSize() {
+    return pageSize;
+  }
+
+  /**
+   * Record the time taken to download and decode a page.
+   *
+   * @param requestedRows
+   *          the fetchLimit used for the request
+   * @param returnedRows
+   *          the number of rows in the response
+   * @param elapsedMs
+   */
+  public synchronized void recordFetch(int requestedRows, int returnedRows, long elapsedMs) {
+    if (returnedRows <= 0) {
+      return;
+    }
+    fetchMsPerRow = smooth(fetchMsPerRow, ((double) elapsedMs) / returnedRows);
+    // a short page tells us nothing about whether a bigger one would fit.
+    resize(returnedRows >= requestedRows);
+  }
+
+  /**
+   * Record the time taken to apply a page to the local database.
+   *
+   * @param rows
+   * @param elapsedMs
+   */
+  public synchronized void recordApply(int rows, long elapsedMs) {
+    if (rows <= 0) {
+      return;
+    }
+    applyMsPerRow = smooth(applyMsPerRow, ((double) elapsedMs) / rows);
+    resize(false);
+  }
+
+  /**
+   * Record a request that failed (e.g., timed out). Halve the page size.
+   */
+  public synchronized void recordFailure() {
+    pageSize = clamp(pageSize / 2);
+  }
+
+  private void resize(boolean mayGrow) {
+    double msPerRow = Math.max(fetchMsPerRow, applyMsPerRow);
+    if (msPerRow <= 0.0) {
+      return;
+    }
+    int desired = (int) (TARGET_PAGE_MS / msPerRow);
+    if (desired > pageSize) {
+      if (!mayGrow) {
+        return;
+      }
+      desired = Math.min(desired, 2 * pageSize);
+    }
+    pageSize = clamp(desired);
+  }
+}
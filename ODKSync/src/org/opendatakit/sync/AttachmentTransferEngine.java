@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sync;
+
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Transfers the file attachments of several rows at once on a bounded pool of
+ * worker threads. Attachment-heavy tables are dominated by the latency of each
+ * request rather than by bandwidth, so overlapping the transfers of different
+ * rows shortens the attachment phase.
+ * <p>
+ * The attachments of a single row are still transferred one at a time, by the
+ * Synchronizer's putFileAttachments() and getFileAttachments(). A table's
+ * attachments all live on the one server being synchronized, so the number of
+ * worker threads also bounds the requests made against that server.
+ * <p>
+ * Completions are reported by {@link #take()} in the order the rows were
+ * submitted, on the calling (sync) thread, so the caller updates the local
+ * database and the progress notification as before. Worker threads never touch
+ * the local database: the md5 hashes recorded for a row's attachments are read
+ * by {@link #submit} and those noted by its transfers are recorded by
+ * {@link #take()}, both on the sync thread (see {@link FileSyncETags}).
+ */
+final class AttachmentTransferEngine {
+
+  /** default number of rows whose attachments are transferred at once */
+  static final int DEFAULT_CONCURRENT_TRANSFERS = 4;
+
+  /**
+   * The outcome of transferring the attachments of a row.
+   */
+  static final class Completion {
+    private final SyncRowPending row;
+    private final boolean success;
+
+    private Completion(SyncRowPending row, boolean success) {
+      this.row = row;
+      this.success = success;
+    }
+
+    SyncRowPending getRow() {
+      return row;
+    }
+
+    /**
+     * @return true if all of the row's attachments were put and gotten.
+     */
+    boolean isSuccess() {
+      return success;
+    }
+  }
+
+  private final class RowTransfer implements Callable<Boolean> {
+    private final String instanceFileUri;
+    private final String tableId;
+    private final SyncRowPending row;
+    private final FileSyncETags eTags;
+    private final boolean deferInstanceAttachments;
+
+    RowTransfer(String instanceFileUri, String tableId, SyncRowPending row,
+        FileSyncETags eTags, boolean deferInstanceAttachments) {
+      this.instanceFileUri = instanceFileUri;
+      this.tableId = tableId;
+      this.row = row;
+      this.eTags = eTags;
+      this.deferInstanceAttachments = deferInstanceAttachments;
+    }
+
+    @Override
+    public Boolean call() throws Exception {
+      boolean outcome = true;
+      if (!row.onlyGetFiles()) {
+        outcome = synchronizer.putFileAttachments(instanceFileUri, tableId, row, eTags,
+            deferInstanceAttachments);
+      }
+      if (outcome) {
+        outcome = synchronizer.getFileAttachments(instanceFileUri, tableId, row, eTags,
+            deferInstanceAttachments);
+      }
+      return outcome;
+    }
+  }
+
+  private final Synchronizer synchronizer;
+  private final ExecutorService executor;
+
+  // submitted rows and their transfers, in submission order
+  private final LinkedList<RowTransfer> pendingRows = new LinkedList<RowTransfer>();
+  private final LinkedList<Future<Boolean>> pendingTransfers = new LinkedList<Future<Boolean>>();
+
+  /**
+   * @param synchronizer
+   *          must allow its file attachment methods to be called from several
+   *          threads at once.
+   * @param concurrentTransfers
+   *          the number of worker threads
+   * @param name
+   *          used to name the worker threads
+   */
+  AttachmentTransferEngine(Synchronizer synchronizer, int concurrentTransfers,
+      final String name) {
+    this.synchronizer = synchronizer;
+    this.executor = Executors.newFixedThreadPool(Math.max(1, concurrentTransfers),
+        new ThreadFactory() {
+          private int count = 0;
+
+          @Override
+          public synchronized Thread newThread(Runnable r) {
+            return new Thread(null, r, "AttachmentTransfer-" + name + "-" + (++count));
+          }
+        });
+  }
+
+  /**
+   * Queue the put (unless onlyGetFiles()) and get of the attachments of a row.
+   * Reads the md5 hashes recorded for its attachments.
+   *
+   * @param instanceFileUri
+   * @param tableId
+   * @param row
+   * @param deferInstanceAttachments
+   */
+  void submit(String instanceFileUri, String tableId, SyncRowPending row,
+      boolean deferInstanceAttachments) {
+    RowTransfer rowTransfer = new RowTransfer(instanceFileUri, tableId, row,
+        synchronizer.getFileSyncETags(instanceFileUri, tableId, row), deferInstanceAttachments);
+    pendingTransfers.add(executor.submit(rowTransfer));
+    pendingRows.add(rowTransfer);
+  }
+
+  /**
+   * @return true if there are submitted rows not yet returned by take().
+   */
+  boolean hasPending() {
+    return !pendingTransfers.isEmpty();
+  }
+
+  /**
+   * Wait for the transfers of the earliest-submitted row to finish, then
+   * record the md5 hashes they noted.
+   *
+   * @return the outcome for that row
+   * @throws InterruptedException
+   * @throws RuntimeException
+   *           (e.g., ClientWebException) if the transfer failed
+   */
+  Completion take() throws InterruptedException {
+    RowTransfer rowTransfer = pendingRows.removeFirst();
+    Future<Boolean> transfer = pendingTransfers.removeFirst();
+    boolean success;
+    try {
+      success = transfer.get();
+    } catch (ExecutionException e) {
+      // keep what the transfers managed before failing
+      synchronizer.updateFileSyncETags(rowTransfer.eTags);
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IllegalStateException(cause);
+    }
+    synchronizer.updateFileSyncETags(rowTransfer.eTags);
+    return new Completion(rowTransfer.row, success);
+  }
+
+  /**
+   * Abandon the rows not yet returned by take() and stop the worker threads.
+   * Transfers already underway are allowed to finish.
+   */
+  void shutdown() {
+    for (Future<Boolean> transfer : pendingTransfers) {
+      transfer.cancel(false);
+    }
+    pendingTransfers.clear();
+    pendingRows.clear();
+    executor.shutdown();
+  }
+}
@@ -0,0 +1,423 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sync;
+
+import org.opendatakit.aggregate.odktables.rest.SyncState;
+import org.opendatakit.common.android.provider.DataTableColumns;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * Journal of the rowIds of a table's locally dirty rows: those in the
+ * new_row, changed, deleted or synced_pending_files state, i.e., those the
+ * push must look at.
+ * <p>
+ * The journal is kept by triggers on the data table, so rows changed by any
+ * writer of the app's database (not just the sync) are recorded. The
+ * triggers only ever add rowIds. A rowId stays in the journal after its row
+ * becomes clean or is deleted until the next prune(); readers join the
+ * journal against the data table and re-check the row's _sync_state, so
+ * these stale entries are never returned.
+ * <p>
+ * Stored in the _sync_dirty_rows table of the app's database.
+ * <p>
+ * A second set of triggers journals, for each row that is changed locally
+ * after being synced, the rowETag of that synced version and the columns
+ * whose values have changed since. When the row still has that rowETag at
+ * push time, only the changed values need be sent. Stored in the
+ * _sync_delta_base and _sync_dirty_columns tables.
+ */
+final class DirtyRowJournal {
+
+  private static final String TABLE_NAME = "_sync_dirty_rows";
+
+  private static final String TABLE_ID = "_table_id";
+  private static final String ROW_ID = "_row_id";
+
+  private static final String CREATE_TABLE = "CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " ("
+      + TABLE_ID + " TEXT NOT NULL, " + ROW_ID + " TEXT NOT NULL, PRIMARY KEY (" + TABLE_ID
+      + ", " + ROW_ID + "))";
+
+  private static final String BASE_TABLE_NAME = "_sync_delta_base";
+  private static final String COLUMNS_TABLE_NAME = "_sync_dirty_columns";
+
+  private static final String ROW_ETAG = "_row_etag";
+  private static final String ELEMENT_KEY = "_element_key";
+
+  private static final String CREATE_BASE_TABLE = "CREATE TABLE IF NOT EXISTS "
+      + BASE_TABLE_NAME + " (" + TABLE_ID + " TEXT NOT NULL, " + ROW_ID + " TEXT NOT NULL, "
+      + ROW_ETAG + " TEXT NULL, PRIMARY KEY (" + TABLE_ID + ", " + ROW_ID + "))";
+
+  private static final String CREATE_COLUMNS_TABLE = "CREATE TABLE IF NOT EXISTS "
+      + COLUMNS_TABLE_NAME + " (" + TABLE_ID + " TEXT NOT NULL, " + ROW_ID + " TEXT NOT NULL, "
+      + ELEMENT_KEY + " TEXT NOT NULL, PRIMARY KEY (" + TABLE_ID + ", " + ROW_ID + ", "
+      + ELEMENT_KEY + "))";
+
+  /** Result column of queryChangedColumns(): the rowId */
+  static final int CHANGED_ROW_ID_INDEX = 0;
+  /** Result column of queryChangedColumns(): a changed column, or null */
+  static final int CHANGED_ELEMENT_KEY_INDEX = 1;
+
+  private static final SyncState[] DIRTY_STATES = { SyncState.new_row, SyncState.changed,
+      SyncState.deleted, SyncState.synced_pending_files };
+
+  private DirtyRowJournal() {
+  }
+
+  private static String quote(String value) {
+    return "'" + value.replace("'", "''") + "'";
+  }
+
+  /**
+   * @param column
+   *          the (qualified) _sync_state column
+   * @param states
+   * @return an expression that is true if the row is in one of the states.
+   */
+  private static String isInState(String column, SyncState[] states) {
+    StringBuilder b = new StringBuilder();
+    b.append(column).append(" IN (");
+    for (int i = 0; i < states.length; ++i) {
+      if (i != 0) {
+        b.append(",");
+      }
+      b.append(quote(states[i].name()));
+    }
+    b.append(")");
+    return b.toString();
+  }
+
+  /**
+   * @param column
+   *          the (qualified) _sync_state column
+   * @return an expression that is true if the row is dirty.
+   */
+  private static String isDirty(String column) {
+    return isInState(column, DIRTY_STATES);
+  }
+
+  private static String insertTrigger(String tableId) {
+    return tableId + "_sync_dirty_insert";
+  }
+
+  private static String updateTrigger(String tableId) {
+    return tableId + "_sync_dirty_update";
+  }
+
+  private static String columnsTrigger(String tableId) {
+    return tableId + "_sync_dirty_columns";
+  }
+
+  private static boolean triggersExist(SQLiteDatabase db, String[] triggers) {
+    StringBuilder b = new StringBuilder();
+    b.append("SELECT COUNT(*) FROM sqlite_master WHERE type='trigger' AND name IN (");
+    for (int i = 0; i < triggers.length; ++i) {
+      if (i != 0) {
+        b.append(",");
+      }
+      b.append("?");
+    }
+    b.append(")");
+    Cursor c = null;
+    try {
+      c = db.rawQuery(b.toString(), triggers);
+      return c.moveToFirst() && c.getInt(0) == triggers.length;
+    } finally {
+      if (c != null) {
+        c.close();
+      }
+    }
+  }
+
+  /**
+   * @param db
+   * @param trigger
+   * @return null or the CREATE statement of the trigger.
+   */
+  private static String getTriggerSql(SQLiteDatabase db, String trigger) {
+    Cursor c = null;
+    try {
+      c = db.rawQuery("SELECT sql FROM sqlite_master WHERE type='trigger' AND name=?",
+          new String[] { trigger });
+      return c.moveToFirst() ? c.getString(0) : null;
+    } finally {
+      if (c != null) {
+        c.close();
+      }
+    }
+  }
+
+  /**
+   * Ensure the triggers maintaining the journal exist on the data table. The
+   * first time they are created (or if the table was dropped and recreated,
+   * taking its triggers with it), the journal is seeded with a single scan of
+   * the table. Also ensures the data table has an index on _id, which the
+   * journal is joined against.
+   *
+   * @param db
+   * @param tableId
+   */
+  static void install(SQLiteDatabase db, String tableId) {
+    db.execSQL(CREATE_TABLE);
+    if (triggersExist(db, new String[] { insertTrigger(tableId), updateTrigger(tableId) })) {
+      return;
+    }
+    String recordNewRow = " BEGIN INSERT OR IGNORE INTO " + TABLE_NAME + " (" + TABLE_ID + ", "
+        + ROW_ID + ") VALUES (" + quote(tableId) + ", NEW." + DataTableColumns.ID + "); END";
+
+    db.beginTransaction();
+    try {
+      ProcessRowDataChanges.createRowIdIndex(db, tableId);
+      db.execSQL("CREATE TRIGGER IF NOT EXISTS \"" + insertTrigger(tableId)
+          + "\" AFTER INSERT ON \"" + tableId + "\" WHEN "
+          + isDirty("NEW." + DataTableColumns.SYNC_STATE) + recordNewRow);
+      db.execSQL("CREATE TRIGGER IF NOT EXISTS \"" + updateTrigger(tableId)
+          + "\" AFTER UPDATE OF " + DataTableColumns.SYNC_STATE + " ON \"" + tableId
+          + "\" WHEN " + isDirty("NEW." + DataTableColumns.SYNC_STATE) + recordNewRow);
+      db.delete(TABLE_NAME, TABLE_ID + "=?", new String[] { tableId });
+      db.execSQL("INSERT OR IGNORE INTO " + TABLE_NAME + " (" + TABLE_ID + ", " + ROW_ID
+          + ") SELECT ?, " + DataTableColumns.ID + " FROM \"" + tableId + "\" WHERE "
+          + isDirty(DataTableColumns.SYNC_STATE), new String[] { tableId });
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  /**
+   * Ensure the trigger journaling the changed columns of locally changed rows
+   * exists on the data table and matches its current columns. Rows changed
+   * before it was created have no journaled synced version, so their full
+   * values are sent.
+   * <p>
+   * The trigger names every user-defined column, so it is rebuilt whenever
+   * the columns differ from those it was built for (SQLite keeps the
+   * trigger's CREATE statement, which serves as the layout signature). The
+   * deltas journaled by the old trigger may be missing edits to added
+   * columns, so they are discarded and those rows are sent in full.
+   *
+   * @param db
+   * @param tableId
+   * @param layout
+   *          the user-defined columns of the table
+   */
+  static void installColumns(SQLiteDatabase db, String tableId, SyncRowLayout layout) {
+    db.execSQL(CREATE_BASE_TABLE);
+    db.execSQL(CREATE_COLUMNS_TABLE);
+    String wasSynced = isInState("OLD." + DataTableColumns.SYNC_STATE, new SyncState[] {
+        SyncState.synced, SyncState.synced_pending_files });
+    String row = quote(tableId) + ", NEW." + DataTableColumns.ID;
+
+    StringBuilder b = new StringBuilder();
+    b.append("CREATE TRIGGER \"").append(columnsTrigger(tableId))
+        .append("\" AFTER UPDATE ON \"").append(tableId).append("\" WHEN NEW.")
+        .append(DataTableColumns.SYNC_STATE).append("=").append(quote(SyncState.changed.name()))
+        .append(" BEGIN ")
+        // first change since the row was synced: start a new delta from the
+        // synced version.
+        .append("DELETE FROM ").append(COLUMNS_TABLE_NAME).append(" WHERE ").append(TABLE_ID)
+        .append("=").append(quote(tableId)).append(" AND ").append(ROW_ID).append("=NEW.")
+        .append(DataTableColumns.ID).append(" AND ").append(wasSynced).append("; ")
+        .append("INSERT OR REPLACE INTO ").append(BASE_TABLE_NAME).append(" (")
+        .append(TABLE_ID).append(", ").append(ROW_ID).append(", ").append(ROW_ETAG)
+        .append(") SELECT ").append(row).append(", OLD.").append(DataTableColumns.ROW_ETAG)
+        .append(" WHERE ").append(wasSynced).append("; ");
+    for (int i = 0; i < layout.getColumnCount(); ++i) {
+      String elementKey = layout.getElementKey(i);
+      b.append("INSERT OR IGNORE INTO ").append(COLUMNS_TABLE_NAME).append(" (")
+          .append(TABLE_ID).append(", ").append(ROW_ID).append(", ").append(ELEMENT_KEY)
+          .append(") SELECT ").append(row).append(", ").append(quote(elementKey))
+          .append(" WHERE OLD.\"").append(elementKey).append("\" IS NOT NEW.\"")
+          .append(elementKey).append("\"; ");
+    }
+    b.append("END");
+    String sql = b.toString();
+
+    String existing = getTriggerSql(db, columnsTrigger(tableId));
+    if (sql.equals(existing)) {
+      return;
+    }
+    db.beginTransaction();
+    try {
+      if (existing != null) {
+        db.execSQL("DROP TRIGGER IF EXISTS \"" + columnsTrigger(tableId) + "\"");
+        String[] args = new String[] { tableId };
+        db.delete(BASE_TABLE_NAME, TABLE_ID + "=?", args);
+        db.delete(COLUMNS_TABLE_NAME, TABLE_ID + "=?", args);
+      }
+      db.execSQL(sql);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  private static String dirtyRowsFrom(String tableId, SyncState[] states) {
+    return " FROM " + TABLE_NAME + " AS j JOIN \"" + tableId + "\" AS t ON t."
+        + DataTableColumns.ID + "=j." + ROW_ID + " WHERE j." + TABLE_ID + "=? AND "
+        + isInState("t." + DataTableColumns.SYNC_STATE, states);
+  }
+
+  /**
+   * @param db
+   * @param tableId
+   * @return true if the table has any dirty rows.
+   */
+  static boolean hasDirtyRows(SQLiteDatabase db, String tableId) {
+    Cursor c = null;
+    try {
+      c = db.rawQuery("SELECT EXISTS(SELECT 1" + dirtyRowsFrom(tableId, DIRTY_STATES) + ")",
+          new String[] { tableId });
+      return c.moveToFirst() && c.getInt(0) != 0;
+    } finally {
+      if (c != null) {
+        c.close();
+      }
+    }
+  }
+
+  /**
+   * @param db
+   * @param tableId
+   * @param states
+   *          a subset of the dirty states
+   * @return the number of dirty rows in those states.
+   */
+  static int countDirtyRows(SQLiteDatabase db, String tableId, SyncState[] states) {
+    Cursor c = null;
+    try {
+      c = db.rawQuery("SELECT COUNT(*)" + dirtyRowsFrom(tableId, states),
+          new String[] { tableId });
+      return c.moveToFirst() ? c.getInt(0) : 0;
+    } finally {
+      if (c != null) {
+        c.close();
+      }
+    }
+  }
+
+  /**
+   * Open a cursor over the table's dirty rows in the given states, in rowId
+   * order. Only the journaled rows are read.
+   * <p>
+   * Reading is keyset-paginated: pass the rowId of the last row of the
+   * previous page as afterRowId. The cursor need not be held open while the
+   * rows it returned are being modified.
+   *
+   * @param db
+   * @param tableId
+   * @param states
+   *          a subset of the dirty states
+   * @param afterRowId
+   *          null, or return only rows with larger rowIds
+   * @param limit
+   *          maximum number of rows to return; zero for no limit
+   * @return cursor over all the columns of the dirty rows
+   */
+  static Cursor queryDirtyRows(SQLiteDatabase db, String tableId, SyncState[] states,
+      String afterRowId, int limit) {
+    StringBuilder b = new StringBuilder();
+    b.append("SELECT t.*").append(dirtyRowsFrom(tableId, states));
+    String[] args;
+    if (afterRowId == null) {
+      args = new String[] { tableId };
+    } else {
+      b.append(" AND j.").append(ROW_ID).append(">?");
+      args = new String[] { tableId, afterRowId };
+    }
+    b.append(" ORDER BY j.").append(ROW_ID);
+    if (limit > 0) {
+      b.append(" LIMIT ").append(limit);
+    }
+    return db.rawQuery(b.toString(), args);
+  }
+
+  /**
+   * Open a cursor over the journaled changed columns of the table's changed
+   * rows, in rowId order. Only rows that still have the rowETag of the synced
+   * version the changes were journaled from are returned. Each result row
+   * holds the rowId (CHANGED_ROW_ID_INDEX) and a changed column
+   * (CHANGED_ELEMENT_KEY_INDEX); a row whose values are all back to their
+   * synced values has a single result row with a null column.
+   *
+   * @param db
+   * @param tableId
+   * @param afterRowId
+   *          null, or return only rows with larger rowIds
+   * @param lastRowId
+   *          return only rows with this or smaller rowIds; the rowId of the
+   *          last row of the batch being read.
+   * @return
+   */
+  static Cursor queryChangedColumns(SQLiteDatabase db, String tableId, String afterRowId,
+      String lastRowId) {
+    StringBuilder b = new StringBuilder();
+    b.append("SELECT b.").append(ROW_ID).append(", c.").append(ELEMENT_KEY).append(" FROM ")
+        .append(BASE_TABLE_NAME).append(" AS b JOIN \"").append(tableId).append("\" AS t ON t.")
+        .append(DataTableColumns.ID).append("=b.").append(ROW_ID).append(" LEFT JOIN ")
+        .append(COLUMNS_TABLE_NAME).append(" AS c ON c.").append(TABLE_ID).append("=b.")
+        .append(TABLE_ID).append(" AND c.").append(ROW_ID).append("=b.").append(ROW_ID)
+        .append(" WHERE b.").append(TABLE_ID).append("=? AND t.")
+        .append(DataTableColumns.SYNC_STATE).append("=")
+        .append(quote(SyncState.changed.name())).append(" AND t.")
+        .append(DataTableColumns.ROW_ETAG).append(" IS b.").append(ROW_ETAG);
+    b.append(" AND b.").append(ROW_ID).append("<=?");
+    String[] args;
+    if (afterRowId == null) {
+      args = new String[] { tableId, lastRowId };
+    } else {
+      b.append(" AND b.").append(ROW_ID).append(">?");
+      args = new String[] { tableId, lastRowId, afterRowId };
+    }
+    b.append(" ORDER BY b.").append(ROW_ID);
+    return db.rawQuery(b.toString(), args);
+  }
+
+  /**
+   * @param tableId
+   * @param journal
+   *          the journal table being filtered
+   * @return a condition that is true if the journaled row is not changed.
+   */
+  private static String isNotChanged(String tableId, String journal) {
+    return " AND NOT EXISTS (SELECT 1 FROM \"" + tableId + "\" AS t WHERE t."
+        + DataTableColumns.ID + "=" + journal + "." + ROW_ID + " AND t."
+        + DataTableColumns.SYNC_STATE + "=" + quote(SyncState.changed.name()) + ")";
+  }
+
+  /**
+   * Remove the journal entries of rows that are no longer dirty, and the
+   * journaled columns of rows that are no longer changed.
+   *
+   * @param db
+   * @param tableId
+   */
+  static void prune(SQLiteDatabase db, String tableId) {
+    db.execSQL("DELETE FROM " + TABLE_NAME + " WHERE " + TABLE_ID + "=? AND NOT EXISTS (SELECT 1"
+        + " FROM \"" + tableId + "\" AS t WHERE t." + DataTableColumns.ID + "=" + TABLE_NAME
+        + "." + ROW_ID + " AND " + isDirty("t." + DataTableColumns.SYNC_STATE) + ")",
+        new String[] { tableId });
+    if (!triggersExist(db, new String[] { columnsTrigger(tableId) })) {
+      return;
+    }
+    // a delta is only ever sent for a changed row.
+    db.execSQL("DELETE FROM " + COLUMNS_TABLE_NAME + " WHERE " + TABLE_ID + "=?"
+        + isNotChanged(tableId, COLUMNS_TABLE_NAME), new String[] { tableId });
+    db.execSQL("DELETE FROM " + BASE_TABLE_NAME + " WHERE " + TABLE_ID + "=?"
+        + isNotChanged(tableId, BASE_TABLE_NAME), new String[] { tableId });
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sync;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The md5 hashes recorded in the local database for the file attachments of
+ * one row, and the hashes its attachment transfers want recorded.
+ * <p>
+ * The Synchronizer reads the recorded hashes in getFileSyncETags() and writes
+ * the updates in updateFileSyncETags(), both on the sync thread. In between,
+ * putFileAttachments() and getFileAttachments() use only this object, so they
+ * can run on a worker thread without touching the database. The object is
+ * used by one thread at a time and is not synchronized.
+ */
+public final class FileSyncETags {
+
+  /**
+   * An md5 hash to record for a file attachment.
+   */
+  public static final class Update {
+    private final URI fileUri;
+    private final long lastModified;
+    private final String md5Hash;
+
+    private Update(URI fileUri, long lastModified, String md5Hash) {
+      this.fileUri = fileUri;
+      this.lastModified = lastModified;
+      this.md5Hash = md5Hash;
+    }
+
+    public URI getFileUri() {
+      return fileUri;
+    }
+
+    public long getLastModified() {
+      return lastModified;
+    }
+
+    public String getMd5Hash() {
+      return md5Hash;
+    }
+  }
+
+  private final String tableId;
+  private final Map<URI, Update> recorded = new HashMap<URI, Update>();
+  private final List<Update> updates = new ArrayList<Update>();
+
+  public FileSyncETags(String tableId) {
+    this.tableId = tableId;
+  }
+
+  public String getTableId() {
+    return tableId;
+  }
+
+  /**
+   * Note the md5 hash recorded in the database for a file attachment.
+   *
+   * @param fileUri
+   * @param lastModified
+   *          the modification time of the local file it was recorded for
+   * @param md5Hash
+   */
+  public void putRecorded(URI fileUri, long lastModified, String md5Hash) {
+    recorded.put(fileUri, new Update(fileUri, lastModified, md5Hash));
+  }
+
+  /**
+   * @param fileUri
+   * @param lastModified
+   *          the current modification time of the local file
+   * @return the md5 hash recorded for the file, or null if none was recorded
+   *         or the file has been modified since.
+   */
+  public String getRecorded(URI fileUri, long lastModified) {
+    Update entry = recorded.get(fileUri);
+    if (entry == null || entry.getLastModified() != lastModified) {
+      return null;
+    }
+    return entry.getMd5Hash();
+  }
+
+  /**
+   * Ask for the md5 hash of a file attachment to be recorded. Later lookups
+   * through this object see it at once.
+   *
+   * @param fileUri
+   * @param lastModified
+   * @param md5Hash
+   */
+  public void update(URI fileUri, long lastModified, String md5Hash) {
+    Update entry = new Update(fileUri, lastModified, md5Hash);
+    recorded.put(fileUri, entry);
+    updates.add(entry);
+  }
+
+  /**
+   * @return the updates, in the order they were made.
+   */
+  public List<Update> getUpdates() {
+    return Collections.unmodifiableList(updates);
+  }
+}
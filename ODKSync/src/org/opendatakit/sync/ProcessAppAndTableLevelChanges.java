@@ -89,7 +89,7 @@ public class ProcessAppAndTableLevelChanges {
     String webSafeResumeCursor = null;
     for (;;) {
       try {
-        tableList = sc.getSynchronizer().getTables(webSafeResumeCursor);
+        tableList = sc.getSynchronizer().getTables(webSafeResumeCursor, null);
         if (tableList != null & tableList.getTables() != null) {
           tables.addAll(tableList.getTables());
         }
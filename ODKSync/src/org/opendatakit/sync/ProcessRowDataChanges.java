@@ -15,31 +15,39 @@
  */
 package org.opendatakit.sync;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.http.HttpStatus;
 import org.apache.wink.client.ClientWebException;
 import org.opendatakit.aggregate.odktables.rest.ConflictType;
-import org.opendatakit.aggregate.odktables.rest.ElementDataType;
 import org.opendatakit.aggregate.odktables.rest.SyncState;
-import org.opendatakit.aggregate.odktables.rest.entity.DataKeyValue;
+import org.opendatakit.aggregate.odktables.rest.entity.Row;
 import org.opendatakit.aggregate.odktables.rest.entity.RowOutcome;
 import org.opendatakit.aggregate.odktables.rest.entity.RowOutcome.OutcomeType;
 import org.opendatakit.aggregate.odktables.rest.entity.RowOutcomeList;
-import org.opendatakit.aggregate.odktables.rest.entity.RowResource;
-import org.opendatakit.aggregate.odktables.rest.entity.RowResourceList;
 import org.opendatakit.aggregate.odktables.rest.entity.Scope;
 import org.opendatakit.aggregate.odktables.rest.entity.TableResource;
 import org.opendatakit.common.android.data.ColumnDefinition;
 import org.opendatakit.common.android.data.TableDefinitionEntry;
-import org.opendatakit.common.android.data.UserTable;
-import org.opendatakit.common.android.data.UserTable.Row;
 import org.opendatakit.common.android.provider.DataTableColumns;
 import org.opendatakit.common.android.utilities.ODKDatabaseUtils;
+import org.opendatakit.common.android.utilities.ODKFileUtils;
 import org.opendatakit.common.android.utilities.TableUtil;
 import org.opendatakit.common.android.utilities.WebLogger;
 import org.opendatakit.sync.SynchronizationResult.Status;
@@ -47,6 +55,7 @@ import org.opendatakit.sync.exceptions.InvalidAuthTokenException;
 import org.opendatakit.sync.service.SyncProgressState;
 
 import android.content.ContentValues;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 
 import com.fasterxml.jackson.annotation.JsonAutoDetect.Visibility;
@@ -63,8 +72,19 @@ public class ProcessRowDataChanges {
 
   private static final String TAG = ProcessRowDataChanges.class.getSimpleName();
 
-  private static final int UPSERT_BATCH_SIZE = 500;
+  /**
+   * Local rows in these states are pushed to the server.
+   */
+  private static final SyncState[] ALTERED_STATES = { SyncState.new_row, SyncState.changed,
+      SyncState.deleted };
+  /**
+   * Local rows in these states have attachments that remain to be synced.
+   */
+  private static final SyncState[] PENDING_FILES_STATES = { SyncState.synced_pending_files };
+  // stay well under SQLITE_MAX_VARIABLE_NUMBER (999)
+  static final int MAX_ROW_IDS_PER_QUERY = 500;
   private static final int ROWS_BETWEEN_PROGRESS_UPDATES = 10;
+
   private static final ObjectMapper mapper;
 
   static {
@@ -78,12 +98,45 @@ public class ProcessRowDataChanges {
 
   private Double perRowIncrement;
   private int rowsProcessed;
+  /**
+   * Number of pushed rows whose outcomes have been applied.
+   */
+    private int pushedRowCount;
+
+  /**
+   * Classify server changes in SQL (see SyncRowStagingTable) rather than by
+   * merge-joining them against the local rows in Java.
+   */
+  private boolean stageServerChanges = false;
+
+  /**
+   * Apply the outcomes of each batch of pushed rows while the next batch is
+   * being sent.
+   */
+  private boolean pipelinePush = false;
+
+  /**
+   * Number of rows whose file attachments are transferred concurrently.
+   */
+  private int attachmentTransferThreads = AttachmentTransferEngine.DEFAULT_CONCURRENT_TRANSFERS;
 
   public ProcessRowDataChanges(SyncExecutionContext sharedContext) {
     this.sc = sharedContext;
     this.log = WebLogger.getLogger(sc.getAppName());
   }
 
+  public void setStageServerChanges(boolean stageServerChanges) {
+    this.stageServerChanges = stageServerChanges;
+  }
+
+  public void setPipelinePush(boolean pipelinePush) {
+    this.pipelinePush = pipelinePush;
+  }
+
+  public void setAttachmentTransferThreads(int attachmentTransferThreads) {
+    this.attachmentTransferThreads = attachmentTransferThreads;
+  }
+
   /**
    * Common error reporting...
    * 
@@ -187,45 +240,929 @@ public class ProcessRowDataChanges {
    *          schema does not match, the local table will be omitted from this
    *          list.
    */
-  public void synchronizeDataRowsAndAttachments(List<TableResource> workingListOfTables,
-      boolean deferInstanceAttachments) {
-    log.i(TAG, "entered synchronize()");
+  public void synchronizeDataRowsAndAttachments(List<TableResource> workingListOfTables,
+      boolean deferInstanceAttachments) {
+    log.i(TAG, "entered synchronize()");
+
+    SQLiteDatabase db = null;
+
+    // we can assume that all the local table properties should
+    // sync with the server.
+    for (TableResource tableResource : workingListOfTables) {
+      // Sync the local media files with the server if the table
+      // existed locally before we attempted downloading it.
+
+      String tableId = tableResource.getTableId();
+      TableDefinitionEntry te;
+      ArrayList<ColumnDefinition> orderedDefns;
+      String displayName;
+      try {
+        db = sc.getDatabase();
+        te = ODKDatabaseUtils.get().getTableDefinitionEntry(db, tableId);
+        orderedDefns = TableUtil.get().getColumnDefinitions(db, sc.getAppName(), tableId);
+        displayName = TableUtil.get().getLocalizedDisplayName(db, tableId);
+      } finally {
+        if (db != null) {
+          db.close();
+          db = null;
+        }
+      }
+
+      synchronizeTableDataRowsAndAttachments(tableResource, te, orderedDefns, displayName,
+          deferInstanceAttachments);
+      sc.incMajorSyncStep();
+    }
+  }
+
+  /**
+   * Order rowIds the way SQLite's BINARY collation does (i.e., by Unicode code
+   * point, which matches the UTF-8 byte ordering SQLite compares). This can
+   * differ from String.compareTo() for characters outside the BMP.
+   */
+  private static final Comparator<String> ROW_ID_ORDER = new Comparator<String>() {
+
+    @Override
+    public int compare(String a, String b) {
+      int i = 0;
+      int j = 0;
+      while (i < a.length() && j < b.length()) {
+        int ca = a.codePointAt(i);
+        int cb = b.codePointAt(j);
+        if (ca != cb) {
+          return (ca < cb) ? -1 : 1;
+        }
+        i += Character.charCount(ca);
+        j += Character.charCount(cb);
+      }
+      if (i < a.length()) {
+        return 1;
+      } else if (j < b.length()) {
+        return -1;
+      }
+      return 0;
+    }
+  };
+
+  /**
+   * Open a forward-only cursor over the local rows (including any server
+   * in_conflict copies) whose rowIds are in the given list. The list should
+   * hold no more than MAX_ROW_IDS_PER_QUERY entries so that we stay under the
+   * SQLite bind argument limit.
+   *
+   * @param db
+   * @param tableId
+   * @param rowIds
+   * @return cursor over the matching rows, ordered by rowId
+   */
+  static Cursor getLocalRowsWithIds(SQLiteDatabase db, String tableId, List<String> rowIds) {
+    StringBuilder b = new StringBuilder();
+    b.append("SELECT * FROM \"").append(tableId).append("\" WHERE ").append(DataTableColumns.ID)
+        .append(" IN (");
+    for (int i = 0; i < rowIds.size(); ++i) {
+      if (i != 0) {
+        b.append(",");
+      }
+      b.append("?");
+    }
+    b.append(") ORDER BY ").append(DataTableColumns.ID).append(" ASC");
+    return db.rawQuery(b.toString(), rowIds.toArray(new String[rowIds.size()]));
+  }
+
+  /**
+   * Ensure the data table has an index on _id, so that getLocalRowsWithIds()
+   * looks up each rowId rather than scanning the whole table.
+   *
+   * @param db
+   * @param tableId
+   */
+  static void createRowIdIndex(SQLiteDatabase db, String tableId) {
+    db.execSQL("CREATE INDEX IF NOT EXISTS \"" + tableId + "_sync_row_id\" ON \"" + tableId
+        + "\" (" + DataTableColumns.ID + ")");
+  }
+
+  /**
+   * Decide what to do with a server change for which a local row exists. The
+   * cursor is positioned on that local row.
+   *
+   * @return false if the local row is the server's values from an earlier
+   *         conflict and should be skipped; true if the server change was
+   *         placed into one of the action lists.
+   */
+  private boolean reconcileServerChangeWithLocalRow(SyncRow serverRow, Cursor localRow,
+      SyncRowLayout layout, SyncRowComparator comparator,
+      List<SyncRowDataChanges> rowsToUpdateLocally, List<SyncRowDataChanges> rowsToDeleteLocally,
+      List<SyncRowDataChanges> rowsToMoveToInConflictLocally) {
+
+    String stateStr = SyncRow.getValueAsString(localRow, DataTableColumns.SYNC_STATE);
+    SyncState state = stateStr == null ? null : SyncState.valueOf(stateStr);
+
+    // OK -- the server is reporting a change (in serverRow) to the
+    // localRow.
+    // if the localRow is already in a in_conflict state, determine
+    // what its
+    // ConflictType is. If the localRow holds the earlier server-side
+    // change,
+    // then skip and look at the next record.
+    int localRowConflictTypeBeforeSync = -1;
+    if (state == SyncState.in_conflict) {
+      // we need to remove the in_conflict records that refer to the
+      // prior state of the server
+      String localRowConflictTypeBeforeSyncStr = SyncRow.getValueAsString(localRow,
+          DataTableColumns.CONFLICT_TYPE);
+      localRowConflictTypeBeforeSync = localRowConflictTypeBeforeSyncStr == null ? null : Integer
+          .parseInt(localRowConflictTypeBeforeSyncStr);
+      if (localRowConflictTypeBeforeSync == ConflictType.SERVER_DELETED_OLD_VALUES
+          || localRowConflictTypeBeforeSync == ConflictType.SERVER_UPDATED_UPDATED_VALUES) {
+        // This localRow holds the server values from a
+        // previously-identified conflict.
+        // Skip it -- we will clean up this copy later once we find
+        // the matching localRow
+        // that holds the locally-changed values that were in conflict
+        // with this earlier
+        // set of server values.
+        return false;
+      }
+    }
+
+    // the following decision tree will always place the row into one
+    // of the local action lists.
+
+    // OK the record is either a simple local record or a local
+    // in_conflict record
+    if (state == SyncState.synced || state == SyncState.synced_pending_files) {
+      // the server's change should be applied locally.
+      //
+      // the file attachments might be stale locally,
+      // but those are dealt with separately.
+
+      if (serverRow.isDeleted()) {
+        rowsToDeleteLocally.add(new SyncRowDataChanges(serverRow, SyncRow.convertToSyncRow(
+            sc.getValuePool(), layout, localRow), (state == SyncState.synced_pending_files)));
+      } else {
+        rowsToUpdateLocally.add(new SyncRowDataChanges(serverRow, SyncRow.convertToSyncRow(
+            sc.getValuePool(), layout, localRow), (state == SyncState.synced_pending_files)));
+      }
+    } else if (serverRow.isDeleted()
+        && (state == SyncState.deleted || (state == SyncState.in_conflict && localRowConflictTypeBeforeSync == ConflictType.LOCAL_DELETED_OLD_VALUES))) {
+      // this occurs if
+      // (1) a delete request was never ACKed but it was performed
+      // on the server.
+      // (2) if there is an unresolved conflict held locally with the
+      // local action being to delete the record, and the prior server
+      // state being a value change, but the newly sync'd state now
+      // reflects a deletion by another party.
+      //
+
+      // no need to worry about server in_conflict records.
+      // any server in_conflict rows will be deleted during the delete
+      // step
+      rowsToDeleteLocally.add(new SyncRowDataChanges(serverRow, SyncRow.convertToSyncRow(
+          sc.getValuePool(), layout, localRow), false));
+    } else {
+      // SyncState.deleted and server is not deleting
+      // SyncState.new_row and record exists on server
+      // SyncState.changed and new change on server
+      // SyncState.in_conflict and new change on server
+
+      // no need to worry about server in_conflict records.
+      // any server in_conflict rows will be cleaned up during the
+      // update of the in_conflict state.
+
+      // figure out what the localRow conflict type should be...
+      Integer localRowConflictType;
+      if (state == SyncState.changed) {
+        // SyncState.changed and new change on server
+        localRowConflictType = ConflictType.LOCAL_UPDATED_UPDATED_VALUES;
+        log.i(TAG, "local row was in sync state CHANGED, changing to "
+            + "IN_CONFLICT and setting conflict type to: " + localRowConflictType);
+      } else if (state == SyncState.new_row) {
+        // SyncState.new_row and record exists on server
+        // The 'new_row' case occurs if an insert is never ACKed but
+        // completes successfully on the server.
+        localRowConflictType = ConflictType.LOCAL_UPDATED_UPDATED_VALUES;
+        log.i(TAG, "local row was in sync state NEW_ROW, changing to "
+            + "IN_CONFLICT and setting conflict type to: " + localRowConflictType);
+      } else if (state == SyncState.deleted) {
+        // SyncState.deleted and server is not deleting
+        localRowConflictType = ConflictType.LOCAL_DELETED_OLD_VALUES;
+        log.i(TAG, "local row was in sync state DELETED, changing to "
+            + "IN_CONFLICT and updating conflict type to: " + localRowConflictType);
+      } else if (state == SyncState.in_conflict) {
+        // SyncState.in_conflict and new change on server
+        // leave the local conflict type unchanged (retrieve it and
+        // use it).
+        localRowConflictType = localRowConflictTypeBeforeSync;
+        log.i(TAG, "local row was in sync state IN_CONFLICT, leaving as "
+            + "IN_CONFLICT and leaving conflict type unchanged as: "
+            + localRowConflictTypeBeforeSync);
+      } else {
+        throw new IllegalStateException("Unexpected state encountered");
+      }
+      SyncRow localSyncRow = SyncRow.convertToSyncRow(sc.getValuePool(), layout, localRow);
+      addConflictOrRowETagUpdate(serverRow, localSyncRow, localRowConflictType, comparator,
+          rowsToUpdateLocally, rowsToMoveToInConflictLocally);
+    }
+    return true;
+  }
+
+  /**
+   * The local row has unsynced changes and the server reports a change to
+   * it. If only the rowETag and filterScope differ, just apply those to the
+   * local row; otherwise the row is in conflict.
+   *
+   * @param serverRow
+   * @param localSyncRow
+   * @param localRowConflictType
+   *          the conflict type the local row should have
+   * @param comparator
+   * @param rowsToUpdateLocally
+   * @param rowsToMoveToInConflictLocally
+   */
+  private void addConflictOrRowETagUpdate(SyncRow serverRow, SyncRow localSyncRow,
+      Integer localRowConflictType, SyncRowComparator comparator,
+      List<SyncRowDataChanges> rowsToUpdateLocally,
+      List<SyncRowDataChanges> rowsToMoveToInConflictLocally) {
+    SyncRowDataChanges syncRow = new SyncRowDataChanges(serverRow, localSyncRow, false,
+        localRowConflictType);
+
+    if (!syncRow.identicalValues(comparator)) {
+      if (syncRow.identicalValuesExceptRowETagAndFilterScope(comparator)) {
+        // just apply the server RowETag and filterScope to the
+        // local row
+        rowsToUpdateLocally.add(new SyncRowDataChanges(serverRow, localSyncRow, true));
+      } else {
+        rowsToMoveToInConflictLocally.add(syncRow);
+      }
+    } else {
+      log.w(TAG, "identical rows returned from server -- SHOULDN'T THESE NOT HAPPEN?");
+    }
+  }
+
+  /**
+   * Classify the page's server changes by merge-joining them against the
+   * local rows with the same rowIds, a chunk of rowIds at a time.
+   *
+   * @param tableId
+   * @param changedServerRows
+   *          the page's server changes; sorted here by rowId
+   * @param layout
+   * @param comparator
+   * @param rowsToInsertLocally
+   * @param rowsToUpdateLocally
+   * @param rowsToDeleteLocally
+   * @param rowsToMoveToInConflictLocally
+   */
+  private void classifyServerChangesByMergeJoin(String tableId, List<SyncRow> changedServerRows,
+      SyncRowLayout layout, SyncRowComparator comparator,
+      List<SyncRowDataChanges> rowsToInsertLocally, List<SyncRowDataChanges> rowsToUpdateLocally,
+      List<SyncRowDataChanges> rowsToDeleteLocally,
+      List<SyncRowDataChanges> rowsToMoveToInConflictLocally) {
+    // stable sort -- if the server reports the same rowId twice within
+    // a page, the last report wins.
+    Collections.sort(changedServerRows, new Comparator<SyncRow>() {
+
+      @Override
+      public int compare(SyncRow lhs, SyncRow rhs) {
+        return ROW_ID_ORDER.compare(lhs.getRowId(), rhs.getRowId());
+      }
+    });
+
+    SQLiteDatabase localDb = null;
+    try {
+      localDb = sc.getDatabase();
+      createRowIdIndex(localDb, tableId);
+      for (int offset = 0; offset < changedServerRows.size(); offset += MAX_ROW_IDS_PER_QUERY) {
+        int max = Math.min(offset + MAX_ROW_IDS_PER_QUERY, changedServerRows.size());
+        List<String> rowIds = new ArrayList<String>(max - offset);
+        for (int i = offset; i < max; ++i) {
+          rowIds.add(changedServerRows.get(i).getRowId());
+        }
+
+        Cursor localRow = null;
+        try {
+          localRow = getLocalRowsWithIds(localDb, tableId, rowIds);
+          int idxRowId = localRow.getColumnIndexOrThrow(DataTableColumns.ID);
+          boolean hasLocalRow = localRow.moveToFirst();
+
+          for (int i = offset; i < max; ++i) {
+            SyncRow serverRow = changedServerRows.get(i);
+            String rowId = serverRow.getRowId();
+            if (i + 1 < changedServerRows.size()
+                && rowId.equals(changedServerRows.get(i + 1).getRowId())) {
+              // superseded by a later change within this page
+              continue;
+            }
+
+            // skip past any local rows that sort before this server row
+            while (hasLocalRow && ROW_ID_ORDER.compare(localRow.getString(idxRowId), rowId) < 0) {
+              hasLocalRow = localRow.moveToNext();
+            }
+
+            // there may be two local rows for this rowId (the local and
+            // server values of an earlier conflict). Exactly one of them
+            // determines the action we take.
+            boolean reconciled = false;
+            while (hasLocalRow && rowId.equals(localRow.getString(idxRowId))) {
+              if (!reconciled) {
+                reconciled = reconcileServerChangeWithLocalRow(serverRow, localRow, layout,
+                    comparator, rowsToUpdateLocally, rowsToDeleteLocally,
+                    rowsToMoveToInConflictLocally);
+              }
+              hasLocalRow = localRow.moveToNext();
+            }
+
+            // This server change doesn't affect any existing localRow.
+            // If the server change is not a row-deletion / revoke-row
+            // action, then insert the serverRow locally.
+            if (!reconciled && !serverRow.isDeleted()) {
+              rowsToInsertLocally.add(new SyncRowDataChanges(serverRow, null, false));
+            }
+          }
+        } finally {
+          if (localRow != null && !localRow.isClosed()) {
+            localRow.close();
+          }
+        }
+      }
+    } finally {
+      if (localDb != null) {
+        localDb.close();
+        localDb = null;
+      }
+    }
+  }
+
+  /**
+   * Classify the page's server changes in SQL by staging their rowIds in a
+   * temporary table and joining it against the local data table. See
+   * SyncRowStagingTable. Only the local rows that need a SyncRow (updates,
+   * deletes and conflict candidates) are converted; the value comparison of
+   * conflict candidates is still done here because number fields are
+   * compared with a tolerance.
+   *
+   * @param tableId
+   * @param changedServerRows
+   *          the page's server changes, in the order reported
+   * @param layout
+   * @param comparator
+   * @param rowsToInsertLocally
+   * @param rowsToUpdateLocally
+   * @param rowsToDeleteLocally
+   * @param rowsToMoveToInConflictLocally
+   */
+  private void classifyServerChangesInDb(String tableId, List<SyncRow> changedServerRows,
+      SyncRowLayout layout, SyncRowComparator comparator,
+      List<SyncRowDataChanges> rowsToInsertLocally, List<SyncRowDataChanges> rowsToUpdateLocally,
+      List<SyncRowDataChanges> rowsToDeleteLocally,
+      List<SyncRowDataChanges> rowsToMoveToInConflictLocally) {
+    SQLiteDatabase db = null;
+    SyncRowStagingTable staging = null;
+    Cursor c = null;
+    try {
+      db = sc.getDatabase();
+      db.beginTransaction();
+      staging = new SyncRowStagingTable(db);
+      for (int i = 0; i < changedServerRows.size(); ++i) {
+        staging.stage(i, changedServerRows.get(i));
+      }
+
+      c = staging.classify(tableId);
+      int idxOrdinal = c.getColumnIndexOrThrow(SyncRowStagingTable.ORDINAL);
+      int idxAction = c.getColumnIndexOrThrow(SyncRowStagingTable.ACTION);
+      int idxConflictType = c.getColumnIndexOrThrow(SyncRowStagingTable.LOCAL_CONFLICT_TYPE);
+      int idxSyncState = c.getColumnIndexOrThrow(DataTableColumns.SYNC_STATE);
+
+      while (c.moveToNext()) {
+        SyncRow serverRow = changedServerRows.get(c.getInt(idxOrdinal));
+        int action = c.getInt(idxAction);
+        if (action == SyncRowStagingTable.ACTION_SKIP) {
+          continue;
+        } else if (action == SyncRowStagingTable.ACTION_INSERT) {
+          rowsToInsertLocally.add(new SyncRowDataChanges(serverRow, null, false));
+          continue;
+        }
+
+        SyncRow localSyncRow = SyncRow.convertToSyncRow(sc.getValuePool(), layout, c);
+        boolean pendingFiles = SyncState.synced_pending_files.name().equals(
+            c.getString(idxSyncState));
+        if (action == SyncRowStagingTable.ACTION_UPDATE) {
+          rowsToUpdateLocally.add(new SyncRowDataChanges(serverRow, localSyncRow, pendingFiles));
+        } else if (action == SyncRowStagingTable.ACTION_DELETE) {
+          rowsToDeleteLocally.add(new SyncRowDataChanges(serverRow, localSyncRow, pendingFiles));
+        } else {
+          if (c.isNull(idxConflictType)) {
+            throw new IllegalStateException("Unexpected state encountered");
+          }
+          addConflictOrRowETagUpdate(serverRow, localSyncRow, c.getInt(idxConflictType),
+              comparator, rowsToUpdateLocally, rowsToMoveToInConflictLocally);
+        }
+      }
+      c.close();
+      c = null;
+
+      staging.close();
+      staging = null;
+      db.setTransactionSuccessful();
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+      if (db != null) {
+        db.endTransaction();
+        db.close();
+        db = null;
+      }
+    }
+  }
+
+  /**
+   * Retrieve the state of an interrupted pull of this table, if it can be
+   * resumed. Any state that cannot be resumed is discarded.
+   *
+   * @param tableResource
+   * @param te
+   * @return null or the state to resume from.
+   */
+  private PullResumeState getPullResumeState(TableResource tableResource,
+      TableDefinitionEntry te) {
+    String tableId = te.getTableId();
+    SQLiteDatabase db = null;
+    try {
+      db = sc.getDatabase();
+      PullResumeState state = PullResumeState.read(db, tableId);
+      if (state == null) {
+        return null;
+      }
+      if (!state.isResumableFrom(te.getLastDataETag(), tableResource.getDataETag())) {
+        log.i(TAG, "discarding pull resume state for " + tableId
+            + " -- dataETag has changed since it was recorded");
+        PullResumeState.clear(db, tableId);
+        return null;
+      }
+      log.i(TAG, "resuming pull of " + tableId + " after " + state.getPagesApplied()
+          + " pages");
+      return state;
+    } finally {
+      if (db != null) {
+        db.close();
+        db = null;
+      }
+    }
+  }
+
+  /**
+   * Determine whether the table has local changes to push or attachments to
+   * sync, according to its dirty-row journal. Installs the journal's
+   * triggers on the table if this is the first time it is synced with them.
+   *
+   * @param tableId
+   * @param layout
+   * @return true if any local row is new_row, changed, deleted or
+   *         synced_pending_files.
+   */
+  private boolean hasDirtyLocalRows(String tableId, SyncRowLayout layout) {
+    SQLiteDatabase db = null;
+    try {
+      db = sc.getDatabase();
+      DirtyRowJournal.install(db, tableId);
+      DirtyRowJournal.installColumns(db, tableId, layout);
+      return DirtyRowJournal.hasDirtyRows(db, tableId);
+    } finally {
+      if (db != null) {
+        db.close();
+        db = null;
+      }
+    }
+  }
+
+  /**
+   * The outcomes of one batch of rows sent to the server, to be applied to
+   * the local table. Applying the outcomes also records the dataETag the
+   * server returned for the batch.
+   */
+  private final class BatchOutcomes implements Runnable {
+    private final TableDefinitionEntry te;
+    private final TableResource tableResource;
+    private final TableResult tableResult;
+    private final ArrayList<ColumnDefinition> orderedColumns;
+    private final SyncRowLayout layout;
+    private final boolean hasAttachments;
+    private final List<SyncRowPending> rowsToPushFileAttachments;
+    private final int totalAlteredRows;
+    private final List<SyncRow> segmentAlter;
+    private final RowOutcomeList outcomes;
+
+    BatchOutcomes(TableDefinitionEntry te, TableResource tableResource,
+        TableResult tableResult, ArrayList<ColumnDefinition> orderedColumns,
+        SyncRowLayout layout, boolean hasAttachments,
+        List<SyncRowPending> rowsToPushFileAttachments, int totalAlteredRows,
+        List<SyncRow> segmentAlter, RowOutcomeList outcomes) {
+      this.te = te;
+      this.tableResource = tableResource;
+      this.tableResult = tableResult;
+      this.orderedColumns = orderedColumns;
+      this.layout = layout;
+      this.hasAttachments = hasAttachments;
+      this.rowsToPushFileAttachments = rowsToPushFileAttachments;
+      this.totalAlteredRows = totalAlteredRows;
+      this.segmentAlter = segmentAlter;
+      this.outcomes = outcomes;
+    }
+
+    @Override
+    public void run() {
+      String tableId = tableResource.getTableId();
+      ArrayList<RowOutcome> specialCases = new ArrayList<RowOutcome>();
+
+      // process outcomes...
+      pushedRowCount = processRowOutcomes(te, tableResource, tableResult, orderedColumns,
+          layout, hasAttachments, rowsToPushFileAttachments, pushedRowCount,
+          totalAlteredRows, segmentAlter, outcomes.getRows(), specialCases);
+
+      // NOTE: specialCases should probably be deleted?
+      // This is the case if the user doesn't have permissions...
+      // TODO: figure out whether these are benign or need
+      // reporting....
+      if (!specialCases.isEmpty()) {
+        throw new IllegalStateException(
+            "update request rejected by the server -- do you have table synchronize privileges?");
+      }
+
+      // update our dataETag. Because the server will have failed with
+      // a CONFLICT (409) if our dataETag did not match ours at the
+      // time the update occurs, we are assured that there are no
+      // interleaved changes we are unaware of.
+      SQLiteDatabase db = null;
+
+      try {
+        db = sc.getDatabase();
+        ODKDatabaseUtils.get().updateDBTableETags(db, tableId,
+            tableResource.getSchemaETag(), outcomes.getDataETag());
+        // and be sure to update our in-memory objects...
+        te.setSchemaETag(tableResource.getSchemaETag());
+        te.setLastDataETag(outcomes.getDataETag());
+      } finally {
+        if (db != null) {
+          db.close();
+          db = null;
+        }
+      }
+    }
+  }
+
+  /**
+   * Sends one batch of rows to the server. Only the network request runs on
+   * the sender thread; its outcomes are applied on the sync thread.
+   */
+  private final class PushRequest implements Callable<RowOutcomeList> {
+    private final TableResource tableResource;
+    private final List<SyncRow> segmentAlter;
+    private volatile long elapsedMillis;
+
+    PushRequest(TableResource tableResource, List<SyncRow> segmentAlter) {
+      this.tableResource = tableResource;
+      this.segmentAlter = segmentAlter;
+    }
+
+    @Override
+    public RowOutcomeList call() throws ClientWebException, InvalidAuthTokenException {
+      long startTime = System.currentTimeMillis();
+      try {
+        return sc.getSynchronizer().alterRows(tableResource, segmentAlter);
+      } finally {
+        elapsedMillis = System.currentTimeMillis() - startTime;
+      }
+    }
+
+    /**
+     * @return the duration of the request alone, excluding any time it
+     *         waited to be collected.
+     */
+    long getElapsedMillis() {
+      return elapsedMillis;
+    }
+  }
+
+  /**
+   * Wait for a batch sent on the sender thread, rethrowing any failure.
+   *
+   * @param sending
+   * @return the server's outcomes for the batch
+   * @throws InterruptedException
+   * @throws InvalidAuthTokenException
+   */
+  private RowOutcomeList awaitRequest(Future<RowOutcomeList> sending)
+      throws InterruptedException, InvalidAuthTokenException {
+    try {
+      return sending.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      } else if (cause instanceof InvalidAuthTokenException) {
+        throw (InvalidAuthTokenException) cause;
+      }
+      throw new IllegalStateException(cause);
+    }
+  }
+
+  /**
+   * Apply the outcomes of a batch while another failure is propagating. A
+   * failure to apply them is logged rather than thrown so as not to mask the
+   * original one.
+   *
+   * @param tableId
+   * @param batch
+   */
+  private void applyOutcomesQuietly(String tableId, BatchOutcomes batch) {
+    try {
+      batch.run();
+    } catch (RuntimeException e) {
+      log.e(TAG, "unable to apply outcomes of a pushed batch for " + tableId + ": "
+          + e.toString());
+    }
+  }
+
+  /**
+   * @param tableId
+   * @return the number of local rows to push to the server.
+   */
+  private int countAlteredRows(String tableId) {
+    SQLiteDatabase db = null;
+    try {
+      db = sc.getDatabase();
+      return DirtyRowJournal.countDirtyRows(db, tableId, ALTERED_STATES);
+    } finally {
+      if (db != null) {
+        db.close();
+        db = null;
+      }
+    }
+  }
+
+  /**
+   * Read the next batch of local rows to push to the server.
+   *
+   * @param tableId
+   * @param layout
+   * @param afterRowId
+   *          null, or the rowId of the last row of the previous batch
+   * @param maxBytes
+   *          the estimated serialized size of the batch; the last row read
+   *          may take it over this size.
+   * @return at least one and at most PushBatchSizer.MAX_BATCH_ROWS rows, in
+   *         rowId order; empty when all have been read. If the server accepts
+   *         row deltas, the changed rows whose synced version is known carry
+   *         their changed columns.
+   */
+  private List<SyncRow> readAlteredRows(String tableId, SyncRowLayout layout,
+      String afterRowId, int maxBytes) {
+    List<SyncRow> rows = new ArrayList<SyncRow>();
+    SQLiteDatabase db = null;
+    Cursor c = null;
+    Cursor delta = null;
+    try {
+      db = sc.getDatabase();
+      c = DirtyRowJournal.queryDirtyRows(db, tableId, ALTERED_STATES, afterRowId,
+          PushBatchSizer.MAX_BATCH_ROWS);
+      int bytes = 0;
+      while (bytes < maxBytes && c.moveToNext()) {
+        SyncRow row = SyncRow.convertToSyncRow(sc.getValuePool(), layout, c);
+        rows.add(row);
+        bytes += PushBatchSizer.estimateBytes(row);
+      }
+      c.close();
+      c = null;
+
+      if (rows.isEmpty() || !sc.getSynchronizer().supportsRowDeltas()) {
+        return rows;
+      }
+      // both are in rowId order; merge-join the changed columns of just the
+      // rows of this batch.
+      delta = DirtyRowJournal.queryChangedColumns(db, tableId, afterRowId,
+          rows.get(rows.size() - 1).getRowId());
+      boolean hasDelta = delta.moveToFirst();
+      for (SyncRow row : rows) {
+        while (hasDelta
+            && ROW_ID_ORDER.compare(
+                delta.getString(DirtyRowJournal.CHANGED_ROW_ID_INDEX), row.getRowId()) < 0) {
+          hasDelta = delta.moveToNext();
+        }
+        if (hasDelta
+            && delta.getString(DirtyRowJournal.CHANGED_ROW_ID_INDEX).equals(row.getRowId())) {
+          boolean[] changedColumns = new boolean[layout.getColumnCount()];
+          do {
+            if (!delta.isNull(DirtyRowJournal.CHANGED_ELEMENT_KEY_INDEX)) {
+              int ordinal = layout.getOrdinal(delta
+                  .getString(DirtyRowJournal.CHANGED_ELEMENT_KEY_INDEX));
+              if (ordinal != -1) {
+                changedColumns[ordinal] = true;
+              }
+            }
+            hasDelta = delta.moveToNext();
+          } while (hasDelta
+              && delta.getString(DirtyRowJournal.CHANGED_ROW_ID_INDEX).equals(row.getRowId()));
+          row.setChangedColumns(changedColumns);
+        }
+      }
+    } finally {
+      if (delta != null && !delta.isClosed()) {
+        delta.close();
+      }
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+      if (db != null) {
+        db.close();
+        db = null;
+      }
+    }
+    return rows;
+  }
+
+  /**
+   * @param tableId
+   * @param layout
+   * @return the local rows whose attachments remain to be synced.
+   */
+  private List<SyncRowPending> readPendingFilesRows(String tableId, SyncRowLayout layout) {
+    List<SyncRowPending> rows = new ArrayList<SyncRowPending>();
+    SQLiteDatabase db = null;
+    Cursor c = null;
+    try {
+      db = sc.getDatabase();
+      c = DirtyRowJournal.queryDirtyRows(db, tableId, PENDING_FILES_STATES, null, 0);
+      while (c.moveToNext()) {
+        rows.add(new SyncRowPending(SyncRow.convertToSyncRow(sc.getValuePool(), layout, c),
+            false, true, true));
+      }
+    } finally {
+      if (c != null && !c.isClosed()) {
+        c.close();
+      }
+      if (db != null) {
+        db.close();
+        db = null;
+      }
+    }
+    return rows;
+  }
+
+  /**
+   * @param tableId
+   * @return true if the local data table holds no rows at all.
+   */
+  private boolean isLocalTableEmpty(String tableId) {
+    return !existsLocalRow(tableId, null, null);
+  }
+
+  /**
+   * Construct a SyncRow from a row received from the server, canonicalizing
+   * its metadata values through the session's value pool.
+   *
+   * @param row
+   *          a RowResource or RowOutcome
+   * @param layout
+   * @return
+   */
+  private SyncRow toSyncRow(Row row, SyncRowLayout layout) {
+    return SyncRow.convertToSyncRow(sc.getValuePool(), layout, row);
+  }
 
+  /**
+   * Determine whether any local row matches the where clause without reading
+   * the rows themselves.
+   *
+   * @param tableId
+   * @param whereClause
+   *          null to match any row
+   * @param selectionArgs
+   * @return true if at least one row in the local data table matches.
+   */
+  private boolean existsLocalRow(String tableId, String whereClause, String[] selectionArgs) {
     SQLiteDatabase db = null;
+    Cursor c = null;
+    try {
+      db = sc.getDatabase();
+      c = db.rawQuery("SELECT EXISTS(SELECT 1 FROM \"" + tableId + "\""
+          + ((whereClause == null) ? "" : (" WHERE " + whereClause)) + ")", selectionArgs);
+      return c.moveToFirst() && c.getInt(0) != 0;
+    } finally {
+      if (c != null) {
+        c.close();
+      }
+      if (db != null) {
+        db.close();
+        db = null;
+      }
+    }
+  }
 
-    // we can assume that all the local table properties should
-    // sync with the server.
-    for (TableResource tableResource : workingListOfTables) {
-      // Sync the local media files with the server if the table
-      // existed locally before we attempted downloading it.
+  /**
+   * Load one page of server rows into a local table that was empty when the
+   * pull began and has never been synced.
+   * <p>
+   * There is nothing to reconcile against, so the rows are written directly
+   * through a compiled insert statement without consulting the local table.
+   * Deleted rows are ignored.
+   * <p>
+   * _id is not unique in a data table, so a rowId reported more than once
+   * must not be inserted twice. Within the page, the last report of a rowId
+   * wins (as in SyncRowStagingTable). A rowId already inserted by an earlier
+   * page of this pass (e.g., if a page boundary moved on the server) is
+   * returned to the caller to be reconciled against the inserted row.
+   *
+   * @param loadedRowIds
+   *          the rowIds inserted by earlier pages of this pass; the rowIds
+   *          inserted by this page are added to it.
+   * @return the server changes to rows inserted by an earlier page.
+   */
+  private List<SyncRow> insertServerRowsIntoEmptyTable(TableResource tableResource,
+      SyncRowLayout layout, List<SyncRowPending> rowsToPushFileAttachments,
+      SyncRowPage rows, Set<String> loadedRowIds) {
 
-      String tableId = tableResource.getTableId();
-      TableDefinitionEntry te;
-      ArrayList<ColumnDefinition> orderedDefns;
-      String displayName;
-      try {
-        db = sc.getDatabase();
-        te = ODKDatabaseUtils.get().getTableDefinitionEntry(db, tableId);
-        orderedDefns = TableUtil.get().getColumnDefinitions(db, sc.getAppName(), tableId);
-        displayName = TableUtil.get().getLocalizedDisplayName(db, tableId);
-      } finally {
-        if (db != null) {
-          db.close();
-          db = null;
+    String tableId = tableResource.getTableId();
+    TableResult tableResult = sc.getTableResult(tableId);
+    boolean hasAttachments = layout.hasAttachments();
+
+    List<SyncRow> alreadyLoaded = new ArrayList<SyncRow>();
+    if (rows.getRows().isEmpty()) {
+      return alreadyLoaded;
+    }
+
+    // the last report of each rowId within this page
+    Map<String, SyncRow> latest = new LinkedHashMap<String, SyncRow>();
+    for (SyncRow serverRow : rows.getRows()) {
+      latest.remove(serverRow.getRowId());
+      latest.put(serverRow.getRowId(), serverRow);
+    }
+
+    perRowIncrement = 70.0 / ((double) (rows.getRows().size() + 1));
+    rowsProcessed = 0;
+
+    SQLiteDatabase db = null;
+    SyncRowBulkWriter writer = null;
+    try {
+      db = sc.getDatabase();
+      db.beginTransaction();
+      writer = new SyncRowBulkWriter(db, tableId, layout);
+
+      for (SyncRow serverRow : latest.values()) {
+        if (loadedRowIds.contains(serverRow.getRowId())) {
+          alreadyLoaded.add(serverRow);
+          continue;
+        }
+        if (serverRow.isDeleted()) {
+          continue;
+        }
+        boolean pendingFiles = hasAttachments && !serverRow.getUriFragments().isEmpty();
+        writer.insert(serverRow, pendingFiles ? SyncState.synced_pending_files
+            : SyncState.synced);
+        loadedRowIds.add(serverRow.getRowId());
+        tableResult.incLocalInserts();
+
+        if (pendingFiles) {
+          rowsToPushFileAttachments.add(new SyncRowPending(serverRow, true, true, true));
+        }
+        ++rowsProcessed;
+        if (rowsProcessed % ROWS_BETWEEN_PROGRESS_UPDATES == 0) {
+          sc.updateNotification(SyncProgressState.ROWS, R.string.inserting_local_row,
+              new Object[] { tableId, rowsProcessed, rows.getRows().size() },
+              10.0 + rowsProcessed * perRowIncrement, false);
         }
       }
 
-      synchronizeTableDataRowsAndAttachments(tableResource, te, orderedDefns, displayName,
-          deferInstanceAttachments);
-      sc.incMajorSyncStep();
+      db.setTransactionSuccessful();
+    } finally {
+      if (writer != null) {
+        writer.close();
+      }
+      if (db != null) {
+        db.endTransaction();
+        db.close();
+        db = null;
+      }
     }
+    return alreadyLoaded;
   }
 
-  private UserTable updateLocalRowsFromServerChanges(TableResource tableResource,
+  /**
+   * Apply one page of server changes to the local table.
+   * <p>
+   * The server rows are sorted by rowId and merge-joined against a
+   * forward-only cursor over the matching local rows (also ordered by rowId),
+   * classifying each change as an insert, update, delete or conflict in a
+   * single pass. Only the local rows touched by this page are read, and only
+   * one local row is held in memory at a time. If stageServerChanges is set,
+   * the classification is instead done in SQL against a staging table.
+   */
+  private void updateLocalRowsFromServerChanges(TableResource tableResource,
       TableDefinitionEntry te, ArrayList<ColumnDefinition> orderedColumns, String displayName,
-      boolean deferInstanceAttachments, ArrayList<ColumnDefinition> fileAttachmentColumns,
-      List<SyncRowPending> rowsToPushFileAttachments, UserTable localDataTable, RowResourceList rows)
-      throws IOException {
+      boolean deferInstanceAttachments, SyncRowLayout layout,
+      SyncRowComparator comparator, List<SyncRowPending> rowsToPushFileAttachments,
+      SyncRowPage rows) throws IOException {
 
     String tableId = tableResource.getTableId();
     TableResult tableResult = sc.getTableResult(tableId);
@@ -233,16 +1170,10 @@ public class ProcessRowDataChanges {
     if (rows.getRows().isEmpty()) {
       // nothing here -- let caller determine whether we are done or
       // whether we need to issue another request to the server.
-      return localDataTable;
+      return;
     }
 
-    Map<String, SyncRow> changedServerRows = new HashMap<String, SyncRow>();
-    for (RowResource row : rows.getRows()) {
-      SyncRow syncRow = new SyncRow(row.getRowId(), row.getRowETag(), row.isDeleted(),
-          row.getFormId(), row.getLocale(), row.getSavepointType(), row.getSavepointTimestamp(),
-          row.getSavepointCreator(), row.getFilterScope(), row.getValues(), fileAttachmentColumns);
-      changedServerRows.put(row.getRowId(), syncRow);
-    }
+    List<SyncRow> changedServerRows = rows.getRows();
 
     sc.updateNotification(SyncProgressState.ROWS, R.string.anaylzing_row_changes,
         new Object[] { tableId }, 7.0, false);
@@ -269,157 +1200,14 @@ public class ProcessRowDataChanges {
     // synced_pending_files
     List<SyncRowDataChanges> rowsToMoveToInConflictLocally = new ArrayList<SyncRowDataChanges>();
 
-    // loop through the localRow table
-    for (int i = 0; i < localDataTable.getNumberOfRows(); i++) {
-      Row localRow = localDataTable.getRowAtIndex(i);
-      String stateStr = localRow.getRawDataOrMetadataByElementKey(DataTableColumns.SYNC_STATE);
-      SyncState state = stateStr == null ? null : SyncState.valueOf(stateStr);
-
-      String rowId = localRow.getRowId();
-
-      // see if there is a change to this row from our current
-      // server change set.
-      SyncRow serverRow = changedServerRows.get(rowId);
-
-      if (serverRow == null) {
-        continue;
-      }
-
-      // OK -- the server is reporting a change (in serverRow) to the
-      // localRow.
-      // if the localRow is already in a in_conflict state, determine
-      // what its
-      // ConflictType is. If the localRow holds the earlier server-side
-      // change,
-      // then skip and look at the next record.
-      int localRowConflictTypeBeforeSync = -1;
-      if (state == SyncState.in_conflict) {
-        // we need to remove the in_conflict records that refer to the
-        // prior state of the server
-        String localRowConflictTypeBeforeSyncStr = localRow
-            .getRawDataOrMetadataByElementKey(DataTableColumns.CONFLICT_TYPE);
-        localRowConflictTypeBeforeSync = localRowConflictTypeBeforeSyncStr == null ? null : Integer
-            .parseInt(localRowConflictTypeBeforeSyncStr);
-        if (localRowConflictTypeBeforeSync == ConflictType.SERVER_DELETED_OLD_VALUES
-            || localRowConflictTypeBeforeSync == ConflictType.SERVER_UPDATED_UPDATED_VALUES) {
-          // This localRow holds the server values from a
-          // previously-identified conflict.
-          // Skip it -- we will clean up this copy later once we find
-          // the matching localRow
-          // that holds the locally-changed values that were in conflict
-          // with this earlier
-          // set of server values.
-          continue;
-        }
-      }
-
-      // remove this server row from the map of changes reported by the
-      // server.
-      // the following decision tree will always place the row into one
-      // of the
-      // local action lists.
-      changedServerRows.remove(rowId);
-
-      // OK the record is either a simple local record or a local
-      // in_conflict record
-      if (state == SyncState.synced || state == SyncState.synced_pending_files) {
-        // the server's change should be applied locally.
-        //
-        // the file attachments might be stale locally,
-        // but those are dealt with separately.
-
-        if (serverRow.isDeleted()) {
-          rowsToDeleteLocally.add(new SyncRowDataChanges(serverRow, SyncRow.convertToSyncRow(
-              orderedColumns, fileAttachmentColumns, localRow),
-              (state == SyncState.synced_pending_files)));
-        } else {
-          rowsToUpdateLocally.add(new SyncRowDataChanges(serverRow, SyncRow.convertToSyncRow(
-              orderedColumns, fileAttachmentColumns, localRow),
-              (state == SyncState.synced_pending_files)));
-        }
-      } else if (serverRow.isDeleted()
-          && (state == SyncState.deleted || (state == SyncState.in_conflict && localRowConflictTypeBeforeSync == ConflictType.LOCAL_DELETED_OLD_VALUES))) {
-        // this occurs if
-        // (1) a delete request was never ACKed but it was performed
-        // on the server.
-        // (2) if there is an unresolved conflict held locally with the
-        // local action being to delete the record, and the prior server
-        // state being a value change, but the newly sync'd state now
-        // reflects a deletion by another party.
-        //
-
-        // no need to worry about server in_conflict records.
-        // any server in_conflict rows will be deleted during the delete
-        // step
-        rowsToDeleteLocally.add(new SyncRowDataChanges(serverRow, SyncRow.convertToSyncRow(
-            orderedColumns, fileAttachmentColumns, localRow), false));
-      } else {
-        // SyncState.deleted and server is not deleting
-        // SyncState.new_row and record exists on server
-        // SyncState.changed and new change on server
-        // SyncState.in_conflict and new change on server
-
-        // no need to worry about server in_conflict records.
-        // any server in_conflict rows will be cleaned up during the
-        // update of the in_conflict state.
-
-        // figure out what the localRow conflict type should be...
-        Integer localRowConflictType;
-        if (state == SyncState.changed) {
-          // SyncState.changed and new change on server
-          localRowConflictType = ConflictType.LOCAL_UPDATED_UPDATED_VALUES;
-          log.i(TAG, "local row was in sync state CHANGED, changing to "
-              + "IN_CONFLICT and setting conflict type to: " + localRowConflictType);
-        } else if (state == SyncState.new_row) {
-          // SyncState.new_row and record exists on server
-          // The 'new_row' case occurs if an insert is never ACKed but
-          // completes successfully on the server.
-          localRowConflictType = ConflictType.LOCAL_UPDATED_UPDATED_VALUES;
-          log.i(TAG, "local row was in sync state NEW_ROW, changing to "
-              + "IN_CONFLICT and setting conflict type to: " + localRowConflictType);
-        } else if (state == SyncState.deleted) {
-          // SyncState.deleted and server is not deleting
-          localRowConflictType = ConflictType.LOCAL_DELETED_OLD_VALUES;
-          log.i(TAG, "local row was in sync state DELETED, changing to "
-              + "IN_CONFLICT and updating conflict type to: " + localRowConflictType);
-        } else if (state == SyncState.in_conflict) {
-          // SyncState.in_conflict and new change on server
-          // leave the local conflict type unchanged (retrieve it and
-          // use it).
-          localRowConflictType = localRowConflictTypeBeforeSync;
-          log.i(TAG, "local row was in sync state IN_CONFLICT, leaving as "
-              + "IN_CONFLICT and leaving conflict type unchanged as: "
-              + localRowConflictTypeBeforeSync);
-        } else {
-          throw new IllegalStateException("Unexpected state encountered");
-        }
-        SyncRowDataChanges syncRow = new SyncRowDataChanges(serverRow, SyncRow.convertToSyncRow(
-            orderedColumns, fileAttachmentColumns, localRow), false, localRowConflictType);
-
-        if (!syncRow.identicalValues(orderedColumns)) {
-          if (syncRow.identicalValuesExceptRowETagAndFilterScope(orderedColumns)) {
-            // just apply the server RowETag and filterScope to the
-            // local row
-            rowsToUpdateLocally.add(new SyncRowDataChanges(serverRow, SyncRow.convertToSyncRow(
-                orderedColumns, fileAttachmentColumns, localRow), true));
-          } else {
-            rowsToMoveToInConflictLocally.add(syncRow);
-          }
-        } else {
-          log.w(TAG, "identical rows returned from server -- SHOULDN'T THESE NOT HAPPEN?");
-        }
-      }
-    }
-
-    // Now, go through the remaining serverRows in the rows map. That
-    // map now contains only row changes that don't affect any existing
-    // localRow. If the server change is not a row-deletion / revoke-row
-    // action, then insert the serverRow locally.
-    for (SyncRow serverRow : changedServerRows.values()) {
-      boolean isDeleted = serverRow.isDeleted();
-      if (!isDeleted) {
-        rowsToInsertLocally.add(new SyncRowDataChanges(serverRow, null, false));
-      }
+    if (stageServerChanges) {
+      classifyServerChangesInDb(tableId, changedServerRows, layout, comparator,
+          rowsToInsertLocally, rowsToUpdateLocally, rowsToDeleteLocally,
+          rowsToMoveToInConflictLocally);
+    } else {
+      classifyServerChangesByMergeJoin(tableId, changedServerRows, layout, comparator,
+          rowsToInsertLocally, rowsToUpdateLocally, rowsToDeleteLocally,
+          rowsToMoveToInConflictLocally);
     }
 
     //
@@ -433,7 +1221,7 @@ public class ProcessRowDataChanges {
 
     perRowIncrement = 70.0 / ((double) (totalChange + 1));
     rowsProcessed = 0;
-    boolean hasAttachments = !fileAttachmentColumns.isEmpty();
+    boolean hasAttachments = layout.hasAttachments();
 
     // i.e., we have created entries in the various action lists
     // for all the actions we should take.
@@ -445,40 +1233,46 @@ public class ProcessRowDataChanges {
     // / PERFORM LOCAL DATABASE CHANGES
     // / PERFORM LOCAL DATABASE CHANGES
 
+    List<String> deletedRowIds;
     {
       SQLiteDatabase db = null;
+      SyncRowBulkWriter writer = null;
       try {
         db = sc.getDatabase();
 
         // this will individually move some files to the locally-deleted state
         // if we cannot sync file attachments in those rows.
         pushLocalAttachmentsBeforeDeleteRowsInDb(db, tableResource, rowsToDeleteLocally,
-            fileAttachmentColumns, deferInstanceAttachments, tableResult);
+            layout, deferInstanceAttachments, tableResult);
 
         // and now do a big transaction to update the local database.
         db.beginTransaction();
 
-        deleteRowsInDb(db, tableResource, rowsToDeleteLocally, fileAttachmentColumns,
-            deferInstanceAttachments, tableResult);
+        // the deletes, inserts and updates of the page share one set of
+        // compiled statements.
+        writer = new SyncRowBulkWriter(db, tableId, layout);
+
+        deletedRowIds = deleteRowsInDb(writer, tableResource, rowsToDeleteLocally,
+            tableResult);
 
-        insertRowsInDb(db, tableResource, orderedColumns, rowsToInsertLocally,
+        insertRowsInDb(writer, tableResource, rowsToInsertLocally,
             rowsToPushFileAttachments, hasAttachments, tableResult);
 
-        updateRowsInDb(db, tableResource, orderedColumns, rowsToUpdateLocally,
+        updateRowsInDb(writer, tableResource, rowsToUpdateLocally,
             rowsToPushFileAttachments, hasAttachments, tableResult);
 
         conflictRowsInDb(db, tableResource, orderedColumns, rowsToMoveToInConflictLocally,
             rowsToPushFileAttachments, hasAttachments, tableResult);
 
-        localDataTable = ODKDatabaseUtils.get().rawSqlQuery(db, sc.getAppName(), tableId,
-            orderedColumns, null, null, null, null, DataTableColumns.ID, "ASC");
-
         // TODO: fix this for synced_pending_files
         // We likely need to relax this constraint on the
         // server?
 
         db.setTransactionSuccessful();
       } finally {
+        if (writer != null) {
+          writer.close();
+        }
         if (db != null) {
           db.endTransaction();
           db.close();
@@ -487,7 +1281,32 @@ public class ProcessRowDataChanges {
       }
     }
 
-    return localDataTable;
+    // the rows are gone; now remove their attachments.
+    for (String rowId : deletedRowIds) {
+      deleteInstanceFolder(new File(ODKFileUtils.getInstanceFolder(sc.getAppName(), tableId,
+          rowId)));
+    }
+  }
+
+  /**
+   * Recursively delete the instance folder of a row (i.e., its attachments).
+   *
+   * @param folder
+   */
+  private void deleteInstanceFolder(File folder) {
+    File[] contents = folder.listFiles();
+    if (contents != null) {
+      for (File f : contents) {
+        if (f.isDirectory()) {
+          deleteInstanceFolder(f);
+        } else if (!f.delete()) {
+          log.w(TAG, "unable to delete attachment " + f.getAbsolutePath());
+        }
+      }
+    }
+    if (folder.exists() && !folder.delete()) {
+      log.w(TAG, "unable to delete instance folder " + folder.getAbsolutePath());
+    }
   }
 
   /**
@@ -519,12 +1338,10 @@ public class ProcessRowDataChanges {
     boolean attachmentSyncSuccessful = false;
     boolean rowDataSyncSuccessful = false;
 
-    ArrayList<ColumnDefinition> fileAttachmentColumns = new ArrayList<ColumnDefinition>();
-    for (ColumnDefinition cd : orderedColumns) {
-      if (cd.getType().getDataType() == ElementDataType.rowpath) {
-        fileAttachmentColumns.add(cd);
-      }
-    }
+    // the layout of the rows of this table; notes the file attachment
+    // (rowpath) columns.
+    SyncRowLayout layout = new SyncRowLayout(orderedColumns);
+    SyncRowComparator comparator = new SyncRowComparator(layout);
 
     log.i(
         TAG,
@@ -552,6 +1369,11 @@ public class ProcessRowDataChanges {
 
     boolean containsConflicts = false;
 
+    // page size for row fetches; adapts to the link and device speed
+    AdaptivePageSizer pageSizer = new AdaptivePageSizer();
+    // batch size for row pushes; adapts to the row size and link speed
+    PushBatchSizer batchSizer = new PushBatchSizer();
+
     try {
       log.i(TAG, "REST " + tableId);
 
@@ -596,31 +1418,18 @@ public class ProcessRowDataChanges {
           try {
             // //////////////////////////////////////////////////
             // //////////////////////////////////////////////////
-            // get all the rows in the data table -- we will iterate through
-            // them all.
-            UserTable localDataTable;
-            {
-              SQLiteDatabase db = null;
-
-              try {
-                db = sc.getDatabase();
-                localDataTable = ODKDatabaseUtils.get().rawSqlQuery(db, sc.getAppName(), tableId,
-                    orderedColumns, null, null, null, null, DataTableColumns.ID, "ASC");
-              } finally {
-                if (db != null) {
-                  db.close();
-                  db = null;
-                }
-              }
-            }
+            // probe the data table rather than reading it. Pages are
+            // reconciled against the rows they touch and the rows to
+            // push are read once the pull completes.
 
-            containsConflicts = localDataTable.hasConflictRows();
+            containsConflicts = existsLocalRow(tableId, DataTableColumns.CONFLICT_TYPE
+                + " IS NOT NULL", null);
 
             // //////////////////////////////////////////////////
             // //////////////////////////////////////////////////
             // fail the sync on this table if there are checkpoint rows.
 
-            if (localDataTable.hasCheckpointRows()) {
+            if (existsLocalRow(tableId, DataTableColumns.SAVEPOINT_TYPE + " IS NULL", null)) {
               // should only be reachable on the first time through this for
               // loop...
               tableResult.setMessage(sc.getString(R.string.table_contains_checkpoints));
@@ -628,6 +1437,22 @@ public class ProcessRowDataChanges {
               return;
             }
 
+            // //////////////////////////////////////////////////
+            // //////////////////////////////////////////////////
+            // nothing to do if the server has no changes we have not
+            // seen and we have no changes the server has not seen.
+
+            boolean hasLocalChanges = hasDirtyLocalRows(tableId, layout);
+
+            if (!hasLocalChanges && te.getLastDataETag() != null
+                && te.getLastDataETag().equals(tableResource.getDataETag())) {
+              log.i(TAG, "no server or local changes for " + tableId);
+              tableResult.setPulledServerData(true);
+              tableResult.setPushedLocalData(true);
+              updateToServerSuccessful = true;
+              continue;
+            }
+
             // //////////////////////////////////////////////////
             // //////////////////////////////////////////////////
             // Pull changes from the server...
@@ -638,88 +1463,147 @@ public class ProcessRowDataChanges {
                 new Object[] { tableId }, 5.0, false);
 
             boolean pullCompletedSuccessfully = false;
-            String firstDataETag = null;
-            String websafeResumeCursor = null;
-            for (;;) {
-              RowResourceList rows = null;
-
-              try {
-                rows = sc.getSynchronizer().getUpdates(tableResource, te.getLastDataETag(),
-                    websafeResumeCursor);
-                if (firstDataETag == null) {
-                  firstDataETag = rows.getDataETag();
+            // a table that has never been synced and has no local rows
+            // can be loaded directly, without reconciling each row.
+            // Only the first pass is loaded this way; any changes the
+            // server makes while we are pulling arrive in later passes
+            // and are reconciled as usual.
+            boolean loadingEmptyTable = (te.getLastDataETag() == null)
+                && isLocalTableEmpty(tableId);
+            Set<String> loadedRowIds = new HashSet<String>();
+            // if an earlier pull from this same dataETag was interrupted,
+            // continue from the last page it applied.
+            PullResumeState resumeFrom = null;
+            if (!loadingEmptyTable) {
+              resumeFrom = getPullResumeState(tableResource, te);
+            }
+            int pagesApplied = (resumeFrom == null) ? 0 : resumeFrom.getPagesApplied();
+            // fetch the next page from the server while we apply the
+            // current one to the database.
+            RowPagePrefetcher prefetcher = new RowPagePrefetcher(sc.getSynchronizer(),
+                tableResource, te.getLastDataETag(), pageSizer, resumeFrom, layout,
+                sc.getValuePool());
+            prefetcher.start();
+            try {
+              for (;;) {
+                RowPagePrefetcher.Page page = prefetcher.take();
+
+                Exception e = page.getError();
+                if (e != null) {
+                  if (e instanceof ClientWebException) {
+                    ClientWebException cwe = (ClientWebException) e;
+                    if (cwe.getResponse() != null
+                        && cwe.getResponse().getStatusCode() == HttpStatus.SC_UNAUTHORIZED) {
+                      clientAuthException("synchronizeTable - pulling data down from server",
+                          tableId, e, tableResult);
+                    } else {
+                      clientWebException("synchronizeTable - pulling data down from server",
+                          tableId, cwe, tableResult);
+                    }
+                  } else if (e instanceof InvalidAuthTokenException) {
+                    clientAuthException("synchronizeTable - pulling data down from server",
+                        tableId, e, tableResult);
+                  } else {
+                    exception("synchronizeTable -  pulling data down from server", tableId, e,
+                        tableResult);
+                  }
+                  break;
                 }
-              } catch (ClientWebException e) {
-                if (e.getResponse() != null
-                    && e.getResponse().getStatusCode() == HttpStatus.SC_UNAUTHORIZED) {
-                  clientAuthException("synchronizeTable - pulling data down from server", tableId,
-                      e, tableResult);
-                } else {
-                  clientWebException("synchronizeTable - pulling data down from server", tableId,
-                      e, tableResult);
+
+                if (page.getRows() != null) {
+                  long applyStartTime = System.currentTimeMillis();
+                  if (loadingEmptyTable) {
+                    List<SyncRow> alreadyLoaded = insertServerRowsIntoEmptyTable(tableResource,
+                        layout, rowsToPushFileAttachments, page.getRows(), loadedRowIds);
+                    if (!alreadyLoaded.isEmpty()) {
+                      updateLocalRowsFromServerChanges(tableResource, te, orderedColumns,
+                          displayName, deferInstanceAttachments, layout, comparator,
+                          rowsToPushFileAttachments, new SyncRowPage(alreadyLoaded, page
+                              .getRows().getDataETag(), page.getRows().getWebSafeResumeCursor(),
+                              page.getRows().isHasMoreResults()));
+                    }
+                  } else {
+                    updateLocalRowsFromServerChanges(tableResource, te, orderedColumns,
+                        displayName, deferInstanceAttachments, layout,
+                        comparator, rowsToPushFileAttachments, page.getRows());
+                  }
+                  pageSizer.recordApply(page.getRows().getRows().size(),
+                      System.currentTimeMillis() - applyStartTime);
+                  ++pagesApplied;
+
+                  if (!page.isEndOfPass()) {
+                    // remember how far we got in case we are interrupted.
+                    // Re-applying a page is harmless, so this need not be
+                    // in the same transaction as the page itself.
+                    PullResumeState state = new PullResumeState(tableId,
+                        te.getLastDataETag(), page.getChangeSetDataETag(),
+                        page.getPassDataETag(), page.getResumeCursor(), pagesApplied,
+                        tableResource.getDataETag());
+                    SQLiteDatabase db = null;
+                    try {
+                      db = sc.getDatabase();
+                      state.write(db);
+                    } finally {
+                      if (db != null) {
+                        db.close();
+                        db = null;
+                      }
+                    }
+                  }
                 }
-                break;
-              } catch (InvalidAuthTokenException e) {
-                clientAuthException("synchronizeTable - pulling data down from server", tableId, e,
-                    tableResult);
-                break;
-              } catch (Exception e) {
-                exception("synchronizeTable -  pulling data down from server", tableId, e,
-                    tableResult);
-                break;
-              }
 
-              localDataTable = updateLocalRowsFromServerChanges(tableResource, te, orderedColumns,
-                  displayName, deferInstanceAttachments, fileAttachmentColumns,
-                  rowsToPushFileAttachments, localDataTable, rows);
-
-              if (rows.isHasMoreResults()) {
-                websafeResumeCursor = rows.getWebSafeResumeCursor();
-              } else {
-                // ////////////////////////////////
-                // ////////////////////////////////
-                // Success
-                //
-                // We have to update our dataETag here so that the server
-                // knows we saw its changes. Otherwise it won't let us
-                // put up new information.
-                //
-                // Note that we may have additional changes from
-                // subsequent dataETags (changeSets). We only 
-                // break out of this loop if the dataETag on the 
-                // last request matches the firstDataETag. Otherwise,
-                // we re-issue a fetch using the firstDataETag as 
-                // a starting point.
-                {
+                if (page.isEndOfPass()) {
+                  loadingEmptyTable = false;
+                  loadedRowIds.clear();
+                  // ////////////////////////////////
+                  // ////////////////////////////////
+                  // Success
+                  //
+                  // We have to update our dataETag here so that the server
+                  // knows we saw its changes. Otherwise it won't let us
+                  // put up new information.
+                  //
+                  // When pulling changeSets, each changeSet is its own
+                  // pass, so this records our progress through them.
+                  //
+                  // If the server changed while we were pulling, the
+                  // prefetcher has already re-issued a fetch using this
+                  // pass's dataETag as a starting point.
+                  String firstDataETag = page.getPassDataETag();
                   SQLiteDatabase db = null;
 
                   try {
                     db = sc.getDatabase();
+                    db.beginTransaction();
                     // update the dataETag to the one returned by the first
                     // of the fetch queries, above.
                     ODKDatabaseUtils.get().updateDBTableETags(db, tableId,
                         tableResource.getSchemaETag(), firstDataETag);
-                    // and be sure to update our in-memory objects...
-                    te.setSchemaETag(tableResource.getSchemaETag());
-                    te.setLastDataETag(firstDataETag);
-                    tableResource.setDataETag(firstDataETag);
+                    // the pass is complete; nothing to resume.
+                    PullResumeState.clear(db, tableId);
+                    db.setTransactionSuccessful();
                   } finally {
                     if (db != null) {
+                      db.endTransaction();
                       db.close();
                       db = null;
                     }
                   }
+                  // and be sure to update our in-memory objects...
+                  te.setSchemaETag(tableResource.getSchemaETag());
+                  te.setLastDataETag(firstDataETag);
+                  tableResource.setDataETag(firstDataETag);
+                  pagesApplied = 0;
                 }
-                
-                if ( (firstDataETag == null) ? (rows.getDataETag() != null) : !firstDataETag.equals(rows.getDataETag()) ) {
-                  // re-issue request...
-                  websafeResumeCursor = null;
-                } else {
+
+                if (page.isLastPage()) {
                   // success -- exit the update loop...
                   pullCompletedSuccessfully = true;
                   break;
                 }
               }
+            } finally {
+              prefetcher.cancel();
             }
 
             // If we made it here and there was data, then we successfully
@@ -732,8 +1616,9 @@ public class ProcessRowDataChanges {
 
             // ////////////////////////////////
             // ////////////////////////////////
-            // OK. We can now scan through the localDataTable for changes that
-            // should be sent up to the server.
+            // OK. Now that all server changes are applied, read the local
+            // rows that have changes to push or attachments to sync. Only
+            // the rows listed in the dirty-row journal are read.
 
             sc.updateNotification(SyncProgressState.ROWS, R.string.anaylzing_row_changes,
                 new Object[] { tableId }, 70.0, false);
@@ -743,40 +1628,24 @@ public class ProcessRowDataChanges {
              **************************/
             // these are all the various actions we will need to take:
 
+            // localRow SyncState.synced_pending_files -- push attachments
+            rowsToPushFileAttachments.addAll(readPendingFilesRows(tableId, layout));
+
             // localRow SyncState.new_row no changes pulled from server
             // localRow SyncState.changed no changes pulled from server
             // localRow SyncState.deleted no changes pulled from server
-            List<SyncRow> allAlteredRows = new ArrayList<SyncRow>();
-
-            // loop through the localRow table
-            for (int i = 0; i < localDataTable.getNumberOfRows(); i++) {
-              Row localRow = localDataTable.getRowAtIndex(i);
-              String stateStr = localRow
-                  .getRawDataOrMetadataByElementKey(DataTableColumns.SYNC_STATE);
-              SyncState state = stateStr == null ? null : SyncState.valueOf(stateStr);
-
-              String rowId = localRow.getRowId();
-
-              // the local row wasn't impacted by a server change
-              // see if this local row should be pushed to the server.
-              if (state == SyncState.new_row || state == SyncState.changed
-                  || state == SyncState.deleted) {
-                allAlteredRows.add(SyncRow.convertToSyncRow(orderedColumns, fileAttachmentColumns,
-                    localRow));
-              } else if (state == SyncState.synced_pending_files) {
-                rowsToPushFileAttachments.add(new SyncRowPending(SyncRow.convertToSyncRow(
-                    orderedColumns, fileAttachmentColumns, localRow), false, true, true));
-              }
-            }
+            //
+            // these are streamed to the server a batch at a time, below.
+            int totalAlteredRows = countAlteredRows(tableId);
 
             // We know the changes for the server. Determine the per-row
             // percentage for applying all these changes
 
-            int totalChange = allAlteredRows.size() + rowsToPushFileAttachments.size();
+            int totalChange = totalAlteredRows + rowsToPushFileAttachments.size();
 
             perRowIncrement = 90.0 / ((double) (totalChange + 1));
             rowsProcessed = 0;
-            boolean hasAttachments = !fileAttachmentColumns.isEmpty();
+            boolean hasAttachments = layout.hasAttachments();
 
             // i.e., we have created entries in the various action lists
             // for all the actions we should take.
@@ -789,73 +1658,140 @@ public class ProcessRowDataChanges {
             // SERVER CHANGES
             // SERVER CHANGES
 
-            if (allAlteredRows.size() != 0) {
+            if (totalAlteredRows != 0) {
               tableResult.setHadLocalDataChanges(true);
             }
 
             // idempotent interface means that the interactions
             // for inserts, updates and deletes are identical.
-            int count = 0;
-
-            ArrayList<RowOutcome> specialCases = new ArrayList<RowOutcome>();
+            pushedRowCount = 0;
+
+            // read, send and apply the outcomes of a batch of rows at a
+            // time, so that only one batch is ever held in memory (two
+            // when pipelining). Batches are read in rowId order, each
+            // starting after the last rowId of the previous one, and are
+            // sized by their estimated serialized size (see
+            // PushBatchSizer).
+            //
+            // When pipelining, each batch is sent on the sender thread
+            // while the sync thread applies the outcomes of the batch
+            // before it. All database access stays on the sync thread, and
+            // outcomes are applied one batch at a time, in order, so the
+            // dataETags are recorded in the order the server issued them.
+            ExecutorService sender = pipelinePush ? Executors.newSingleThreadExecutor() : null;
+            // outcomes received but not yet applied
+            BatchOutcomes unapplied = null;
+            // the batch on the sender thread
+            List<SyncRow> sendingSegment = null;
+            Future<RowOutcomeList> sending = null;
+            try {
+              String lastRowId = null;
+              // batches (or halves of them) waiting to be sent, in order.
+              LinkedList<List<SyncRow>> segments = new LinkedList<List<SyncRow>>();
+              for (;;) {
+                if (segments.isEmpty()) {
+                  List<SyncRow> batch = readAlteredRows(tableId, layout, lastRowId,
+                      batchSizer.getBatchBytes());
+                  if (batch.isEmpty()) {
+                    break;
+                  }
+                  lastRowId = batch.get(batch.size() - 1).getRowId();
+                  segments.add(batch);
+                }
+                List<SyncRow> segmentAlter = segments.removeFirst();
+                int segmentBytes = PushBatchSizer.estimateBytes(segmentAlter);
+                boolean fullBatch = (segmentBytes >= batchSizer.getBatchBytes())
+                    || (segmentAlter.size() >= PushBatchSizer.MAX_BATCH_ROWS);
+
+                PushRequest request = new PushRequest(tableResource, segmentAlter);
+                if (sender != null) {
+                  sendingSegment = segmentAlter;
+                  sending = sender.submit(request);
+                  if (unapplied != null) {
+                    BatchOutcomes previous = unapplied;
+                    unapplied = null;
+                    previous.run();
+                  }
+                }
 
-            if (!allAlteredRows.isEmpty()) {
-              int offset = 0;
-              while (offset < allAlteredRows.size()) {
-                // alter UPSERT_BATCH_SIZE rows at a time to the server
-                int max = offset + UPSERT_BATCH_SIZE;
-                if (max > allAlteredRows.size()) {
-                  max = allAlteredRows.size();
+                RowOutcomeList outcomes;
+                try {
+                  if (sending == null) {
+                    outcomes = request.call();
+                  } else {
+                    Future<RowOutcomeList> sent = sending;
+                    sending = null;
+                    sendingSegment = null;
+                    outcomes = awaitRequest(sent);
+                  }
+                } catch (RuntimeException e) {
+                  if (segmentAlter.size() > 1 && PushBatchSizer.isBatchTooLarge(e)) {
+                    // send it as two halves instead. If a timed-out request
+                    // was in fact applied by the server, the first half
+                    // fails with a 409 and we re-pull, as for any other
+                    // interleaved change.
+                    log.i(TAG, "splitting batch of " + segmentAlter.size() + " rows for "
+                        + tableId + ": " + e.toString());
+                    batchSizer.recordFailure();
+                    int half = segmentAlter.size() / 2;
+                    segments.addFirst(segmentAlter.subList(half, segmentAlter.size()));
+                    segments.addFirst(segmentAlter.subList(0, half));
+                    continue;
+                  }
+                  throw e;
                 }
-                List<SyncRow> segmentAlter = allAlteredRows.subList(offset, max);
-                RowOutcomeList outcomes = sc.getSynchronizer().alterRows(tableResource,
-                    segmentAlter);
+                batchSizer.recordUpload(segmentBytes, fullBatch, request.getElapsedMillis());
 
                 if (outcomes.getRows().size() != segmentAlter.size()) {
                   throw new IllegalStateException("Unexpected partial return?");
                 }
 
-                // process outcomes...
-                count = processRowOutcomes(te, tableResource, tableResult, orderedColumns,
-                    fileAttachmentColumns, hasAttachments, rowsToPushFileAttachments, count,
-                    allAlteredRows.size(), segmentAlter, outcomes.getRows(), specialCases);
-
-                // NOTE: specialCases should probably be deleted?
-                // This is the case if the user doesn't have permissions...
-                // TODO: figure out whether these are benign or need
-                // reporting....
-                if (!specialCases.isEmpty()) {
-                  throw new IllegalStateException(
-                      "update request rejected by the server -- do you have table synchronize privileges?");
-                }
-
-                // update our dataETag. Because the server will have failed with
-                // a CONFLICT (409) if our dataETag did not match ours at the
-                // time the update occurs, we are assured that there are no
-                // interleaved changes we are unaware of.
-                {
-                  SQLiteDatabase db = null;
+                // the next batch must be sent against the dataETag this
+                // one produced, whether or not its outcomes are applied
+                // yet.
+                tableResource.setDataETag(outcomes.getDataETag());
 
-                  try {
-                    db = sc.getDatabase();
-                    // update the dataETag to the one returned by the first
-                    // of the fetch queries, above.
-                    ODKDatabaseUtils.get().updateDBTableETags(db, tableId,
-                        tableResource.getSchemaETag(), outcomes.getDataETag());
-                    // and be sure to update our in-memory objects...
-                    te.setSchemaETag(tableResource.getSchemaETag());
-                    te.setLastDataETag(outcomes.getDataETag());
+                BatchOutcomes batch = new BatchOutcomes(te, tableResource, tableResult,
+                    orderedColumns, layout, hasAttachments, rowsToPushFileAttachments,
+                    totalAlteredRows, segmentAlter, outcomes);
+                if (sender == null) {
+                  batch.run();
+                } else {
+                  unapplied = batch;
+                }
+              }
+              if (unapplied != null) {
+                BatchOutcomes previous = unapplied;
+                unapplied = null;
+                previous.run();
+              }
+            } finally {
+              // a failure is propagating (e.g., a 409 CONFLICT, or a failure
+              // to apply a batch). The server accepted or may yet accept
+              // these batches, so apply what it returned before going back
+              // to the pull phase, lest those rows stay changed with stale
+              // rowETags.
+              if (unapplied != null) {
+                applyOutcomesQuietly(tableId, unapplied);
+              }
+              if (sending != null) {
+                try {
+                  RowOutcomeList outcomes = awaitRequest(sending);
+                  if (outcomes.getRows().size() == sendingSegment.size()) {
                     tableResource.setDataETag(outcomes.getDataETag());
-                  } finally {
-                    if (db != null) {
-                      db.close();
-                      db = null;
-                    }
+                    applyOutcomesQuietly(tableId, new BatchOutcomes(te, tableResource,
+                        tableResult, orderedColumns, layout, hasAttachments,
+                        rowsToPushFileAttachments, totalAlteredRows, sendingSegment, outcomes));
                   }
+                } catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+                } catch (Exception e) {
+                  log.e(TAG, "pushed batch for " + tableId + " failed after an earlier failure: "
+                      + e.toString());
                 }
-
-                // process next segment...
-                offset = max;
+              }
+              if (sender != null) {
+                sender.shutdown();
               }
             }
 
@@ -867,6 +1803,21 @@ public class ProcessRowDataChanges {
             // server, we know that our data records are consistent and
             // our processing is complete.
             updateToServerSuccessful = true;
+
+            // forget the rows that are now clean.
+            {
+              SQLiteDatabase db = null;
+
+              try {
+                db = sc.getDatabase();
+                DirtyRowJournal.prune(db, tableId);
+              } finally {
+                if (db != null) {
+                  db.close();
+                  db = null;
+                }
+              }
+            }
           } catch (ClientWebException e) {
             if (e.getResponse().getStatusCode() == HttpStatus.SC_CONFLICT) {
               // expected -- there were row updates by another client
@@ -903,20 +1854,31 @@ public class ProcessRowDataChanges {
           try {
             attachmentSyncSuccessful = (rowsToPushFileAttachments.isEmpty());
             // And try to push the file attachments...
+            //
+            // The attachments of several rows are transferred at once (see
+            // AttachmentTransferEngine). Their outcomes are applied here, in
+            // the order of rowsToPushFileAttachments. Only a window of rows
+            // is submitted at a time; another is submitted as each
+            // completes.
             int count = 0;
             boolean attachmentSyncFailed = false;
-            for (SyncRowPending syncRowPending : rowsToPushFileAttachments) {
-              boolean outcome = true;
-              if (!syncRowPending.onlyGetFiles()) {
-                outcome = sc.getSynchronizer().putFileAttachments(
-                    tableResource.getInstanceFilesUri(), tableId, syncRowPending,
+            AttachmentTransferEngine transfers = new AttachmentTransferEngine(
+                sc.getSynchronizer(), attachmentTransferThreads, tableId);
+            try {
+              Iterator<SyncRowPending> toSubmit = rowsToPushFileAttachments.iterator();
+              int window = 2 * Math.max(1, attachmentTransferThreads);
+              for (int i = 0; i < window && toSubmit.hasNext(); ++i) {
+                transfers.submit(tableResource.getInstanceFilesUri(), tableId, toSubmit.next(),
                     deferInstanceAttachments);
               }
-              if (outcome) {
-                outcome = sc.getSynchronizer().getFileAttachments(
-                    tableResource.getInstanceFilesUri(), tableId, syncRowPending,
-                    deferInstanceAttachments);
-
+              while (transfers.hasPending()) {
+                AttachmentTransferEngine.Completion completion = transfers.take();
+                if (toSubmit.hasNext()) {
+                  transfers.submit(tableResource.getInstanceFilesUri(), tableId,
+                      toSubmit.next(), deferInstanceAttachments);
+                }
+                SyncRowPending syncRowPending = completion.getRow();
+                boolean outcome = completion.isSuccess();
                 if (syncRowPending.updateSyncState()) {
                   if (outcome) {
                     // OK -- we succeeded in putting/getting all attachments
@@ -939,16 +1901,18 @@ public class ProcessRowDataChanges {
                     attachmentSyncFailed = false;
                   }
                 }
+                tableResult.incLocalAttachmentRetries();
+                ++count;
+                ++rowsProcessed;
+                if (rowsProcessed % ROWS_BETWEEN_PROGRESS_UPDATES == 0) {
+                  sc.updateNotification(SyncProgressState.ROWS,
+                      R.string.uploading_attachments_server_row, new Object[] { tableId, count,
+                          rowsToPushFileAttachments.size() }, 10.0 + rowsProcessed * perRowIncrement,
+                      false);
+                }
               }
-              tableResult.incLocalAttachmentRetries();
-              ++count;
-              ++rowsProcessed;
-              if (rowsProcessed % ROWS_BETWEEN_PROGRESS_UPDATES == 0) {
-                sc.updateNotification(SyncProgressState.ROWS,
-                    R.string.uploading_attachments_server_row, new Object[] { tableId, count,
-                        rowsToPushFileAttachments.size() }, 10.0 + rowsProcessed * perRowIncrement,
-                    false);
-              }
+            } finally {
+              transfers.shutdown();
             }
             attachmentSyncSuccessful = !attachmentSyncFailed;
           } catch (ClientWebException e) {
@@ -1020,7 +1984,7 @@ public class ProcessRowDataChanges {
 
   private int processRowOutcomes(TableDefinitionEntry te, TableResource resource,
       TableResult tableResult, ArrayList<ColumnDefinition> orderedColumns,
-      ArrayList<ColumnDefinition> fileAttachmentColumns, boolean hasAttachments,
+      SyncRowLayout layout, boolean hasAttachments,
       List<SyncRowPending> rowsToPushFileAttachments, int countSoFar, int totalOutcomesSize,
       List<SyncRow> segmentAlter, ArrayList<RowOutcome> outcomes, ArrayList<RowOutcome> specialCases) {
 
@@ -1109,9 +2073,7 @@ public class ProcessRowDataChanges {
               : ConflictType.SERVER_UPDATED_UPDATED_VALUES;
 
           // figure out what the localRow conflict type sh
-          SyncRow serverRow = new SyncRow(r.getRowId(), r.getRowETag(), r.isDeleted(),
-              r.getFormId(), r.getLocale(), r.getSavepointType(), r.getSavepointTimestamp(),
-              r.getSavepointCreator(), r.getFilterScope(), r.getValues(), fileAttachmentColumns);
+          SyncRow serverRow = toSyncRow(r, layout);
           SyncRowDataChanges conflictRow = new SyncRowDataChanges(serverRow, syncRow, false,
               localRowConflictType);
 
@@ -1219,9 +2181,9 @@ public class ProcessRowDataChanges {
             serverRow.getRowId(), localRowConflictType);
 
         // set up to insert the in_conflict row from the server
-        for (DataKeyValue entry : serverRow.getValues()) {
-          String colName = entry.column;
-          values.put(colName, entry.value);
+        SyncRowLayout layout = serverRow.getLayout();
+        for (int i = 0; i < layout.getColumnCount(); ++i) {
+          values.put(layout.getElementKey(i), serverRow.getValue(i));
         }
 
         // insert in_conflict server row
@@ -1283,40 +2245,23 @@ public class ProcessRowDataChanges {
    * those rows to the rowsToPushFileAttachments list if they have any non-null
    * media attachments.
    * 
-   * @param db
+   * @param writer
    * @param resource
-   * @param orderedColumns
    * @param changes
    * @param rowsToPushFileAttachments
    * @param hasAttachments
    * @param tableResult
    * @throws ClientWebException
    */
-  private void insertRowsInDb(SQLiteDatabase db, TableResource resource,
-      ArrayList<ColumnDefinition> orderedColumns, List<SyncRowDataChanges> changes,
-      List<SyncRowPending> rowsToPushFileAttachments, boolean hasAttachments,
-      TableResult tableResult) throws ClientWebException {
+  private void insertRowsInDb(SyncRowBulkWriter writer, TableResource resource,
+      List<SyncRowDataChanges> changes, List<SyncRowPending> rowsToPushFileAttachments,
+      boolean hasAttachments, TableResult tableResult) throws ClientWebException {
     int count = 0;
     for (SyncRowDataChanges change : changes) {
       SyncRow serverRow = change.serverRow;
-      ContentValues values = new ContentValues();
-
-      values.put(DataTableColumns.ID, serverRow.getRowId());
-      values.put(DataTableColumns.ROW_ETAG, serverRow.getRowETag());
-      values.put(DataTableColumns.SYNC_STATE, (hasAttachments && !serverRow.getUriFragments()
-          .isEmpty()) ? SyncState.synced_pending_files.name() : SyncState.synced.name());
-      values.put(DataTableColumns.FORM_ID, serverRow.getFormId());
-      values.put(DataTableColumns.LOCALE, serverRow.getLocale());
-      values.put(DataTableColumns.SAVEPOINT_TIMESTAMP, serverRow.getSavepointTimestamp());
-      values.put(DataTableColumns.SAVEPOINT_CREATOR, serverRow.getSavepointCreator());
-
-      for (DataKeyValue entry : serverRow.getValues()) {
-        String colName = entry.column;
-        values.put(colName, entry.value);
-      }
 
-      ODKDatabaseUtils.get().insertDataIntoExistingDBTableWithId(db, resource.getTableId(),
-          orderedColumns, values, serverRow.getRowId());
+      writer.insert(serverRow, (hasAttachments && !serverRow.getUriFragments().isEmpty())
+          ? SyncState.synced_pending_files : SyncState.synced);
       tableResult.incLocalInserts();
 
       if (hasAttachments && !serverRow.getUriFragments().isEmpty()) {
@@ -1337,19 +2282,17 @@ public class ProcessRowDataChanges {
    * rows to the rowsToPushFileAttachments list if they have any non-null media
    * attachments.
    * 
-   * @param db
+   * @param writer
    * @param resource
-   * @param orderedColumns
    * @param changes
    * @param rowsToSyncFileAttachments
    * @param hasAttachments
    * @param tableResult
    * @throws ClientWebException
    */
-  private void updateRowsInDb(SQLiteDatabase db, TableResource resource,
-      ArrayList<ColumnDefinition> orderedColumns, List<SyncRowDataChanges> changes,
-      List<SyncRowPending> rowsToSyncFileAttachments, boolean hasAttachments,
-      TableResult tableResult) throws ClientWebException {
+  private void updateRowsInDb(SyncRowBulkWriter writer, TableResource resource,
+      List<SyncRowDataChanges> changes, List<SyncRowPending> rowsToSyncFileAttachments,
+      boolean hasAttachments, TableResult tableResult) throws ClientWebException {
     int count = 0;
     for (SyncRowDataChanges change : changes) {
       // if the localRow sync state was synced_pending_files,
@@ -1364,26 +2307,9 @@ public class ProcessRowDataChanges {
 
       // update the row from the changes on the server
       SyncRow serverRow = change.serverRow;
-      ContentValues values = new ContentValues();
-
-      values.put(DataTableColumns.ROW_ETAG, serverRow.getRowETag());
-      values.put(DataTableColumns.SYNC_STATE, (hasAttachments && !serverRow.getUriFragments()
-          .isEmpty()) ? SyncState.synced_pending_files.name() : SyncState.synced.name());
-      values.put(DataTableColumns.FILTER_TYPE, serverRow.getFilterScope().getType().name());
-      values.put(DataTableColumns.FILTER_VALUE, serverRow.getFilterScope().getValue());
-      values.put(DataTableColumns.FORM_ID, serverRow.getFormId());
-      values.put(DataTableColumns.LOCALE, serverRow.getLocale());
-      values.put(DataTableColumns.SAVEPOINT_TYPE, serverRow.getSavepointType());
-      values.put(DataTableColumns.SAVEPOINT_TIMESTAMP, serverRow.getSavepointTimestamp());
-      values.put(DataTableColumns.SAVEPOINT_CREATOR, serverRow.getSavepointCreator());
-
-      for (DataKeyValue entry : serverRow.getValues()) {
-        String colName = entry.column;
-        values.put(colName, entry.value);
-      }
 
-      ODKDatabaseUtils.get().updateDataInExistingDBTableWithId(db, resource.getTableId(),
-          orderedColumns, values, serverRow.getRowId());
+      writer.update(serverRow, (hasAttachments && !serverRow.getUriFragments().isEmpty())
+          ? SyncState.synced_pending_files : SyncState.synced);
       tableResult.incLocalUpdates();
 
       if (hasAttachments && !serverRow.getUriFragments().isEmpty()) {
@@ -1411,14 +2337,14 @@ public class ProcessRowDataChanges {
    * @param resource
    * @param tableId
    * @param changes
-   * @param fileAttachmentColumns
+   * @param layout
    * @param deferInstanceAttachments
    * @param tableResult
    * @return
    * @throws IOException
    */
   private void pushLocalAttachmentsBeforeDeleteRowsInDb(SQLiteDatabase db, TableResource resource,
-      List<SyncRowDataChanges> changes, ArrayList<ColumnDefinition> fileAttachmentColumns,
+      List<SyncRowDataChanges> changes, SyncRowLayout layout,
       boolean deferInstanceAttachments, TableResult tableResult) throws IOException {
 
     // try first to push any attachments of the soon-to-be-deleted
@@ -1434,8 +2360,16 @@ public class ProcessRowDataChanges {
           // since we are directly calling putFileAttachments, the flags in this
           // constructor are never accessed. Use false for their values.
           SyncRowPending srp = new SyncRowPending(change.localRow, false, false, false);
-          boolean outcome = sc.getSynchronizer().putFileAttachments(resource.getInstanceFilesUri(),
-              resource.getTableId(), srp, deferInstanceAttachments);
+          Synchronizer synchronizer = sc.getSynchronizer();
+          FileSyncETags eTags = synchronizer.getFileSyncETags(resource.getInstanceFilesUri(),
+              resource.getTableId(), srp);
+          boolean outcome;
+          try {
+            outcome = synchronizer.putFileAttachments(resource.getInstanceFilesUri(),
+                resource.getTableId(), srp, eTags, deferInstanceAttachments);
+          } finally {
+            synchronizer.updateFileSyncETags(eTags);
+          }
           if (outcome) {
             // successful
             change.isRestPendingFiles = false;
@@ -1462,31 +2396,32 @@ public class ProcessRowDataChanges {
    * pushed to the server. I.e., those with 'isRestPendingFiles' false.
    * Otherwise, leave these rows in the local database until their files are
    * pushed and they can safely be removed.
+   * <p>
+   * The rows are deleted in batches. Their attachments are not touched; the
+   * caller should remove them once the transaction commits.
    * 
-   * @param db
+   * @param writer
    * @param resource
    * @param changes
-   * @param fileAttachmentColumns
-   * @param deferInstanceAttachments
    * @param tableResult
-   * @throws IOException
+   * @return the rowIds of the deleted rows
    */
-  private void deleteRowsInDb(SQLiteDatabase db, TableResource resource,
-      List<SyncRowDataChanges> changes, ArrayList<ColumnDefinition> fileAttachmentColumns,
-      boolean deferInstanceAttachments, TableResult tableResult) throws IOException {
+  private List<String> deleteRowsInDb(SyncRowBulkWriter writer, TableResource resource,
+      List<SyncRowDataChanges> changes, TableResult tableResult) {
     int count = 0;
 
     // now delete the rows we can delete...
+    List<String> rowIds = new ArrayList<String>();
+    for (SyncRowDataChanges change : changes) {
+      if (!change.isRestPendingFiles) {
+        rowIds.add(change.serverRow.getRowId());
+      }
+    }
+    // and physically delete them (and any in_conflict copies)
+    writer.delete(rowIds);
+
     for (SyncRowDataChanges change : changes) {
       if (!change.isRestPendingFiles) {
-        // DELETE
-        // move the local record into the 'new_row' sync state
-        // so it can be physically deleted.
-        ODKDatabaseUtils.get().updateRowETagAndSyncState(db, resource.getTableId(),
-            change.serverRow.getRowId(), null, SyncState.new_row);
-        // and physically delete row and attachments from database.
-        ODKDatabaseUtils.get().deleteDataInExistingDBTableWithId(db, sc.getAppName(),
-            resource.getTableId(), change.serverRow.getRowId());
         tableResult.incLocalDeletes();
       }
       ++count;
@@ -1497,5 +2432,6 @@ public class ProcessRowDataChanges {
             false);
       }
     }
+    return rowIds;
   }
 }
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sync;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * How far the pull of server changes into a table got before it was
+ * interrupted. Recorded after each page is applied and removed once the pass
+ * holding that page completes, so that a later sync can continue from the
+ * next page rather than from the table's stored dataETag.
+ * <p>
+ * Stored in the _sync_pull_resume table of the app's database, one row per
+ * tableId.
+ */
+final class PullResumeState {
+
+  private static final String TABLE_NAME = "_sync_pull_resume";
+
+  private static final String TABLE_ID = "_table_id";
+  private static final String START_DATA_ETAG = "_start_data_etag";
+  private static final String CHANGE_SET_DATA_ETAG = "_change_set_data_etag";
+  private static final String PASS_DATA_ETAG = "_pass_data_etag";
+  private static final String RESUME_CURSOR = "_resume_cursor";
+  private static final String PAGES_APPLIED = "_pages_applied";
+  private static final String SERVER_DATA_ETAG = "_server_data_etag";
+
+  private static final String CREATE_TABLE = "CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " ("
+      + TABLE_ID + " TEXT NOT NULL PRIMARY KEY, " + START_DATA_ETAG + " TEXT NULL, "
+      + CHANGE_SET_DATA_ETAG + " TEXT NULL, " + PASS_DATA_ETAG + " TEXT NULL, " + RESUME_CURSOR
+      + " TEXT NOT NULL, " + PAGES_APPLIED + " INTEGER NOT NULL, " + SERVER_DATA_ETAG
+      + " TEXT NULL)";
+
+  private final String tableId;
+  private final String startDataETag;
+  private final String changeSetDataETag;
+  private final String passDataETag;
+  private final String resumeCursor;
+  private final int pagesApplied;
+  private final String serverDataETag;
+
+  /**
+   * @param tableId
+   * @param startDataETag
+   *          the table's stored dataETag when the pass began
+   * @param changeSetDataETag
+   *          null if pulling from the diff (or data) URI; otherwise the
+   *          changeSet being pulled.
+   * @param passDataETag
+   *          the dataETag to record once the pass completes
+   * @param resumeCursor
+   *          the cursor for the next page of the pass
+   * @param pagesApplied
+   *          the number of pages of the pass that have been applied
+   * @param serverDataETag
+   *          the server's dataETag for the table when the pass began
+   */
+  PullResumeState(String tableId, String startDataETag, String changeSetDataETag,
+      String passDataETag, String resumeCursor, int pagesApplied, String serverDataETag) {
+    this.tableId = tableId;
+    this.startDataETag = startDataETag;
+    this.changeSetDataETag = changeSetDataETag;
+    this.passDataETag = passDataETag;
+    this.resumeCursor = resumeCursor;
+    this.pagesApplied = pagesApplied;
+    this.serverDataETag = serverDataETag;
+  }
+
+  String getTableId() {
+    return tableId;
+  }
+
+  String getStartDataETag() {
+    return startDataETag;
+  }
+
+  String getChangeSetDataETag() {
+    return changeSetDataETag;
+  }
+
+  String getPassDataETag() {
+    return passDataETag;
+  }
+
+  String getResumeCursor() {
+    return resumeCursor;
+  }
+
+  int getPagesApplied() {
+    return pagesApplied;
+  }
+
+  String getServerDataETag() {
+    return serverDataETag;
+  }
+
+  private static boolean sameETag(String a, String b) {
+    return (a == null) ? (b == null) : a.equals(b);
+  }
+
+  /**
+   * A pull can only be resumed if it starts from the same local dataETag. A
+   * resume cursor into the diff of the table is only meaningful while the
+   * server's dataETag is unchanged; a changeSet, once created, never changes.
+   *
+   * @param lastDataETag
+   *          the table's stored dataETag
+   * @param currentServerDataETag
+   *          the server's current dataETag for the table
+   * @return true if the pull can continue from this state.
+   */
+  boolean isResumableFrom(String lastDataETag, String currentServerDataETag) {
+    if (!sameETag(startDataETag, lastDataETag)) {
+      return false;
+    }
+    return (changeSetDataETag != null) || sameETag(serverDataETag, currentServerDataETag);
+  }
+
+  /**
+   * @param db
+   * @param tableId
+   * @return null or the recorded state for the table.
+   */
+  static PullResumeState read(SQLiteDatabase db, String tableId) {
+    db.execSQL(CREATE_TABLE);
+    Cursor c = null;
+    try {
+      c = db.query(TABLE_NAME, null, TABLE_ID + "=?", new String[] { tableId }, null, null, null);
+      if (!c.moveToFirst()) {
+        return null;
+      }
+      return new PullResumeState(tableId,
+          c.getString(c.getColumnIndexOrThrow(START_DATA_ETAG)),
+          c.getString(c.getColumnIndexOrThrow(CHANGE_SET_DATA_ETAG)),
+          c.getString(c.getColumnIndexOrThrow(PASS_DATA_ETAG)),
+          c.getString(c.getColumnIndexOrThrow(RESUME_CURSOR)),
+          c.getInt(c.getColumnIndexOrThrow(PAGES_APPLIED)),
+          c.getString(c.getColumnIndexOrThrow(SERVER_DATA_ETAG)));
+    } finally {
+      if (c != null) {
+        c.close();
+      }
+    }
+  }
+
+  /**
+   * Record this state, replacing any earlier state for the table.
+   *
+   * @param db
+   */
+  void write(SQLiteDatabase db) {
+    db.execSQL(CREATE_TABLE);
+    ContentValues values = new ContentValues();
+    values.put(TABLE_ID, tableId);
+    values.put(START_DATA_ETAG, startDataETag);
+    values.put(CHANGE_SET_DATA_ETAG, changeSetDataETag);
+    values.put(PASS_DATA_ETAG, passDataETag);
+    values.put(RESUME_CURSOR, resumeCursor);
+    values.put(PAGES_APPLIED, pagesApplied);
+    values.put(SERVER_DATA_ETAG, serverDataETag);
+    db.replaceOrThrow(TABLE_NAME, null, values);
+  }
+
+  /**
+   * Remove any recorded state for the table.
+   *
+   * @param db
+   * @param tableId
+   */
+  static void clear(SQLiteDatabase db, String tableId) {
+    db.execSQL(CREATE_TABLE);
+    db.delete(TABLE_NAME, TABLE_ID + "=?", new String[] { tableId });
+  }
+}
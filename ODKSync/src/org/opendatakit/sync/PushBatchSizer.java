@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sync;
+
+import java.net.SocketTimeoutException;
+import java.util.List;
+
+import org.apache.http.HttpStatus;
+import org.apache.wink.client.ClientWebException;
+import org.opendatakit.sync.aggregate.AggregateSynchronizer;
+
+/**
+ * Chooses how many local rows to send in each alterRows request, by the
+ * estimated size of their serialized form rather than by their count.
+ * <p>
+ * Each request should take a fraction of the per-request timeout to upload
+ * and be processed by the server. The byte budget of a batch follows the
+ * observed upload throughput, growing by at most a factor of two per request
+ * and shrinking immediately on slow links. A request that is rejected as too
+ * large (413) or times out halves the budget; the caller splits the batch.
+ * <p>
+ * Used only on the sync thread.
+ */
+public final class PushBatchSizer {
+
+  public static final int MIN_BATCH_BYTES = 16 * 1024;
+  public static final int MAX_BATCH_BYTES = 4 * 1024 * 1024;
+  public static final int INITIAL_BATCH_BYTES = 256 * 1024;
+
+  /** upper bound on the rows in one batch, however small they are */
+  public static final int MAX_BATCH_ROWS = 2000;
+
+  /** time budget for one request; a quarter of the request timeout */
+  private static final double TARGET_REQUEST_MS = AggregateSynchronizer.HTTP_REQUEST_TIMEOUT_MS / 4.0;
+
+  /** weight given to the newest measurement */
+  private static final double SMOOTHING = 0.5;
+
+  /** serialized size of a row's metadata field names and JSON punctuation */
+  private static final int ROW_OVERHEAD_BYTES = 256;
+  /** serialized size of the JSON punctuation around one column value */
+  private static final int VALUE_OVERHEAD_BYTES = 32;
+
+  private int batchBytes;
+  private double msPerByte = 0.0;
+
+  public PushBatchSizer() {
+    this(INITIAL_BATCH_BYTES);
+  }
+
+  public PushBatchSizer(int initialBatchBytes) {
+    this.batchBytes = clamp(initialBatchBytes);
+  }
+
+  private static int clamp(int size) {
+    if (size < MIN_BATCH_BYTES) {
+      return MIN_BATCH_BYTES;
+    }
+    if (size > MAX_BATCH_BYTES) {
+      return MAX_BATCH_BYTES;
+    }
+    return size;
+  }
+
+  private static int length(String value) {
+    return (value == null) ? 0 : value.length();
+  }
+
+  /**
+   * Estimate the size of the row as serialized in an alterRows request.
+   * String lengths stand in for their UTF-8 byte counts. Only the changed
+   * values of a row delta are counted.
+   *
+   * @param row
+   * @return the estimated number of bytes
+   */
+  public static int estimateBytes(SyncRow row) {
+    int bytes = ROW_OVERHEAD_BYTES + length(row.getRowId()) + length(row.getRowETag())
+        + length(row.getFormId()) + length(row.getLocale()) + length(row.getSavepointType())
+        + length(row.getSavepointTimestamp()) + length(row.getSavepointCreator());
+    if (row.getFilterScope() != null) {
+      bytes += length(row.getFilterScope().getValue());
+    }
+    SyncRowLayout layout = row.getLayout();
+    boolean[] changedColumns = row.getChangedColumns();
+    for (int i = 0; i < layout.getColumnCount(); ++i) {
+      if (changedColumns != null && !changedColumns[i]) {
+        // not sent in a row delta
+        continue;
+      }
+      bytes += VALUE_OVERHEAD_BYTES + length(layout.getElementKey(i)) + length(row.getValue(i));
+    }
+    return bytes;
+  }
+
+  /**
+   * @param rows
+   * @return the estimated number of bytes of the rows as serialized in an
+   *         alterRows request.
+   */
+  public static int estimateBytes(List<SyncRow> rows) {
+    int bytes = 0;
+    for (SyncRow row : rows) {
+      bytes += estimateBytes(row);
+    }
+    return bytes;
+  }
+
+  /**
+   * @return the estimated serialized size of the next batch.
+   */
+  public int getBatchBytes() {
+    return batchBytes;
+  }
+
+  /**
+   * Record the time taken to send a batch and receive its outcomes.
+   *
+   * @param bytes
+   *          the estimated size of the batch
+   * @param fullBatch
+   *          false if the batch was cut short because there were no more
+   *          rows to send
+   * @param elapsedMs
+   */
+  public void recordUpload(int bytes, boolean fullBatch, long elapsedMs) {
+    if (bytes <= 0) {
+      return;
+    }
+    double sample = ((double) Math.max(1L, elapsedMs)) / bytes;
+    msPerByte = (msPerByte == 0.0) ? sample : (SMOOTHING * sample + (1.0 - SMOOTHING)
+        * msPerByte);
+
+    double desired = TARGET_REQUEST_MS / msPerByte;
+    if (desired > batchBytes) {
+      // a short batch tells us nothing about whether a bigger one would fit.
+      if (!fullBatch) {
+        return;
+      }
+      desired = Math.min(desired, 2.0 * batchBytes);
+    }
+    batchBytes = clamp((int) Math.min(desired, (double) Integer.MAX_VALUE));
+  }
+
+  /**
+   * Record a request that was too large or timed out. Halve the budget.
+   */
+  public void recordFailure() {
+    batchBytes = clamp(batchBytes / 2);
+  }
+
+  /**
+   * @param e
+   *          the failure of an alterRows request
+   * @return true if the request failed because it was too large (413) or
+   *         timed out, so that sending the batch in smaller pieces may
+   *         succeed.
+   */
+  public static boolean isBatchTooLarge(RuntimeException e) {
+    if (e instanceof ClientWebException) {
+      ClientWebException we = (ClientWebException) e;
+      return we.getResponse() != null
+          && we.getResponse().getStatusCode() == HttpStatus.SC_REQUEST_TOO_LONG;
+    }
+    for (Throwable t = e.getCause(); t != null; t = t.getCause()) {
+      if (t instanceof SocketTimeoutException) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -0,0 +1,383 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sync;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.http.HttpStatus;
+import org.apache.wink.client.ClientWebException;
+import org.opendatakit.aggregate.odktables.rest.entity.ChangeSetList;
+import org.opendatakit.aggregate.odktables.rest.entity.TableResource;
+import org.opendatakit.sync.exceptions.InvalidAuthTokenException;
+
+/**
+ * Fetches pages of server row changes on a background thread so that the
+ * next page is travelling over the network while the current page is being
+ * applied to the local database.
+ * <p>
+ * If we have pulled from this table before, the producer asks the server for
+ * the changeSets applied since our last dataETag and fetches each of them in
+ * order. Each changeSet is its own pass, so an interrupted sync resumes from
+ * the last changeSet that was fully applied.
+ * <p>
+ * Otherwise (or if the server cannot list the changeSets), the producer
+ * follows the original protocol: it issues getUpdates() requests with the
+ * resume cursor until the server reports no more results. If the dataETag of
+ * the last page differs from that of the first page of that pass, the server
+ * changed while we were pulling, and the producer starts another pass from the
+ * first dataETag with a null cursor.
+ * <p>
+ * The consumer must persist the pass's dataETag once it has applied a page
+ * that is marked as the end of a pass. Each page also reports the cursor for
+ * the page after it, so the consumer can record how far it got and a later
+ * pull can resume from there (see {@link PullResumeState}).
+ */
+final class RowPagePrefetcher implements Runnable {
+
+  /**
+   * Number of fetched-but-unapplied pages we allow to accumulate.
+   */
+  private static final int MAX_PAGES_AHEAD = 2;
+
+  /**
+   * A page of server changes, or the exception that ended the pull.
+   */
+  static final class Page {
+    private final SyncRowPage rows;
+    private final Exception error;
+    private final String changeSetDataETag;
+    private final String passDataETag;
+    private final String resumeCursor;
+    private final boolean endOfPass;
+    private final boolean lastPage;
+
+    private Page(SyncRowPage rows, String changeSetDataETag, String passDataETag,
+        String resumeCursor, boolean endOfPass, boolean lastPage) {
+      this.rows = rows;
+      this.error = null;
+      this.changeSetDataETag = changeSetDataETag;
+      this.passDataETag = passDataETag;
+      this.resumeCursor = resumeCursor;
+      this.endOfPass = endOfPass;
+      this.lastPage = lastPage;
+    }
+
+    private Page(Exception error) {
+      this.rows = null;
+      this.error = error;
+      this.changeSetDataETag = null;
+      this.passDataETag = null;
+      this.resumeCursor = null;
+      this.endOfPass = false;
+      this.lastPage = true;
+    }
+
+    /**
+     * @return null if there were no changes to pull.
+     */
+    SyncRowPage getRows() {
+      return rows;
+    }
+
+    /**
+     * @return null or the exception that terminated the pull.
+     */
+    Exception getError() {
+      return error;
+    }
+
+    /**
+     * @return null if pulling from the diff (or data) URI; otherwise, the
+     *         changeSet holding this page.
+     */
+    String getChangeSetDataETag() {
+      return changeSetDataETag;
+    }
+
+    /**
+     * @return the cursor for the page following this one within its pass;
+     *         null at the end of a pass.
+     */
+    String getResumeCursor() {
+      return resumeCursor;
+    }
+
+    /**
+     * @return the dataETag of the first page of the pass holding this page.
+     */
+    String getPassDataETag() {
+      return passDataETag;
+    }
+
+    /**
+     * @return true if, once applied, the pass's dataETag should be recorded.
+     */
+    boolean isEndOfPass() {
+      return endOfPass;
+    }
+
+    /**
+     * @return true if no further pages will be produced.
+     */
+    boolean isLastPage() {
+      return lastPage;
+    }
+  }
+
+  private final Synchronizer synchronizer;
+  private final TableResource tableResource;
+  private final String initialDataETag;
+  private final AdaptivePageSizer pageSizer;
+  private final PullResumeState resumeFrom;
+  private final SyncRowLayout layout;
+  private final SyncValuePool valuePool;
+  private final BlockingQueue<Page> pages = new ArrayBlockingQueue<Page>(MAX_PAGES_AHEAD);
+  private volatile boolean cancelled = false;
+  private Thread producer = null;
+
+  /**
+   * @param synchronizer
+   * @param tableResource
+   * @param dataETag
+   *          the last dataETag successfully pulled into the local table
+   * @param pageSizer
+   *          supplies the fetchLimit for each request
+   * @param resumeFrom
+   *          null or where an interrupted pull from the same dataETag stopped
+   * @param layout
+   *          the layout of the table's SyncRows
+   * @param valuePool
+   *          the session's pool of metadata values
+   */
+  RowPagePrefetcher(Synchronizer synchronizer, TableResource tableResource, String dataETag,
+      AdaptivePageSizer pageSizer, PullResumeState resumeFrom, SyncRowLayout layout,
+      SyncValuePool valuePool) {
+    this.synchronizer = synchronizer;
+    this.tableResource = tableResource;
+    this.initialDataETag = dataETag;
+    this.pageSizer = pageSizer;
+    this.resumeFrom = resumeFrom;
+    this.layout = layout;
+    this.valuePool = valuePool;
+  }
+
+  void start() {
+    producer = new Thread(null, this, "RowPagePrefetcher-" + tableResource.getTableId());
+    producer.start();
+  }
+
+  /**
+   * Wait for the next page.
+   *
+   * @return the next page of changes
+   * @throws InterruptedException
+   */
+  Page take() throws InterruptedException {
+    return pages.take();
+  }
+
+  /**
+   * Stop fetching and discard any pages that have not yet been taken.
+   */
+  void cancel() {
+    cancelled = true;
+    Thread t = producer;
+    if (t != null) {
+      t.interrupt();
+    }
+    pages.clear();
+  }
+
+  /**
+   * Fetch one page of rows, tracking its cost for the page sizer.
+   *
+   * @param changeSetDataETag
+   *          null to fetch from the diff (or data) URI; otherwise, the
+   *          changeSet to fetch.
+   * @param sinceDataETag
+   *          if fetching from the diff URI, the last dataETag we have seen.
+   * @param websafeResumeCursor
+   * @return
+   * @throws Exception
+   */
+  private SyncRowPage fetchPage(String changeSetDataETag, String sinceDataETag,
+      String websafeResumeCursor) throws Exception {
+    int fetchLimit = pageSizer.getPageSize();
+    long startTime = System.currentTimeMillis();
+    SyncRowPage rows;
+    try {
+      if (changeSetDataETag == null) {
+        rows = synchronizer.getUpdates(tableResource, sinceDataETag, websafeResumeCursor,
+            fetchLimit, layout, valuePool);
+      } else {
+        rows = synchronizer.getChangeSet(tableResource, changeSetDataETag, false,
+            websafeResumeCursor, fetchLimit, layout, valuePool);
+      }
+    } catch (Exception e) {
+      pageSizer.recordFailure();
+      throw e;
+    }
+    pageSizer.recordFetch(fetchLimit, rows.getRows().size(), System.currentTimeMillis()
+        - startTime);
+    return rows;
+  }
+
+  /**
+   * Get the list of changeSets applied on the server after our dataETag.
+   *
+   * @return null if the server cannot supply them (e.g., it does not remember
+   *         our dataETag); otherwise the dataETags of the changeSets, oldest
+   *         first.
+   * @throws InvalidAuthTokenException
+   */
+  private List<String> getChangeSetsSince(String dataETag) throws InvalidAuthTokenException {
+    ChangeSetList changeSets;
+    try {
+      changeSets = synchronizer.getChangeSets(tableResource, dataETag);
+    } catch (ClientWebException e) {
+      if (e.getResponse() != null
+          && e.getResponse().getStatusCode() == HttpStatus.SC_UNAUTHORIZED) {
+        throw e;
+      }
+      return null;
+    }
+    if (changeSets == null || changeSets.getChangeSets() == null) {
+      return null;
+    }
+    List<String> dataETags = new ArrayList<String>();
+    for (String changeSetDataETag : changeSets.getChangeSets()) {
+      if (changeSetDataETag != null && !changeSetDataETag.equals(dataETag)) {
+        dataETags.add(changeSetDataETag);
+      }
+    }
+    if (dataETags.isEmpty() && tableResource.getDataETag() != null
+        && !tableResource.getDataETag().equals(dataETag)) {
+      // the server has moved on but cannot tell us how -- use the diff.
+      return null;
+    }
+    return dataETags;
+  }
+
+  /**
+   * Pull each changeSet in turn. Each changeSet is a pass of its own so that
+   * the consumer records our progress after each one.
+   *
+   * @param changeSetDataETags
+   * @throws Exception
+   */
+  private void pullChangeSets(List<String> changeSetDataETags) throws Exception {
+    if (changeSetDataETags.isEmpty()) {
+      pages.put(new Page(null, null, null, null, false, true));
+      return;
+    }
+    for (int i = 0; i < changeSetDataETags.size() && !cancelled; ++i) {
+      String changeSetDataETag = changeSetDataETags.get(i);
+      boolean lastChangeSet = (i == changeSetDataETags.size() - 1);
+      String websafeResumeCursor = null;
+      if (i == 0 && resumeFrom != null
+          && changeSetDataETag.equals(resumeFrom.getChangeSetDataETag())) {
+        websafeResumeCursor = resumeFrom.getResumeCursor();
+      }
+      for (;;) {
+        SyncRowPage rows = fetchPage(changeSetDataETag, null, websafeResumeCursor);
+        if (rows.isHasMoreResults()) {
+          websafeResumeCursor = rows.getWebSafeResumeCursor();
+          pages.put(new Page(rows, changeSetDataETag, changeSetDataETag, websafeResumeCursor,
+              false, false));
+        } else {
+          pages.put(new Page(rows, changeSetDataETag, changeSetDataETag, null, true,
+              lastChangeSet));
+          break;
+        }
+      }
+    }
+  }
+
+  /**
+   * Pull all changes since the given dataETag from the diff URI (or all rows
+   * from the data URI if the dataETag is null).
+   *
+   * @param sinceDataETag
+   * @param firstDataETag
+   *          null, or, if resuming a pass, the dataETag of its first page
+   * @param websafeResumeCursor
+   *          null, or, if resuming a pass, the cursor for its next page
+   * @throws Exception
+   */
+  private void pullUpdates(String sinceDataETag, String firstDataETag,
+      String websafeResumeCursor) throws Exception {
+    while (!cancelled) {
+      SyncRowPage rows = fetchPage(null, sinceDataETag, websafeResumeCursor);
+      if (firstDataETag == null) {
+        firstDataETag = rows.getDataETag();
+      }
+
+      if (rows.isHasMoreResults()) {
+        websafeResumeCursor = rows.getWebSafeResumeCursor();
+        pages.put(new Page(rows, null, firstDataETag, websafeResumeCursor, false, false));
+      } else {
+        // Note that we may have additional changes from
+        // subsequent dataETags (changeSets). We are only
+        // done if the dataETag on the last request matches
+        // the firstDataETag. Otherwise, we re-issue a fetch
+        // using the firstDataETag as a starting point.
+        boolean serverChanged = (firstDataETag == null) ? (rows.getDataETag() != null)
+            : !firstDataETag.equals(rows.getDataETag());
+        pages.put(new Page(rows, null, firstDataETag, null, true, !serverChanged));
+        if (!serverChanged) {
+          return;
+        }
+        sinceDataETag = firstDataETag;
+        firstDataETag = null;
+        websafeResumeCursor = null;
+      }
+    }
+  }
+
+  @Override
+  public void run() {
+    try {
+      List<String> changeSetDataETags = null;
+      if (initialDataETag != null) {
+        // incremental pull -- apply the changeSets since our dataETag in order
+        changeSetDataETags = getChangeSetsSince(initialDataETag);
+      }
+      if (changeSetDataETags != null) {
+        pullChangeSets(changeSetDataETags);
+      } else if (resumeFrom != null && resumeFrom.getChangeSetDataETag() == null) {
+        pullUpdates(initialDataETag, resumeFrom.getPassDataETag(),
+            resumeFrom.getResumeCursor());
+      } else {
+        pullUpdates(initialDataETag, null, null);
+      }
+    } catch (InterruptedException e) {
+      // cancelled -- nobody is waiting for more pages.
+    } catch (Exception e) {
+      if (!cancelled) {
+        // queue the error behind the pages already fetched, so the consumer
+        // applies (and checkpoints) those before it sees the failure.
+        try {
+          pages.put(new Page(e));
+        } catch (InterruptedException ie) {
+          // cancelled while waiting for room -- nobody is waiting for it.
+        }
+      }
+    }
+  }
+}
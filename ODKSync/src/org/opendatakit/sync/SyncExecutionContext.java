@@ -37,6 +37,7 @@ public class SyncExecutionContext implements SynchronizerStatus {
   private final SyncNotification syncProgress;
   private final Synchronizer synchronizer;
   private final CsvUtil utils;
+  private final SyncValuePool valuePool = new SyncValuePool();
   
   public SyncExecutionContext(Context context, String appName, Synchronizer synchronizer, SyncNotification syncProgress, SynchronizationResult syncResult) {
     this.context = context;
@@ -75,6 +76,13 @@ public class SyncExecutionContext implements SynchronizerStatus {
   public Synchronizer getSynchronizer() {
     return synchronizer;
   }
+
+  /**
+   * @return the pool of canonical row metadata values for this sync session.
+   */
+  public SyncValuePool getValuePool() {
+    return valuePool;
+  }
   
   public SQLiteDatabase getDatabase() {
     return DatabaseFactory.get().getDatabase(context, appName);
@@ -19,6 +19,9 @@ public class SyncPreferences {
   private static final String SERVER_URI_KEY = "serverUri";
   private static final String ACCOUNT_KEY = "account";
   private static final String AUTH_KEY = "auth";
+  private static final String STAGE_SERVER_CHANGES_KEY = "stageServerChanges";
+  private static final String PIPELINE_PUSH_KEY = "pipelinePush";
+  private static final String ATTACHMENT_TRANSFER_THREADS_KEY = "attachmentTransferThreads";
 
   private final Properties prop;
 
@@ -113,4 +116,61 @@ public class SyncPreferences {
   public String getAuthToken() {
     return prop.getProperty(AUTH_KEY, null);
   }
+
+  /**
+   * @param stageServerChanges
+   *          true to classify server row changes in SQL against a staging
+   *          table rather than in Java.
+   * @throws IOException
+   */
+  public void setStageServerChanges(boolean stageServerChanges) throws IOException {
+    this.prop.setProperty(STAGE_SERVER_CHANGES_KEY, Boolean.toString(stageServerChanges));
+    storePreferences();
+  }
+
+  public boolean getStageServerChanges() {
+    return Boolean.parseBoolean(prop.getProperty(STAGE_SERVER_CHANGES_KEY, "false"));
+  }
+
+  /**
+   * @param pipelinePush
+   *          true to apply the outcomes of each batch of pushed rows while
+   *          the next batch is being sent.
+   * @throws IOException
+   */
+  public void setPipelinePush(boolean pipelinePush) throws IOException {
+    this.prop.setProperty(PIPELINE_PUSH_KEY, Boolean.toString(pipelinePush));
+    storePreferences();
+  }
+
+  public boolean getPipelinePush() {
+    return Boolean.parseBoolean(prop.getProperty(PIPELINE_PUSH_KEY, "false"));
+  }
+
+  /**
+   * @param attachmentTransferThreads
+   *          the number of rows whose file attachments are transferred at
+   *          once.
+   * @throws IOException
+   */
+  public void setAttachmentTransferThreads(int attachmentTransferThreads) throws IOException {
+    this.prop.setProperty(ATTACHMENT_TRANSFER_THREADS_KEY,
+        Integer.toString(attachmentTransferThreads));
+    storePreferences();
+  }
+
+  public int getAttachmentTransferThreads() {
+    String value = prop.getProperty(ATTACHMENT_TRANSFER_THREADS_KEY);
+    if (value != null) {
+      try {
+        int threads = Integer.parseInt(value);
+        if (threads > 0) {
+          return threads;
+        }
+      } catch (NumberFormatException e) {
+        // fall back to the default
+      }
+    }
+    return AttachmentTransferEngine.DEFAULT_CONCURRENT_TRANSFERS;
+  }
 }
@@ -16,16 +16,17 @@
 package org.opendatakit.sync;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 
 import org.opendatakit.aggregate.odktables.rest.entity.DataKeyValue;
 import org.opendatakit.aggregate.odktables.rest.entity.Scope;
-import org.opendatakit.common.android.data.ColumnDefinition;
 import org.opendatakit.common.android.data.UserTable.Row;
 import org.opendatakit.common.android.provider.DataTableColumns;
 
+import android.database.Cursor;
+
 /**
  * A SyncRow is an in-between class to map rows in the database to rows in the
  * cloud.
@@ -74,14 +75,32 @@ public class SyncRow {
    */
   private String savepointCreator;
 
-  private ArrayList<DataKeyValue> orderedValues;
-  
-  private List<String> uriFragments;
+  /**
+   * The layout shared by all rows of this table.
+   */
+  private final SyncRowLayout layout;
+
+  /**
+   * The user-defined values, indexed by their ordinal in the layout.
+   */
+  private final String[] values;
+
+  /**
+   * The non-null values of the file attachment columns; built on first use.
+   */
+  private List<String> uriFragments = null;
+
+  /**
+   * For a locally changed row whose last synced version is known, flags the
+   * values that have changed since then, indexed by their ordinal in the
+   * layout. Null if all values are to be sent.
+   */
+  private boolean[] changedColumns = null;
 
   public SyncRow(final String rowId, final String rowETag, final boolean deleted,
       final String formId, final String locale, final String savepointType,
       final String savepointTimestamp, final String savepointCreator, final Scope filterScope,
-      final ArrayList<DataKeyValue> values, final ArrayList<ColumnDefinition> fileAttachmentColumns) {
+      final SyncRowLayout layout, final String[] values) {
     this.rowId = rowId;
     this.rowETag = rowETag;
     this.deleted = deleted;
@@ -91,47 +110,27 @@ public class SyncRow {
     this.savepointTimestamp = savepointTimestamp;
     this.savepointCreator = savepointCreator;
     this.filterScope = filterScope;
-    if (values == null) {
-      this.orderedValues = new ArrayList<DataKeyValue>();
-    } else {
-      Collections.sort(values, new Comparator<DataKeyValue>() {
-
-        @Override
-        public int compare(DataKeyValue arg0, DataKeyValue arg1) {
-          return arg0.column.compareTo(arg1.column);
-        }
-      });
+    this.layout = layout;
+    this.values = values;
+  }
 
-      this.orderedValues = values;
-    }
-    // build up the uriFragments value...
-    // the common case is that this is empty.
-    // Use the static immutable list for that condition.
-    if ( !fileAttachmentColumns.isEmpty() ) {
-      ArrayList<String> uriFragments = new ArrayList<String>();
-      // extract the non-null uriFragments here...
-      int idxAttachment = 0;
-      String facName = fileAttachmentColumns.get(idxAttachment).getElementKey();
-      for ( DataKeyValue dkv : orderedValues) {
-        if ( dkv.column.equals(facName) ) {
-          if ( dkv.value != null ) {
-            uriFragments.add(dkv.value);
-          }
-          ++idxAttachment;
-          if ( idxAttachment >= fileAttachmentColumns.size() ) {
-            break;
-          } else {
-            facName = fileAttachmentColumns.get(idxAttachment).getElementKey();
-          }
+  /**
+   * Construct a SyncRow from the values reported by the server. Values for
+   * columns that are not part of the layout are ignored.
+   */
+  public SyncRow(final String rowId, final String rowETag, final boolean deleted,
+      final String formId, final String locale, final String savepointType,
+      final String savepointTimestamp, final String savepointCreator, final Scope filterScope,
+      final ArrayList<DataKeyValue> values, final SyncRowLayout layout) {
+    this(rowId, rowETag, deleted, formId, locale, savepointType, savepointTimestamp,
+        savepointCreator, filterScope, layout, new String[layout.getColumnCount()]);
+    if (values != null) {
+      for (DataKeyValue dkv : values) {
+        int ordinal = layout.getOrdinal(dkv.column);
+        if (ordinal != -1) {
+          this.values[ordinal] = dkv.value;
         }
       }
-      if ( uriFragments.isEmpty() ) {
-        this.uriFragments = emptyUriFragmentsList;
-      } else {
-        this.uriFragments = uriFragments;
-      }
-    } else {
-      this.uriFragments = emptyUriFragmentsList;
     }
   }
 
@@ -207,28 +206,95 @@ public class SyncRow {
     this.savepointCreator = savepointCreator;
   }
 
+  public SyncRowLayout getLayout() {
+    return layout;
+  }
+
+  /**
+   * @param ordinal
+   *          the ordinal of the column in the layout
+   * @return the value of that column
+   */
+  public String getValue(int ordinal) {
+    return values[ordinal];
+  }
+
+  /**
+   * Builds a new list of the user-defined values, ordered by column name.
+   * Prefer getValue(ordinal) when the list itself is not needed.
+   *
+   * @return the values as DataKeyValue entries
+   */
   public ArrayList<DataKeyValue> getValues() {
-    return this.orderedValues;
+    ArrayList<DataKeyValue> orderedValues = new ArrayList<DataKeyValue>(values.length);
+    for (int i = 0; i < values.length; ++i) {
+      orderedValues.add(new DataKeyValue(layout.getElementKey(i), values[i]));
+    }
+    return orderedValues;
   }
 
   public void setValues(final ArrayList<DataKeyValue> values) {
-    if (values == null) {
-      this.orderedValues = new ArrayList<DataKeyValue>();
-    } else {
-      Collections.sort(values, new Comparator<DataKeyValue>() {
-
-        @Override
-        public int compare(DataKeyValue arg0, DataKeyValue arg1) {
-          return arg0.column.compareTo(arg1.column);
+    Arrays.fill(this.values, null);
+    if (values != null) {
+      for (DataKeyValue dkv : values) {
+        int ordinal = layout.getOrdinal(dkv.column);
+        if (ordinal != -1) {
+          this.values[ordinal] = dkv.value;
         }
-      });
+      }
+    }
+    this.uriFragments = null;
+    this.changedColumns = null;
+  }
 
-      this.orderedValues = values;
+  /**
+   * @return null, or the flags of the values that have changed since the
+   *         last synced version of the row, indexed by ordinal.
+   */
+  public boolean[] getChangedColumns() {
+    return changedColumns;
+  }
+
+  public void setChangedColumns(boolean[] changedColumns) {
+    this.changedColumns = changedColumns;
+  }
+
+  /**
+   * Builds a new list of the user-defined values that have changed since the
+   * last synced version of the row, ordered by column name. All the values if
+   * that is not known.
+   *
+   * @return the changed values as DataKeyValue entries
+   */
+  public ArrayList<DataKeyValue> getChangedValues() {
+    if (changedColumns == null) {
+      return getValues();
+    }
+    ArrayList<DataKeyValue> changedValues = new ArrayList<DataKeyValue>();
+    for (int i = 0; i < values.length; ++i) {
+      if (changedColumns[i]) {
+        changedValues.add(new DataKeyValue(layout.getElementKey(i), values[i]));
+      }
     }
+    return changedValues;
   }
-  
+
   public List<String> getUriFragments() {
-    return this.uriFragments;
+    if (uriFragments == null) {
+      // the common case is that this is empty.
+      // Use the static immutable list for that condition.
+      List<String> fragments = emptyUriFragmentsList;
+      for (int ordinal : layout.getAttachmentOrdinals()) {
+        if (values[ordinal] != null) {
+          if (fragments == emptyUriFragmentsList) {
+            fragments = new ArrayList<String>();
+          }
+          fragments.add(values[ordinal]);
+        }
+      }
+      uriFragments = fragments;
+    }
+    return uriFragments;
   }
 
   @java.lang.Override
@@ -273,8 +339,10 @@ public class SyncRow {
       return false;
 
     // data
-    if (this.getValues() == null ? other.getValues() != null : !this.getValues().equals(
-        (java.lang.Object) other.getValues()))
+    if (this.layout == other.layout) {
+      if (!Arrays.equals(this.values, other.values))
+        return false;
+    } else if (!this.getValues().equals((java.lang.Object) other.getValues()))
       return false;
     return true;
   }
@@ -304,7 +372,7 @@ public class SyncRow {
     result = result * PRIME
         + (this.getSavepointCreator() == null ? 0 : this.getSavepointCreator().hashCode());
     // data
-    result = result * PRIME + (this.getValues() == null ? 0 : this.getValues().hashCode());
+    result = result * PRIME + Arrays.hashCode(this.values);
     return result;
   }
 
@@ -318,29 +386,119 @@ public class SyncRow {
   }
   
 
-  public static final SyncRow convertToSyncRow(ArrayList<ColumnDefinition> orderedColumns,
-      ArrayList<ColumnDefinition> fileAttachmentColumns, Row localRow) {
+  /**
+   * Construct a SyncRow from a row of a materialized UserTable. The
+   * metadata values are canonicalized through the session's value pool.
+   *
+   * @param pool
+   * @param layout
+   * @param localRow
+   * @return
+   */
+  public static final SyncRow convertToSyncRow(SyncValuePool pool, SyncRowLayout layout,
+      Row localRow) {
     String rowId = localRow.getRowId();
     String rowETag = localRow.getRawDataOrMetadataByElementKey(DataTableColumns.ROW_ETAG);
 
-    ArrayList<DataKeyValue> values = new ArrayList<DataKeyValue>();
-    for (ColumnDefinition column : orderedColumns) {
-      if (column.isUnitOfRetention()) {
-        String elementKey = column.getElementKey();
-        values.add(new DataKeyValue(elementKey, localRow
-            .getRawDataOrMetadataByElementKey(elementKey)));
-      }
+    String[] values = new String[layout.getColumnCount()];
+    for (int i = 0; i < values.length; ++i) {
+      values[i] = localRow.getRawDataOrMetadataByElementKey(layout.getElementKey(i));
     }
 
     SyncRow syncRow = new SyncRow(rowId, rowETag, false,
-        localRow.getRawDataOrMetadataByElementKey(DataTableColumns.FORM_ID),
-        localRow.getRawDataOrMetadataByElementKey(DataTableColumns.LOCALE),
-        localRow.getRawDataOrMetadataByElementKey(DataTableColumns.SAVEPOINT_TYPE),
+        pool.intern(localRow.getRawDataOrMetadataByElementKey(DataTableColumns.FORM_ID)),
+        pool.intern(localRow.getRawDataOrMetadataByElementKey(DataTableColumns.LOCALE)),
+        pool.intern(localRow.getRawDataOrMetadataByElementKey(DataTableColumns.SAVEPOINT_TYPE)),
         localRow.getRawDataOrMetadataByElementKey(DataTableColumns.SAVEPOINT_TIMESTAMP),
-        localRow.getRawDataOrMetadataByElementKey(DataTableColumns.SAVEPOINT_CREATOR),
-        Scope.asScope(localRow.getRawDataOrMetadataByElementKey(DataTableColumns.FILTER_TYPE),
-            localRow.getRawDataOrMetadataByElementKey(DataTableColumns.FILTER_VALUE)), values,
-        fileAttachmentColumns);
+        pool.intern(localRow.getRawDataOrMetadataByElementKey(DataTableColumns.SAVEPOINT_CREATOR)),
+        pool.intern(Scope.asScope(
+            localRow.getRawDataOrMetadataByElementKey(DataTableColumns.FILTER_TYPE),
+            localRow.getRawDataOrMetadataByElementKey(DataTableColumns.FILTER_VALUE))), layout,
+        values);
+    return syncRow;
+  }
+
+  /**
+   * Construct a SyncRow from a row received from the server, canonicalizing
+   * its metadata values through the session's value pool.
+   *
+   * @param pool
+   * @param layout
+   * @param serverRow
+   *          a RowResource or RowOutcome
+   * @return
+   */
+  public static final SyncRow convertToSyncRow(SyncValuePool pool, SyncRowLayout layout,
+      org.opendatakit.aggregate.odktables.rest.entity.Row serverRow) {
+    return new SyncRow(serverRow.getRowId(), serverRow.getRowETag(), serverRow.isDeleted(),
+        pool.intern(serverRow.getFormId()), pool.intern(serverRow.getLocale()),
+        pool.intern(serverRow.getSavepointType()), serverRow.getSavepointTimestamp(),
+        pool.intern(serverRow.getSavepointCreator()), pool.intern(serverRow.getFilterScope()),
+        serverRow.getValues(), layout);
+  }
+
+  /**
+   * Retrieve the value at the given column index as it would appear in a
+   * UserTable. Numeric storage classes are rendered with Java's conversions.
+   *
+   * @param c
+   * @param idx
+   * @return null or the string representation of the value
+   */
+  private static final String getIndexAsString(Cursor c, int idx) {
+    if (idx == -1 || c.isNull(idx)) {
+      return null;
+    }
+    int type = c.getType(idx);
+    if (type == Cursor.FIELD_TYPE_INTEGER) {
+      return Long.toString(c.getLong(idx));
+    } else if (type == Cursor.FIELD_TYPE_FLOAT) {
+      return Double.toString(c.getDouble(idx));
+    } else {
+      return c.getString(idx);
+    }
+  }
+
+  /**
+   * Retrieve the value of the named column in the current row of the cursor.
+   *
+   * @param c
+   * @param elementKey
+   * @return null or the string representation of the value
+   */
+  public static final String getValueAsString(Cursor c, String elementKey) {
+    return getIndexAsString(c, c.getColumnIndex(elementKey));
+  }
+
+  /**
+   * Construct a SyncRow from the current position of a cursor over the local
+   * data table. Unlike the UserTable variant, this does not require the
+   * whole table to be materialized. The metadata values are canonicalized
+   * through the session's value pool.
+   *
+   * @param pool
+   * @param layout
+   * @param c
+   * @return
+   */
+  public static final SyncRow convertToSyncRow(SyncValuePool pool, SyncRowLayout layout,
+      Cursor c) {
+    String rowId = getValueAsString(c, DataTableColumns.ID);
+    String rowETag = getValueAsString(c, DataTableColumns.ROW_ETAG);
+
+    String[] values = new String[layout.getColumnCount()];
+    for (int i = 0; i < values.length; ++i) {
+      values[i] = getValueAsString(c, layout.getElementKey(i));
+    }
+
+    SyncRow syncRow = new SyncRow(rowId, rowETag, false,
+        pool.intern(getValueAsString(c, DataTableColumns.FORM_ID)),
+        pool.intern(getValueAsString(c, DataTableColumns.LOCALE)),
+        pool.intern(getValueAsString(c, DataTableColumns.SAVEPOINT_TYPE)),
+        getValueAsString(c, DataTableColumns.SAVEPOINT_TIMESTAMP),
+        pool.intern(getValueAsString(c, DataTableColumns.SAVEPOINT_CREATOR)),
+        pool.intern(Scope.asScope(getValueAsString(c, DataTableColumns.FILTER_TYPE),
+            getValueAsString(c, DataTableColumns.FILTER_VALUE))), layout, values);
     return syncRow;
   }
 }
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sync;
+
+import java.util.List;
+
+import org.opendatakit.aggregate.odktables.rest.SyncState;
+import org.opendatakit.aggregate.odktables.rest.entity.Scope;
+import org.opendatakit.common.android.provider.DataTableColumns;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Writes server rows into a local data table through compiled statements,
+ * bypassing the per-row ContentValues handling of ODKDatabaseUtils.
+ * <p>
+ * One INSERT and one UPDATE statement are compiled (on first use) for the
+ * table's row layout and reused for every row; values are bound by their
+ * ordinal in that layout. Deletes are issued in batches of rowIds.
+ * <p>
+ * The statements write the same columns, with the same values, as the
+ * ContentValues the sync previously passed to ODKDatabaseUtils. The insert
+ * also binds the defaults that ODKDatabaseUtils supplied for the metadata
+ * columns it was not given. The update leaves those columns (including
+ * _conflict_type) untouched.
+ * <p>
+ * The caller owns the transaction and must close() the writer when done.
+ */
+final class SyncRowBulkWriter {
+
+  /**
+   * The savepoint type of a finalized row. ODKDatabaseUtils supplies it when
+   * inserting a row.
+   */
+  private static final String SAVEPOINT_TYPE_COMPLETE = "COMPLETE";
+
+  /**
+   * Number of rowIds bound into one DELETE; stay well under
+   * SQLITE_MAX_VARIABLE_NUMBER (999).
+   */
+  private static final int MAX_ROW_IDS_PER_DELETE = 500;
+
+  /**
+   * Metadata columns written by the insert, in binding order, after the
+   * rowId.
+   */
+  private static final String[] INSERT_METADATA_COLUMNS = { DataTableColumns.ROW_ETAG,
+      DataTableColumns.SYNC_STATE, DataTableColumns.FORM_ID, DataTableColumns.LOCALE,
+      DataTableColumns.SAVEPOINT_TIMESTAMP, DataTableColumns.SAVEPOINT_CREATOR,
+      // defaults supplied by ODKDatabaseUtils
+      DataTableColumns.CONFLICT_TYPE, DataTableColumns.FILTER_TYPE,
+      DataTableColumns.FILTER_VALUE, DataTableColumns.SAVEPOINT_TYPE };
+
+  /**
+   * Metadata columns written by the update, in binding order. The rowId is
+   * bound after the user-defined columns (in the WHERE clause).
+   */
+  private static final String[] UPDATE_METADATA_COLUMNS = { DataTableColumns.ROW_ETAG,
+      DataTableColumns.SYNC_STATE, DataTableColumns.FILTER_TYPE, DataTableColumns.FILTER_VALUE,
+      DataTableColumns.FORM_ID, DataTableColumns.LOCALE, DataTableColumns.SAVEPOINT_TYPE,
+      DataTableColumns.SAVEPOINT_TIMESTAMP, DataTableColumns.SAVEPOINT_CREATOR };
+
+  private final SQLiteDatabase db;
+  private final String tableId;
+  private final SyncRowLayout layout;
+
+  private SQLiteStatement insert = null;
+  private SQLiteStatement update = null;
+
+  /**
+   * @param db
+   * @param tableId
+   * @param layout
+   *          the layout of the rows to be written
+   */
+  SyncRowBulkWriter(SQLiteDatabase db, String tableId, SyncRowLayout layout) {
+    this.db = db;
+    this.tableId = tableId;
+    this.layout = layout;
+  }
+
+  private SQLiteStatement getInsertStatement() {
+    if (insert == null) {
+      StringBuilder b = new StringBuilder();
+      StringBuilder params = new StringBuilder();
+      b.append("INSERT INTO \"").append(tableId).append("\" (\"").append(DataTableColumns.ID)
+          .append("\"");
+      params.append("?");
+      for (String column : INSERT_METADATA_COLUMNS) {
+        b.append(",\"").append(column).append("\"");
+        params.append(",?");
+      }
+      for (int i = 0; i < layout.getColumnCount(); ++i) {
+        b.append(",\"").append(layout.getElementKey(i)).append("\"");
+        params.append(",?");
+      }
+      b.append(") VALUES (").append(params).append(")");
+      insert = db.compileStatement(b.toString());
+    }
+    return insert;
+  }
+
+  private SQLiteStatement getUpdateStatement() {
+    if (update == null) {
+      StringBuilder b = new StringBuilder();
+      b.append("UPDATE \"").append(tableId).append("\" SET ");
+      boolean first = true;
+      for (String column : UPDATE_METADATA_COLUMNS) {
+        if (!first) {
+          b.append(",");
+        }
+        first = false;
+        b.append("\"").append(column).append("\"=?");
+      }
+      for (int i = 0; i < layout.getColumnCount(); ++i) {
+        b.append(",\"").append(layout.getElementKey(i)).append("\"=?");
+      }
+      b.append(" WHERE \"").append(DataTableColumns.ID).append("\"=?");
+      update = db.compileStatement(b.toString());
+    }
+    return update;
+  }
+
+  private static void bind(SQLiteStatement stmt, int idx, String value) {
+    if (value == null) {
+      stmt.bindNull(idx);
+    } else {
+      stmt.bindString(idx, value);
+    }
+  }
+
+  /**
+   * Bind the user-defined column values of the row, starting at the given
+   * bind index.
+   *
+   * @return the bind index following the last value bound.
+   */
+  private int bindValues(SQLiteStatement stmt, int idx, SyncRow serverRow) {
+    for (int i = 0; i < layout.getColumnCount(); ++i) {
+      bind(stmt, idx++, serverRow.getValue(i));
+    }
+    return idx;
+  }
+
+  /**
+   * Insert the server row into the table.
+   *
+   * @param serverRow
+   * @param syncState
+   *          either synced or synced_pending_files
+   */
+  void insert(SyncRow serverRow, SyncState syncState) {
+    SQLiteStatement stmt = getInsertStatement();
+    stmt.clearBindings();
+    int idx = 1;
+    bind(stmt, idx++, serverRow.getRowId());
+    bind(stmt, idx++, serverRow.getRowETag());
+    bind(stmt, idx++, syncState.name());
+    bind(stmt, idx++, serverRow.getFormId());
+    bind(stmt, idx++, serverRow.getLocale());
+    bind(stmt, idx++, serverRow.getSavepointTimestamp());
+    bind(stmt, idx++, serverRow.getSavepointCreator());
+    // conflict type is null
+    stmt.bindNull(idx++);
+    bind(stmt, idx++, Scope.Type.DEFAULT.name());
+    stmt.bindNull(idx++);
+    bind(stmt, idx++, SAVEPOINT_TYPE_COMPLETE);
+    bindValues(stmt, idx, serverRow);
+    stmt.executeInsert();
+  }
+
+  /**
+   * Overwrite the local row having the server row's rowId with the server
+   * row's values.
+   *
+   * @param serverRow
+   * @param syncState
+   *          either synced or synced_pending_files
+   */
+  void update(SyncRow serverRow, SyncState syncState) {
+    SQLiteStatement stmt = getUpdateStatement();
+    stmt.clearBindings();
+    Scope filterScope = serverRow.getFilterScope();
+    int idx = 1;
+    bind(stmt, idx++, serverRow.getRowETag());
+    bind(stmt, idx++, syncState.name());
+    bind(stmt, idx++, (filterScope == null) ? Scope.Type.DEFAULT.name() : filterScope.getType()
+        .name());
+    bind(stmt, idx++, (filterScope == null) ? null : filterScope.getValue());
+    bind(stmt, idx++, serverRow.getFormId());
+    bind(stmt, idx++, serverRow.getLocale());
+    bind(stmt, idx++, serverRow.getSavepointType());
+    bind(stmt, idx++, serverRow.getSavepointTimestamp());
+    bind(stmt, idx++, serverRow.getSavepointCreator());
+    idx = bindValues(stmt, idx, serverRow);
+    bind(stmt, idx, serverRow.getRowId());
+    stmt.executeUpdateDelete();
+  }
+
+  /**
+   * Delete all local rows (including any in_conflict copies) having these
+   * rowIds. This does not touch the rows' attachments.
+   *
+   * @param rowIds
+   */
+  void delete(List<String> rowIds) {
+    for (int offset = 0; offset < rowIds.size(); offset += MAX_ROW_IDS_PER_DELETE) {
+      int max = Math.min(offset + MAX_ROW_IDS_PER_DELETE, rowIds.size());
+      List<String> segment = rowIds.subList(offset, max);
+      StringBuilder b = new StringBuilder();
+      b.append("DELETE FROM \"").append(tableId).append("\" WHERE \"")
+          .append(DataTableColumns.ID).append("\" IN (");
+      for (int i = 0; i < segment.size(); ++i) {
+        if (i != 0) {
+          b.append(",");
+        }
+        b.append("?");
+      }
+      b.append(")");
+      db.execSQL(b.toString(), segment.toArray(new String[segment.size()]));
+    }
+  }
+
+  void close() {
+    if (insert != null) {
+      insert.close();
+      insert = null;
+    }
+    if (update != null) {
+      update.close();
+      update = null;
+    }
+  }
+}
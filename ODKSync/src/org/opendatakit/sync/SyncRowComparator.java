@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sync;
+
+/**
+ * Compares the server and local versions of a row of one table.
+ * <p>
+ * Built once per table from its row layout. The server and local rows of a
+ * table share that layout, so comparing them walks both value arrays in step
+ * by ordinal without searching the column definitions or allocating.
+ * <p>
+ * Everything must be textually identical except number fields, which may
+ * differ in rounding due to different database implementations, data
+ * representations, and marshaling libraries. Numbers within
+ * MAX_ULP_DISTANCE representable doubles of each other are considered equal.
+ */
+final class SyncRowComparator {
+
+  /**
+   * Two numbers are equal if no more than this many doubles lie between
+   * them (inclusive of one end).
+   */
+  static final long MAX_ULP_DISTANCE = 128L;
+
+  private final SyncRowLayout layout;
+
+  SyncRowComparator(SyncRowLayout layout) {
+    this.layout = layout;
+  }
+
+  private static boolean sameString(String a, String b) {
+    return (a == null) ? (b == null) : a.equals(b);
+  }
+
+  /**
+   * Map the bits of a double onto a long such that adjacent doubles map to
+   * adjacent longs (and -0.0 and +0.0 both map to zero).
+   */
+  private static long orderedBits(double value) {
+    long bits = Double.doubleToLongBits(value);
+    return (bits < 0) ? (Long.MIN_VALUE - bits) : bits;
+  }
+
+  /**
+   * @param localValue
+   * @param serverValue
+   * @return true if the two strings represent the same number, or ones that
+   *         are within MAX_ULP_DISTANCE of each other.
+   */
+  static boolean equivalentNumbers(String localValue, String serverValue) {
+    // !!Important!! Double.parseDouble(str) handles NaN and +/-Infinity
+    double localDbl = Double.parseDouble(localValue);
+    double serverDbl = Double.parseDouble(serverValue);
+
+    if (localDbl == serverDbl) {
+      // trailing zeros or string representation mix-up;
+      // also +/-0 and matching infinities.
+      return true;
+    }
+    if (Double.isNaN(localDbl) || Double.isNaN(serverDbl)) {
+      return Double.isNaN(localDbl) && Double.isNaN(serverDbl);
+    }
+    if (Double.isInfinite(localDbl) || Double.isInfinite(serverDbl)) {
+      // one or the other is special (matching infinities are == above)
+      return false;
+    }
+    // OK. We have two values like 9.80 and 9.8
+    // consider them equal if they are near each other.
+    long a = orderedBits(localDbl);
+    long b = orderedBits(serverDbl);
+    long d = a - b;
+    if (((a ^ b) < 0) && ((a ^ d) < 0)) {
+      // overflow -- opposite signs and very far apart
+      return false;
+    }
+    return (d <= MAX_ULP_DISTANCE) && (d >= -MAX_ULP_DISTANCE);
+  }
+
+  /**
+   * @param serverRow
+   * @param localRow
+   * @return true if the rows are the same, ignoring their rowETags and
+   *         filterScopes.
+   */
+  boolean identicalValuesExceptRowETagAndFilterScope(SyncRow serverRow, SyncRow localRow) {
+    if (!sameString(serverRow.getSavepointTimestamp(), localRow.getSavepointTimestamp())) {
+      return false;
+    }
+    if (!sameString(serverRow.getSavepointCreator(), localRow.getSavepointCreator())) {
+      return false;
+    }
+    if (!sameString(serverRow.getFormId(), localRow.getFormId())) {
+      return false;
+    }
+    if (!sameString(serverRow.getLocale(), localRow.getLocale())) {
+      return false;
+    }
+    if (!sameString(serverRow.getRowId(), localRow.getRowId())) {
+      return false;
+    }
+    if (!sameString(serverRow.getSavepointType(), localRow.getSavepointType())) {
+      return false;
+    }
+    if (serverRow.getLayout() != layout || localRow.getLayout() != layout) {
+      throw new IllegalArgumentException("rows do not share the table's layout");
+    }
+
+    for (int i = 0; i < layout.getColumnCount(); ++i) {
+      String local = localRow.getValue(i);
+      String server = serverRow.getValue(i);
+      if (local == null && server == null) {
+        continue;
+      } else if (local == null || server == null) {
+        return false;
+      } else if (local.equals(server)) {
+        continue;
+      }
+
+      // NOT textually identical.
+      if (!layout.isNumber(i)) {
+        // textual identity is required!
+        return false;
+      }
+      if (!equivalentNumbers(local, server)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @param serverRow
+   * @param localRow
+   * @return true if the rows are the same, including their rowETags and
+   *         filterScopes.
+   */
+  boolean identicalValues(SyncRow serverRow, SyncRow localRow) {
+    if ((serverRow.getFilterScope() == null) ? (localRow.getFilterScope() != null) : !serverRow
+        .getFilterScope().equals(localRow.getFilterScope())) {
+      return false;
+    }
+    if (!sameString(serverRow.getRowETag(), localRow.getRowETag())) {
+      return false;
+    }
+    return identicalValuesExceptRowETagAndFilterScope(serverRow, localRow);
+  }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sync;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opendatakit.aggregate.odktables.rest.ElementDataType;
+import org.opendatakit.common.android.data.ColumnDefinition;
+
+/**
+ * The layout of the user-defined values of the SyncRows of one table.
+ * <p>
+ * Each unit-of-retention column is assigned an ordinal; a SyncRow holds its
+ * values in an array indexed by that ordinal. Ordinals follow the elementKey
+ * order, so iterating by ordinal visits the values in the same order as the
+ * sorted DataKeyValue lists sent to and received from the server. The
+ * ordinals of the file attachment (rowpath) columns are precomputed.
+ * <p>
+ * Built once per table sync and shared by all the rows of that table.
+ */
+public final class SyncRowLayout {
+
+  private static final int[] NO_ORDINALS = new int[0];
+
+  private final String[] elementKeys;
+  private final boolean[] isNumber;
+  private final int[] attachmentOrdinals;
+  private final Map<String, Integer> ordinals;
+
+  /**
+   * @param orderedColumns
+   *          well-formed ordered list of columns in the table.
+   */
+  public SyncRowLayout(ArrayList<ColumnDefinition> orderedColumns) {
+    ArrayList<ColumnDefinition> retained = new ArrayList<ColumnDefinition>();
+    for (ColumnDefinition cd : orderedColumns) {
+      if (cd.isUnitOfRetention()) {
+        retained.add(cd);
+      }
+    }
+    elementKeys = new String[retained.size()];
+    for (int i = 0; i < retained.size(); ++i) {
+      elementKeys[i] = retained.get(i).getElementKey();
+    }
+    Arrays.sort(elementKeys);
+    ordinals = buildOrdinals(elementKeys);
+
+    isNumber = new boolean[elementKeys.length];
+    boolean[] isAttachment = new boolean[elementKeys.length];
+    int attachmentCount = 0;
+    for (ColumnDefinition cd : retained) {
+      int ordinal = ordinals.get(cd.getElementKey());
+      ElementDataType dataType = cd.getType().getDataType();
+      isNumber[ordinal] = (dataType == ElementDataType.number);
+      if (dataType == ElementDataType.rowpath) {
+        isAttachment[ordinal] = true;
+        ++attachmentCount;
+      }
+    }
+    attachmentOrdinals = (attachmentCount == 0) ? NO_ORDINALS : new int[attachmentCount];
+    for (int i = 0, j = 0; i < isAttachment.length; ++i) {
+      if (isAttachment[i]) {
+        attachmentOrdinals[j++] = i;
+      }
+    }
+  }
+
+  /**
+   * A layout of text columns with no file attachments.
+   *
+   * @param elementKeys
+   */
+  SyncRowLayout(List<String> elementKeys) {
+    this.elementKeys = elementKeys.toArray(new String[elementKeys.size()]);
+    Arrays.sort(this.elementKeys);
+    this.ordinals = buildOrdinals(this.elementKeys);
+    this.isNumber = new boolean[this.elementKeys.length];
+    this.attachmentOrdinals = NO_ORDINALS;
+  }
+
+  private static Map<String, Integer> buildOrdinals(String[] elementKeys) {
+    Map<String, Integer> ordinals = new HashMap<String, Integer>();
+    for (int i = 0; i < elementKeys.length; ++i) {
+      ordinals.put(elementKeys[i], i);
+    }
+    return ordinals;
+  }
+
+  /**
+   * @return the number of user-defined values in a row.
+   */
+  public int getColumnCount() {
+    return elementKeys.length;
+  }
+
+  public String getElementKey(int ordinal) {
+    return elementKeys[ordinal];
+  }
+
+  /**
+   * @param elementKey
+   * @return the ordinal of the column, or -1 if it is not part of the layout.
+   */
+  public int getOrdinal(String elementKey) {
+    Integer ordinal = ordinals.get(elementKey);
+    return (ordinal == null) ? -1 : ordinal;
+  }
+
+  /**
+   * @param ordinal
+   * @return true if the column holds a number.
+   */
+  public boolean isNumber(int ordinal) {
+    return isNumber[ordinal];
+  }
+
+  /**
+   * @return true if the table has any file attachment columns.
+   */
+  public boolean hasAttachments() {
+    return attachmentOrdinals.length != 0;
+  }
+
+  /**
+   * @return the ordinals of the file attachment columns. Do not modify.
+   */
+  int[] getAttachmentOrdinals() {
+    return attachmentOrdinals;
+  }
+}
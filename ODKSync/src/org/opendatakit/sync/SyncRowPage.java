@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sync;
+
+import java.util.List;
+
+/**
+ * One page of row changes pulled from the server.
+ * <p>
+ * The rows are converted to SyncRows as they are decoded from the response,
+ * so the page is held only in that compact form; it is never held as a full
+ * RowResourceList.
+ */
+public final class SyncRowPage {
+
+  private final List<SyncRow> rows;
+  private final String dataETag;
+  private final String webSafeResumeCursor;
+  private final boolean hasMoreResults;
+
+  public SyncRowPage(List<SyncRow> rows, String dataETag, String webSafeResumeCursor,
+      boolean hasMoreResults) {
+    this.rows = rows;
+    this.dataETag = dataETag;
+    this.webSafeResumeCursor = webSafeResumeCursor;
+    this.hasMoreResults = hasMoreResults;
+  }
+
+  /**
+   * @return the rows of the page, in the order the server sent them.
+   */
+  public List<SyncRow> getRows() {
+    return rows;
+  }
+
+  /**
+   * @return the dataETag of the server's table when the page was produced.
+   */
+  public String getDataETag() {
+    return dataETag;
+  }
+
+  /**
+   * @return the cursor for the next page, if isHasMoreResults().
+   */
+  public String getWebSafeResumeCursor() {
+    return webSafeResumeCursor;
+  }
+
+  public boolean isHasMoreResults() {
+    return hasMoreResults;
+  }
+}
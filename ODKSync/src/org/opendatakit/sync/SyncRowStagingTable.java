@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sync;
+
+import org.opendatakit.aggregate.odktables.rest.ConflictType;
+import org.opendatakit.aggregate.odktables.rest.SyncState;
+import org.opendatakit.common.android.provider.DataTableColumns;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+/**
+ * Classifies a page of server changes against the local data table in SQL.
+ * <p>
+ * The rowId and deleted flag of each server change are loaded into a
+ * temporary staging table, which is then joined against the data table on
+ * _id. The join excludes local copies of the server's values from an earlier
+ * conflict, so at most one local row matches each change, and CASE
+ * expressions on that row's _sync_state and _conflict_type yield the action
+ * to take and, for conflicts, the conflict type the local row should have.
+ * This is the same decision tree as the per-row classification in
+ * ProcessRowDataChanges.
+ * <p>
+ * Staging a rowId that is already staged replaces it, so when the server
+ * reports the same rowId twice within a page, the last report wins. The
+ * server values themselves are not staged; each result row carries the
+ * ordinal of its change within the page.
+ * <p>
+ * The caller owns the transaction and must close() the staging table when
+ * done.
+ */
+final class SyncRowStagingTable {
+
+  static final String STAGING_TABLE = "_sync_staging";
+
+  /** Result column: ordinal of the server change within the page. */
+  static final String ORDINAL = "_sync_ordinal";
+  /** Result column: one of the ACTION_ constants. */
+  static final String ACTION = "_sync_action";
+  /** Result column: the conflict type for ACTION_CONFLICT; otherwise null. */
+  static final String LOCAL_CONFLICT_TYPE = "_sync_local_conflict_type";
+
+  private static final String DELETED = "_sync_deleted";
+
+  /** Server deleted a row that does not exist locally. */
+  static final int ACTION_SKIP = 0;
+  /** Server row does not exist locally. */
+  static final int ACTION_INSERT = 1;
+  /** Local row is synced or synced_pending_files; apply the server's change. */
+  static final int ACTION_UPDATE = 2;
+  /** Local row should be deleted. */
+  static final int ACTION_DELETE = 3;
+  /** Local row has unsynced changes; compare it with the server row. */
+  static final int ACTION_CONFLICT = 4;
+
+  private final SQLiteDatabase db;
+  private SQLiteStatement insert = null;
+
+  SyncRowStagingTable(SQLiteDatabase db) {
+    this.db = db;
+    db.execSQL("CREATE TEMP TABLE IF NOT EXISTS " + STAGING_TABLE + " ("
+        + DataTableColumns.ID + " TEXT NOT NULL PRIMARY KEY, " + ORDINAL + " INTEGER NOT NULL, "
+        + DELETED + " INTEGER NOT NULL)");
+    db.execSQL("DELETE FROM temp." + STAGING_TABLE);
+  }
+
+  /**
+   * Stage a server change.
+   *
+   * @param ordinal
+   *          position of the change within the page
+   * @param serverRow
+   */
+  void stage(int ordinal, SyncRow serverRow) {
+    if (insert == null) {
+      insert = db.compileStatement("INSERT OR REPLACE INTO temp." + STAGING_TABLE + " ("
+          + DataTableColumns.ID + "," + ORDINAL + "," + DELETED + ") VALUES (?,?,?)");
+    }
+    insert.clearBindings();
+    insert.bindString(1, serverRow.getRowId());
+    insert.bindLong(2, ordinal);
+    insert.bindLong(3, serverRow.isDeleted() ? 1 : 0);
+    insert.executeInsert();
+  }
+
+  private static String quote(SyncState state) {
+    return "'" + state.name() + "'";
+  }
+
+  /**
+   * Build the query that classifies the staged changes against the data
+   * table.
+   *
+   * @param tableId
+   * @return
+   */
+  static String buildClassifyQuery(String tableId) {
+    String syncState = "t." + DataTableColumns.SYNC_STATE;
+    String conflictType = "t." + DataTableColumns.CONFLICT_TYPE;
+    String deleted = "s." + DELETED + "=1";
+
+    StringBuilder b = new StringBuilder();
+    b.append("SELECT s.").append(ORDINAL).append(" AS ").append(ORDINAL).append(", CASE")
+        // no local row
+        .append(" WHEN t.").append(DataTableColumns.ID).append(" IS NULL THEN (CASE WHEN ")
+        .append(deleted).append(" THEN ").append(ACTION_SKIP).append(" ELSE ")
+        .append(ACTION_INSERT).append(" END)")
+        // local row has no unsynced changes
+        .append(" WHEN ").append(syncState).append(" IN (").append(quote(SyncState.synced))
+        .append(",").append(quote(SyncState.synced_pending_files)).append(") THEN (CASE WHEN ")
+        .append(deleted).append(" THEN ").append(ACTION_DELETE).append(" ELSE ")
+        .append(ACTION_UPDATE).append(" END)")
+        // local delete never ACKed, or local delete in conflict with an
+        // earlier server update, and the server now deletes the row.
+        .append(" WHEN ").append(deleted).append(" AND (").append(syncState).append("=")
+        .append(quote(SyncState.deleted)).append(" OR (").append(syncState).append("=")
+        .append(quote(SyncState.in_conflict)).append(" AND ").append(conflictType).append("=")
+        .append(ConflictType.LOCAL_DELETED_OLD_VALUES).append(")) THEN ").append(ACTION_DELETE)
+        .append(" ELSE ").append(ACTION_CONFLICT).append(" END AS ").append(ACTION)
+        // conflict type for the local row of a conflict
+        .append(", CASE ").append(syncState)
+        .append(" WHEN ").append(quote(SyncState.changed)).append(" THEN ")
+        .append(ConflictType.LOCAL_UPDATED_UPDATED_VALUES)
+        .append(" WHEN ").append(quote(SyncState.new_row)).append(" THEN ")
+        .append(ConflictType.LOCAL_UPDATED_UPDATED_VALUES)
+        .append(" WHEN ").append(quote(SyncState.deleted)).append(" THEN ")
+        .append(ConflictType.LOCAL_DELETED_OLD_VALUES)
+        .append(" WHEN ").append(quote(SyncState.in_conflict)).append(" THEN ")
+        .append(conflictType).append(" ELSE NULL END AS ").append(LOCAL_CONFLICT_TYPE)
+        .append(", t.*")
+        .append(" FROM temp.").append(STAGING_TABLE).append(" AS s LEFT JOIN \"")
+        .append(tableId).append("\" AS t ON t.").append(DataTableColumns.ID).append("=s.")
+        .append(DataTableColumns.ID)
+        // skip the local copies of the server's values from an earlier
+        // conflict; they are cleaned up along with the local row.
+        .append(" AND (").append(syncState).append("<>").append(quote(SyncState.in_conflict))
+        .append(" OR ").append(conflictType).append(" IS NULL OR ").append(conflictType)
+        .append(" NOT IN (").append(ConflictType.SERVER_DELETED_OLD_VALUES).append(",")
+        .append(ConflictType.SERVER_UPDATED_UPDATED_VALUES).append("))")
+        .append(" ORDER BY s.").append(ORDINAL);
+    return b.toString();
+  }
+
+  /**
+   * Classify the staged changes. Each result row holds the ORDINAL, ACTION
+   * and LOCAL_CONFLICT_TYPE columns followed by the columns of the matching
+   * local row (all null if there is none).
+   *
+   * @param tableId
+   * @return cursor ordered by ordinal
+   */
+  Cursor classify(String tableId) {
+    return db.rawQuery(buildClassifyQuery(tableId), null);
+  }
+
+  /**
+   * Discard the staged changes.
+   */
+  void close() {
+    if (insert != null) {
+      insert.close();
+      insert = null;
+    }
+    db.execSQL("DELETE FROM temp." + STAGING_TABLE);
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sync;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.opendatakit.aggregate.odktables.rest.entity.Scope;
+
+/**
+ * Canonical instances of the low-cardinality metadata values of the rows
+ * handled during one sync session (formId, locale, savepointType,
+ * savepointCreator and filterScope).
+ * <p>
+ * Every row of a page carries its own copy of these values as deserialized
+ * from the server or read from the database, although nearly all rows of a
+ * table share a handful of them. Passing them through the pool when a
+ * SyncRow is built lets the rows retained across a page share one instance
+ * of each.
+ * <p>
+ * The pool is owned by the SyncExecutionContext and lives for the duration
+ * of the sync. It stops admitting new values once MAX_ENTRIES distinct
+ * values have been seen, so a column that turns out not to be
+ * low-cardinality cannot grow it without bound. The pull's prefetch thread
+ * builds SyncRows through it as pages arrive, concurrently with the sync
+ * thread, so access is synchronized.
+ */
+public final class SyncValuePool {
+
+  /**
+   * Maximum number of distinct strings (and, separately, scopes) retained.
+   */
+  static final int MAX_ENTRIES = 1024;
+
+  private final Map<String, String> strings = new HashMap<String, String>();
+  private final Map<Scope, Scope> scopes = new HashMap<Scope, Scope>();
+
+  /**
+   * @param value
+   * @return the canonical instance equal to value, or value itself if it is
+   *         null or the pool is full.
+   */
+  public synchronized String intern(String value) {
+    if (value == null) {
+      return null;
+    }
+    String canonical = strings.get(value);
+    if (canonical != null) {
+      return canonical;
+    }
+    if (strings.size() < MAX_ENTRIES) {
+      strings.put(value, value);
+    }
+    return value;
+  }
+
+  /**
+   * Scopes are shared by reference once interned; callers must not modify
+   * them.
+   *
+   * @param scope
+   * @return the canonical instance equal to scope, or scope itself if it is
+   *         null or the pool is full.
+   */
+  public synchronized Scope intern(Scope scope) {
+    if (scope == null) {
+      return null;
+    }
+    Scope canonical = scopes.get(scope);
+    if (canonical != null) {
+      return canonical;
+    }
+    if (scopes.size() < MAX_ENTRIES) {
+      scopes.put(scope, scope);
+    }
+    return scope;
+  }
+
+  /**
+   * @return the number of distinct strings held.
+   */
+  synchronized int getStringCount() {
+    return strings.size();
+  }
+
+  /**
+   * Release all the canonical instances.
+   */
+  public synchronized void clear() {
+    strings.clear();
+    scopes.clear();
+  }
+}
@@ -15,6 +15,7 @@
  */
 package org.opendatakit.sync;
 
+import java.io.IOException;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.List;
@@ -23,7 +24,6 @@ import org.apache.wink.client.ClientWebException;
 import org.opendatakit.aggregate.odktables.rest.entity.ChangeSetList;
 import org.opendatakit.aggregate.odktables.rest.entity.Column;
 import org.opendatakit.aggregate.odktables.rest.entity.RowOutcomeList;
-import org.opendatakit.aggregate.odktables.rest.entity.RowResourceList;
 import org.opendatakit.aggregate.odktables.rest.entity.TableDefinitionResource;
 import org.opendatakit.aggregate.odktables.rest.entity.TableResource;
 import org.opendatakit.aggregate.odktables.rest.entity.TableResourceList;
@@ -61,11 +61,12 @@ public interface Synchronizer {
    * Get a list of all tables in the server.
    *
    * @param webSafeResumeCursor null or a non-empty string if we are issuing a resume query
+   * @param fetchLimit null or the maximum number of tables to return (page size hint)
    * @return a list of the table resources on the server
    * @throws ClientWebException
    * @throws InvalidAuthTokenException 
    */
-  public TableResourceList getTables(String webSafeResumeCursor) throws ClientWebException, InvalidAuthTokenException;
+  public TableResourceList getTables(String webSafeResumeCursor, Integer fetchLimit) throws ClientWebException, InvalidAuthTokenException;
 
   /**
    * Discover the schema for a table resource.
@@ -116,8 +117,30 @@ public interface Synchronizer {
    */
   public ChangeSetList getChangeSets(TableResource tableResource, String dataETag) throws ClientWebException, InvalidAuthTokenException;
   
-  public RowResourceList getChangeSet(TableResource tableResource, String dataETag, boolean activeOnly, String websafeResumeCursor)
-      throws ClientWebException, InvalidAuthTokenException;
+  /**
+   * Retrieve the rows changed by the changeSet with the specified dataETag.
+   * 
+   * @param tableResource
+   * @param dataETag
+   * @param activeOnly
+   *          true if only the rows still active (not deleted) should be returned
+   * @param websafeResumeCursor
+   *          either null or a value used to resume a prior query.
+   * @param fetchLimit
+   *          null or the maximum number of rows to return (page size hint)
+   * @param layout
+   *          the layout of the SyncRows to build
+   * @param pool
+   *          canonicalizes the metadata values of the rows
+   * @return
+   * @throws ClientWebException
+   * @throws InvalidAuthTokenException
+   * @throws IOException
+   *          if the response could not be decoded
+   */
+  public SyncRowPage getChangeSet(TableResource tableResource, String dataETag, boolean activeOnly, String websafeResumeCursor, Integer fetchLimit,
+      SyncRowLayout layout, SyncValuePool pool)
+      throws ClientWebException, InvalidAuthTokenException, IOException;
 
   /**
    * Retrieve changes in the server state since the last synchronization.
@@ -129,13 +152,22 @@ public interface Synchronizer {
    *          the local data table. Fetches changes after that dataETag.
    * @param websafeResumeCursor
    *          either null or a value used to resume a prior query.
+   * @param fetchLimit
+   *          null or the maximum number of rows to return (page size hint)
+   * @param layout
+   *          the layout of the SyncRows to build
+   * @param pool
+   *          canonicalizes the metadata values of the rows
    *          
-   * @return an RowResourceList of the changes on the server since that dataETag.
+   * @return a SyncRowPage of the changes on the server since that dataETag.
    * @throws ClientWebException
    * @throws InvalidAuthTokenException 
+   * @throws IOException
+   *          if the response could not be decoded
    */
-  public RowResourceList getUpdates(TableResource tableResource, String dataETag, String websafeResumeCursor)
-      throws ClientWebException, InvalidAuthTokenException;
+  public SyncRowPage getUpdates(TableResource tableResource, String dataETag, String websafeResumeCursor, Integer fetchLimit,
+      SyncRowLayout layout, SyncValuePool pool)
+      throws ClientWebException, InvalidAuthTokenException, IOException;
 
   /**
    * Apply inserts, updates and deletes in a collection up to the server.
@@ -153,6 +185,15 @@ public interface Synchronizer {
   public RowOutcomeList alterRows(TableResource tableResource,
       List<SyncRow> rowsToInsertUpdateOrDelete) throws ClientWebException, InvalidAuthTokenException;
 
+  /**
+   * Whether alterRows sends only the changed values of rows that carry a
+   * column delta (see SyncRow.getChangedColumns()). If not, the full values
+   * of every row are sent.
+   *
+   * @return true if the server has reported that it accepts row deltas.
+   */
+  public boolean supportsRowDeltas();
+
   /**
    * Synchronizes the app level files. This includes any files that are not
    * associated with a particular table--i.e. those that are not in the
@@ -187,34 +228,62 @@ public interface Synchronizer {
   public void syncTableLevelFiles(String tableId, String serverReportedTableLevelETag, OnTablePropertiesChanged onChange,
       boolean pushLocal, SynchronizerStatus syncStatus) throws ClientWebException, InvalidAuthTokenException;
 
+  /**
+   * Read the md5 hashes recorded in the local database for the row's file
+   * attachments. Called on the sync thread before the row's attachments are
+   * transferred.
+   *
+   * @param instanceFileUri
+   * @param tableId
+   * @param row
+   * @return the recorded hashes, to pass to getFileAttachments() and
+   *         putFileAttachments().
+   */
+  public FileSyncETags getFileSyncETags(String instanceFileUri, String tableId, SyncRowPending row);
+
+  /**
+   * Record in the local database the md5 hashes noted by
+   * getFileAttachments() and putFileAttachments(). Called on the sync thread
+   * once the row's attachments have been transferred.
+   *
+   * @param eTags
+   */
+  public void updateFileSyncETags(FileSyncETags eTags);
+
   /**
    * Ensure that the file attachments for the indicated row values are pulled
-   * down to the local system.
+   * down to the local system. May be called from several threads at once; it
+   * never touches the local database, reading and noting md5 hashes through
+   * eTags instead.
    *
    * @param instanceFileUri
    * @param tableId
    * @param serverRow
+   * @param eTags -- from getFileSyncETags()
    * @param deferInstanceAttachments -- do not transfer the attachments
    * @return true if successful
    * @throws ClientWebException
    */
   public boolean getFileAttachments(String instanceFileUri, String tableId, SyncRowPending serverRow,
-      boolean deferInstanceAttachments) throws ClientWebException;
+      FileSyncETags eTags, boolean deferInstanceAttachments) throws ClientWebException;
 
   /**
    * Ensure that the file attachments for the indicated row values exist on the
    * server. File attachments are immutable on the server -- never updated and
-   * never destroyed.
+   * never destroyed. May be called from several threads at once; it never
+   * touches the local database, reading and noting md5 hashes through eTags
+   * instead.
    *
    * @param instanceFileUri
    * @param tableId
    * @param localRow
+   * @param eTags -- from getFileSyncETags()
    * @param deferInstanceAttachments -- do not transfer the attachments
    * @return true if successful
    * @throws ClientWebException
    */
   public boolean putFileAttachments(String instanceFileUri, String tableId, SyncRowPending localRow,
-      boolean deferInstanceAttachments)
+      FileSyncETags eTags, boolean deferInstanceAttachments)
       throws ClientWebException;
   
   /**
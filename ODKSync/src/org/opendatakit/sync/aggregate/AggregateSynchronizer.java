@@ -18,8 +18,11 @@ package org.opendatakit.sync.aggregate;
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileFilter;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.net.CookieHandler;
 import java.net.CookieManager;
 import java.net.MalformedURLException;
@@ -49,10 +52,12 @@ import org.apache.commons.lang3.CharEncoding;
 import org.apache.http.HttpStatus;
 import org.apache.wink.client.ClientConfig;
 import org.apache.wink.client.ClientResponse;
+import org.apache.wink.client.ClientRuntimeException;
 import org.apache.wink.client.ClientWebException;
 import org.apache.wink.client.EntityType;
 import org.apache.wink.client.Resource;
 import org.apache.wink.client.RestClient;
+import org.apache.wink.client.handlers.ConnectionHandler;
 import org.apache.wink.client.internal.handlers.GzipHandler;
 import org.opendatakit.aggregate.odktables.rest.ApiConstants;
 import org.opendatakit.aggregate.odktables.rest.entity.ChangeSetList;
@@ -62,7 +67,6 @@ import org.opendatakit.aggregate.odktables.rest.entity.OdkTablesFileManifestEntr
 import org.opendatakit.aggregate.odktables.rest.entity.Row;
 import org.opendatakit.aggregate.odktables.rest.entity.RowList;
 import org.opendatakit.aggregate.odktables.rest.entity.RowOutcomeList;
-import org.opendatakit.aggregate.odktables.rest.entity.RowResourceList;
 import org.opendatakit.aggregate.odktables.rest.entity.TableDefinition;
 import org.opendatakit.aggregate.odktables.rest.entity.TableDefinitionResource;
 import org.opendatakit.aggregate.odktables.rest.entity.TableResource;
@@ -71,10 +75,15 @@ import org.opendatakit.common.android.utilities.ODKFileUtils;
 import org.opendatakit.common.android.utilities.SyncETagsUtils;
 import org.opendatakit.common.android.utilities.WebLogger;
 import org.opendatakit.common.android.utilities.WebUtils;
+import org.opendatakit.sync.FileSyncETags;
+import org.opendatakit.sync.PushBatchSizer;
 import org.opendatakit.sync.R;
 import org.opendatakit.sync.SyncPreferences;
 import org.opendatakit.sync.SyncRow;
+import org.opendatakit.sync.SyncRowLayout;
+import org.opendatakit.sync.SyncRowPage;
 import org.opendatakit.sync.SyncRowPending;
+import org.opendatakit.sync.SyncValuePool;
 import org.opendatakit.sync.Synchronizer;
 import org.opendatakit.sync.application.Sync;
 import org.opendatakit.sync.exceptions.InvalidAuthTokenException;
@@ -111,6 +120,37 @@ public class AggregateSynchronizer implements Synchronizer {
   public static final String QUERY_START_TIME = "startTime";
   public static final String QUERY_END_TIME = "endTime";
 
+  // optional protocol features, reported by the server in a response header.
+  public static final String SERVER_CAPABILITIES_HEADER = "X-OpenDataKit-Capabilities";
+  // alterRows accepts rows holding only their changed values.
+  public static final String CAPABILITY_ROW_DELTA = "row-delta";
+  // request header marking an alterRows request whose rows may be deltas.
+  public static final String ROW_DELTA_HEADER = "X-OpenDataKit-Row-Delta";
+  // ROW_DELTA_HEADER value on a 400 response from a server that cannot apply deltas.
+  public static final String ROW_DELTA_UNSUPPORTED = "unsupported";
+  // request entities may be gzip-encoded.
+  public static final String CAPABILITY_GZIP_REQUEST = "gzip-request";
+  // each row's attachments are listed at .../attachments/{rowId}/manifest
+  public static final String CAPABILITY_ATTACHMENT_MANIFEST = "attachment-manifest";
+
+  /** Smallest (estimated) request entity worth compressing */
+  public static final int REQUEST_COMPRESSION_THRESHOLD_BYTES = 2048;
+  /** estimated serialized size of the JSON punctuation around a column */
+  private static final int COLUMN_OVERHEAD_BYTES = 96;
+
+  // instance files may be uploaded in chunks (see ByteRanges).
+  public static final String CAPABILITY_RESUMABLE_UPLOAD = "resumable-upload";
+
+  /** Size of each chunk of a resumable upload */
+  public static final int UPLOAD_CHUNK_BYTES = 512 * 1024;
+
+  /**
+   * suffixes of the files holding a partial download, and its ETag. Only the
+   * sync writes files with these names, so they are never synced themselves.
+   */
+  private static final String PARTIAL_DOWNLOAD_SUFFIX = ".odksync-partial";
+  private static final String PARTIAL_DOWNLOAD_ETAG_SUFFIX = ".odksync-partial.etag";
+
   /** Timeout (in ms) we specify for each http request */
   public static final int HTTP_REQUEST_TIMEOUT_MS = 30 * 1000;
   /** Path to the file servlet on the Aggregate server. */
@@ -170,7 +210,7 @@ public class AggregateSynchronizer implements Synchronizer {
   private final String appName;
   private final String odkClientApiVersion;
   private final String aggregateUri;
-  private String accessToken;
+  private volatile String accessToken;
   private final RestClient tokenRt;
   private final RestClient rt;
   private final Map<String, TableResource> resources;
@@ -179,6 +219,12 @@ public class AggregateSynchronizer implements Synchronizer {
   private final WebLogger log;
   // cookie manager 
   private final CookieManager cm;
+  // capabilities most recently reported by the server
+  private final Set<String> serverCapabilities = Collections.synchronizedSet(new HashSet<String>());
+  // set if the server failed a request holding row deltas
+  private volatile boolean rowDeltasRejected = false;
+  // set if the server failed a compressed request
+  private volatile boolean requestCompressionRejected = false;
 
 
   private final URI normalizeUri(String aggregateUri, String additionalPathPortion) {
@@ -308,9 +354,10 @@ public class AggregateSynchronizer implements Synchronizer {
 
     // set our preferred response media type to json using quality parameters
     Map<String, String> mediaTypeParams;
+    boolean offerSmile = SmileMessageReader.isAvailable();
     // we really like JSON
     mediaTypeParams = new HashMap<String, String>();
-    mediaTypeParams.put("q", "1.0");
+    mediaTypeParams.put("q", offerSmile ? "0.9" : "1.0");
     MediaType json = new MediaType(MediaType.APPLICATION_JSON_TYPE.getType(),
         MediaType.APPLICATION_JSON_TYPE.getSubtype(), mediaTypeParams);
     // don't really want plaintext...
@@ -320,8 +367,18 @@ public class AggregateSynchronizer implements Synchronizer {
     MediaType tplainUtf8 = new MediaType(MediaType.TEXT_PLAIN_TYPE.getType(),
         MediaType.TEXT_PLAIN_TYPE.getSubtype(), mediaTypeParams);
 
-    // accept either json or plain text (no XML to device)
-    rsc.accept(json, tplainUtf8);
+    if (offerSmile) {
+      // but like binary JSON (Smile) even more, if the server has it
+      mediaTypeParams = new HashMap<String, String>();
+      mediaTypeParams.put("q", "1.0");
+      MediaType smile = new MediaType(SmileMessageReader.APPLICATION_SMILE_TYPE.getType(),
+          SmileMessageReader.APPLICATION_SMILE_TYPE.getSubtype(), mediaTypeParams);
+      // accept smile, json or plain text (no XML to device)
+      rsc.accept(smile, json, tplainUtf8);
+    } else {
+      // accept either json or plain text (no XML to device)
+      rsc.accept(json, tplainUtf8);
+    }
 
     // set the response entity character set to CharEncoding.UTF_8
     rsc.header("Accept-Charset", CharEncoding.UTF_8);
@@ -376,10 +433,17 @@ public class AggregateSynchronizer implements Synchronizer {
     // now everything should work...
     ClientConfig cc;
 
-    cc = new ClientConfig();
+    // stream request entities rather than buffering them in the connection.
+    cc = new ClientConfig() {
+      @Override
+      protected ConnectionHandler getConnectionHandler() {
+        return new StreamingConnectionHandler();
+      }
+    };
     cc.setLoadWinkApplications(false);
     cc.applications(new ODKClientApplication());
-    cc.handlers(new GzipHandler(), new ReAuthSecurityHandler(this));
+    cc.handlers(new GzipHandler(), new RangeRequestHandler(), new GzipRequestHandler(),
+        new ReAuthSecurityHandler(this), new ServerCapabilitiesHandler(this));
     cc.connectTimeout(WebUtils.CONNECTION_TIMEOUT);
     cc.readTimeout(2 * WebUtils.CONNECTION_TIMEOUT);
     cc.followRedirects(true);
@@ -453,19 +517,21 @@ public class AggregateSynchronizer implements Synchronizer {
   }
 
   @Override
-  public TableResourceList getTables(String webSafeResumeCursor) throws ClientWebException, InvalidAuthTokenException {
+  public TableResourceList getTables(String webSafeResumeCursor, Integer fetchLimit) throws ClientWebException, InvalidAuthTokenException {
 
     TableResourceList tableResources;
     try {
       String tableFrag = getTablesUriFragment();
       tableFrag = tableFrag.substring(0, tableFrag.length() - 1);
       URI uri = normalizeUri(aggregateUri, tableFrag);
-      if ( webSafeResumeCursor == null ) {
-        tableResources = buildResource(uri).get(TableResourceList.class);
-      } else {
-        tableResources = buildResource(uri).queryParam(CURSOR_PARAMETER, webSafeResumeCursor)
-            .get(TableResourceList.class);
+      Resource resource = buildResource(uri);
+      if ( webSafeResumeCursor != null ) {
+        resource = resource.queryParam(CURSOR_PARAMETER, webSafeResumeCursor);
+      }
+      if ( fetchLimit != null ) {
+        resource = resource.queryParam(FETCH_LIMIT, fetchLimit.toString());
       }
+      tableResources = resource.get(TableResourceList.class);
     } catch (ClientWebException e) {
       log.e(LOGTAG, "Exception while requesting list of tables from server: " + e.toString());
       throw e;
@@ -489,6 +555,70 @@ public class AggregateSynchronizer implements Synchronizer {
     return instanceFileUri;
   }
   
+  /**
+   * Decide whether to gzip a request entity.
+   *
+   * @param estimatedBytes
+   *          the estimated size of the uncompressed entity
+   * @return true if the server accepts compressed requests and the entity is
+   *         large enough for compression to pay.
+   */
+  private boolean shouldCompressRequest(int estimatedBytes) {
+    return estimatedBytes >= REQUEST_COMPRESSION_THRESHOLD_BYTES && !requestCompressionRejected
+        && serverCapabilities.contains(CAPABILITY_GZIP_REQUEST);
+  }
+
+  /**
+   * Mark the request entity to be gzipped by the GzipRequestHandler.
+   *
+   * @param rsc
+   */
+  private static void compressRequest(Resource rsc) {
+    rsc.header(HttpHeaders.CONTENT_ENCODING, ApiConstants.GZIP_CONTENT_ENCODING);
+  }
+
+  /**
+   * If a compressed request failed because the server could not decode it,
+   * stop compressing requests for the rest of this sync.
+   *
+   * @param e
+   * @return true if the request should be re-sent uncompressed.
+   */
+  private boolean isRequestCompressionRejected(ClientWebException e) {
+    if (e.getResponse() != null
+        && e.getResponse().getStatusCode() == HttpStatus.SC_UNSUPPORTED_MEDIA_TYPE) {
+      log.w(LOGTAG, "Compressed request rejected by server; sending uncompressed: "
+          + e.toString());
+      requestCompressionRejected = true;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * If a delta request failed because the server, despite advertising
+   * deltas, cannot apply them, send full rows for the rest of this sync. The
+   * server says so by answering 400 with ROW_DELTA_HEADER set to
+   * ROW_DELTA_UNSUPPORTED; any other 400 is a genuine error.
+   *
+   * @param e
+   * @return true if the request should be re-sent with full rows.
+   */
+  private boolean isRowDeltaRejected(ClientWebException e) {
+    if (e.getResponse() != null
+        && e.getResponse().getStatusCode() == HttpStatus.SC_BAD_REQUEST
+        && ROW_DELTA_UNSUPPORTED.equalsIgnoreCase(e.getResponse().getHeaders()
+            .getFirst(ROW_DELTA_HEADER))) {
+      rowDeltasRejected = true;
+      return true;
+    }
+    return false;
+  }
+
+  private static int length(String value) {
+    return (value == null) ? 0 : value.length();
+  }
+
   @Override
   public TableResource createTable(String tableId, String schemaETag, ArrayList<Column> columns)
       throws ClientWebException, InvalidAuthTokenException {
@@ -496,13 +626,27 @@ public class AggregateSynchronizer implements Synchronizer {
     // build request
     URI uri = normalizeUri(aggregateUri, getTablesUriFragment() + tableId);
     TableDefinition definition = new TableDefinition(tableId, schemaETag, columns);
+    int estimatedBytes = 0;
+    for (Column column : columns) {
+      estimatedBytes += COLUMN_OVERHEAD_BYTES + length(column.getElementKey())
+          + length(column.getElementName()) + length(column.getElementType())
+          + length(column.getListChildElementKeys());
+    }
+    boolean compress = shouldCompressRequest(estimatedBytes);
     // create table
     TableResource resource;
     try {
       // TODO: we also need to put up the key value store/properties.
-      resource = buildResource(uri).put(new EntityType<TableResource>() {
+      Resource rsc = buildResource(uri);
+      if (compress) {
+        compressRequest(rsc);
+      }
+      resource = rsc.put(new EntityType<TableResource>() {
       }, definition);
     } catch (ClientWebException e) {
+      if (compress && isRequestCompressionRejected(e)) {
+        return createTable(tableId, schemaETag, columns);
+      }
       log.e(LOGTAG,
           "ResourceAccessException in createTable: " + tableId + " exception: " + e.toString());
       throw e;
@@ -544,8 +688,9 @@ public class AggregateSynchronizer implements Synchronizer {
   }
   
   @Override
-  public RowResourceList getChangeSet(TableResource table, String dataETag, boolean activeOnly, String websafeResumeCursor)
-      throws ClientWebException, InvalidAuthTokenException {
+  public SyncRowPage getChangeSet(TableResource table, String dataETag, boolean activeOnly, String websafeResumeCursor, Integer fetchLimit,
+      SyncRowLayout layout, SyncValuePool pool)
+      throws ClientWebException, InvalidAuthTokenException, IOException {
 
     String tableId = table.getTableId();
     URI uri;
@@ -565,22 +710,34 @@ public class AggregateSynchronizer implements Synchronizer {
     if ( websafeResumeCursor != null ) {
       resource = resource.queryParam(CURSOR_PARAMETER, websafeResumeCursor);
     }
+    // and the page size...
+    if ( fetchLimit != null ) {
+      resource = resource.queryParam(FETCH_LIMIT, fetchLimit.toString());
+    }
     
-    RowResourceList rows;
+    InputStream stream;
     try {
-      rows = resource.get(RowResourceList.class);
-      return rows;
+      stream = resource.get(InputStream.class);
     } catch (ClientWebException e) {
       log.e(LOGTAG, "Exception while requesting changeSet rows from server: " + tableId
           + " exception: " + e.toString());
       throw e;
     }
+    // decode the rows as they arrive
+    try {
+      return RowResourceListParser.parse(stream, layout, pool);
+    } catch (IOException e) {
+      log.e(LOGTAG, "Exception while reading changeSet rows from server: " + tableId
+          + " exception: " + e.toString());
+      throw e;
+    }
   }
 
 
   @Override
-  public RowResourceList getUpdates(TableResource table, String dataETag, String websafeResumeCursor)
-      throws ClientWebException, InvalidAuthTokenException {
+  public SyncRowPage getUpdates(TableResource table, String dataETag, String websafeResumeCursor, Integer fetchLimit,
+      SyncRowLayout layout, SyncValuePool pool)
+      throws ClientWebException, InvalidAuthTokenException, IOException {
 
     String tableId = table.getTableId();
     URI uri;
@@ -596,39 +753,103 @@ public class AggregateSynchronizer implements Synchronizer {
     if ( websafeResumeCursor != null ) {
       resource = resource.queryParam(CURSOR_PARAMETER, websafeResumeCursor);
     }
-    RowResourceList rows;
+    // and the page size...
+    if ( fetchLimit != null ) {
+      resource = resource.queryParam(FETCH_LIMIT, fetchLimit.toString());
+    }
+    InputStream stream;
     try {
-      rows = resource.get(RowResourceList.class);
-      return rows;
+      stream = resource.get(InputStream.class);
     } catch (ClientWebException e) {
       log.e(LOGTAG, "Exception while requesting list of rows from server: " + tableId
           + " exception: " + e.toString());
       throw e;
     }
+    // decode the rows as they arrive
+    try {
+      return RowResourceListParser.parse(stream, layout, pool);
+    } catch (IOException e) {
+      log.e(LOGTAG, "Exception while reading list of rows from server: " + tableId
+          + " exception: " + e.toString());
+      throw e;
+    }
+  }
+
+  /**
+   * Record the capabilities reported by the server, replacing any reported
+   * earlier.
+   *
+   * @param capabilities
+   *          comma-separated list of capability names
+   */
+  void recordServerCapabilities(String capabilities) {
+    Set<String> reported = new HashSet<String>();
+    for (String capability : capabilities.split(",")) {
+      String name = capability.trim().toLowerCase(Locale.ENGLISH);
+      if (name.length() != 0) {
+        reported.add(name);
+      }
+    }
+    synchronized (serverCapabilities) {
+      serverCapabilities.retainAll(reported);
+      serverCapabilities.addAll(reported);
+    }
+  }
+
+  @Override
+  public boolean supportsRowDeltas() {
+    return !rowDeltasRejected && serverCapabilities.contains(CAPABILITY_ROW_DELTA);
   }
 
   @Override
   public RowOutcomeList alterRows(TableResource resource,
       List<SyncRow> rowsToInsertUpdateOrDelete) throws ClientWebException, InvalidAuthTokenException {
 
+    boolean sendDeltas = false;
+    if (supportsRowDeltas()) {
+      for (SyncRow rowToAlter : rowsToInsertUpdateOrDelete) {
+        if (rowToAlter.getChangedColumns() != null) {
+          sendDeltas = true;
+          break;
+        }
+      }
+    }
+
     ArrayList<Row> rows = new ArrayList<Row>();
     for (SyncRow rowToAlter : rowsToInsertUpdateOrDelete) {
       Row row = Row.forUpdate(rowToAlter.getRowId(), rowToAlter.getRowETag(),
           rowToAlter.getFormId(), rowToAlter.getLocale(),
           rowToAlter.getSavepointType(), rowToAlter.getSavepointTimestamp(),
           rowToAlter.getSavepointCreator(), rowToAlter.getFilterScope(),
-          rowToAlter.getValues());
+          sendDeltas ? rowToAlter.getChangedValues() : rowToAlter.getValues());
       row.setDeleted(rowToAlter.isDeleted());
       rows.add(row);
     }
     RowList rlist = new RowList(rows, resource.getDataETag());
 
     URI uri = URI.create(resource.getDataUri());
+    boolean compress = shouldCompressRequest(PushBatchSizer
+        .estimateBytes(rowsToInsertUpdateOrDelete));
     RowOutcomeList outcomes;
     try {
-      outcomes = buildResource(uri).put(new EntityType<RowOutcomeList>() {
+      Resource rsc = buildResource(uri);
+      if (sendDeltas) {
+        rsc.header(ROW_DELTA_HEADER, "true");
+      }
+      if (compress) {
+        compressRequest(rsc);
+      }
+      outcomes = rsc.put(new EntityType<RowOutcomeList>() {
       }, rlist);
     } catch (ClientWebException e) {
+      if (compress && isRequestCompressionRejected(e)) {
+        return alterRows(resource, rowsToInsertUpdateOrDelete);
+      }
+      if (sendDeltas && isRowDeltaRejected(e)) {
+        log.w(LOGTAG, "Row deltas rejected by server; sending full rows: "
+            + resource.getTableId() + " exception: " + e.toString());
+        return alterRows(resource, rowsToInsertUpdateOrDelete);
+      }
       log.e(LOGTAG,
           "Exception while updating rows on server: " + resource.getTableId() + " exception: " + e.toString());
       throw e;
@@ -771,6 +992,10 @@ public class AggregateSynchronizer implements Synchronizer {
     List<String> relativePaths = new ArrayList<String>();
     // we want the relative path, so drop the necessary bets.
     for (File f : nondirFiles) {
+      if (isPartialDownload(f)) {
+        // not (yet) one of our files
+        continue;
+      }
       // +1 to exclude the separator.
       relativePaths.add(ODKFileUtils.asRelativePath(appName, f));
     }
@@ -1178,6 +1403,10 @@ public class AggregateSynchronizer implements Synchronizer {
     log.i(LOGTAG, "[uploadFile] filePostUri: " + instanceFileUri.toString());
     String ct = determineContentType(file.getName());
     MediaType contentType = MediaType.valueOf(ct);
+    if (file.length() > UPLOAD_CHUNK_BYTES
+        && serverCapabilities.contains(CAPABILITY_RESUMABLE_UPLOAD)) {
+      return uploadInstanceFileInChunks(file, instanceFileUri, contentType);
+    }
     ClientResponse response = buildResource(instanceFileUri, contentType).post(file);
     if (response.getStatusCode() < 200 || response.getStatusCode() >= 300) {
       return false;
@@ -1188,6 +1417,107 @@ public class AggregateSynchronizer implements Synchronizer {
     return true;
   }
 
+  /**
+   * Ask the server how much of an instance file it already holds.
+   *
+   * @param instanceFileUri
+   * @param contentType
+   * @param total
+   *          length of the file
+   * @return the server's response
+   * @throws InvalidAuthTokenException
+   */
+  private ClientResponse queryUploadedLength(URI instanceFileUri, MediaType contentType, long total)
+      throws InvalidAuthTokenException {
+    Resource rsc = buildResource(instanceFileUri, contentType);
+    rsc.header(ByteRanges.CONTENT_RANGE_HEADER, ByteRanges.unsatisfiedContentRange(total));
+    return rsc.post(new byte[0]);
+  }
+
+  /**
+   * Upload an instance file in chunks of UPLOAD_CHUNK_BYTES. The server
+   * acknowledges the bytes it holds after each chunk and keeps them if the
+   * upload is interrupted. Each upload first asks the server how much of the
+   * file it holds, so a retry (in this or a later sync) sends only the rest.
+   *
+   * @param file
+   * @param instanceFileUri
+   * @param contentType
+   * @return true if the server holds the whole file
+   * @throws InvalidAuthTokenException
+   */
+  private boolean uploadInstanceFileInChunks(File file, URI instanceFileUri, MediaType contentType)
+      throws InvalidAuthTokenException {
+    long total = file.length();
+    RandomAccessFile raf = null;
+    try {
+      raf = new RandomAccessFile(file, "r");
+      ClientResponse response = queryUploadedLength(instanceFileUri, contentType, total);
+      long lastOffset = -1L;
+      int failures = 0;
+      for (;;) {
+        int statusCode = response.getStatusCode();
+        response.consumeContent();
+        if (statusCode >= 200 && statusCode < 300) {
+          return response.getHeaders().containsKey(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER);
+        }
+        long offset;
+        if (statusCode == ByteRanges.SC_RESUME_INCOMPLETE) {
+          offset = ByteRanges.parseAcknowledgedLength(response.getHeaders().getFirst(
+              ByteRanges.RANGE_HEADER));
+        } else if (statusCode == HttpStatus.SC_NOT_FOUND && lastOffset == -1L) {
+          // the server holds none of it
+          offset = 0L;
+        } else {
+          log.w(LOGTAG, "uploading " + instanceFileUri.toString() + " returns " + statusCode);
+          return false;
+        }
+        if (offset < 0L || offset >= total) {
+          log.w(LOGTAG, "uploading " + instanceFileUri.toString()
+              + " unexpected acknowledged length: " + offset);
+          return false;
+        }
+        if (offset <= lastOffset && ++failures > 2) {
+          // no progress
+          return false;
+        }
+        lastOffset = offset;
+
+        int len = (int) Math.min((long) UPLOAD_CHUNK_BYTES, total - offset);
+        byte[] chunk = new byte[len];
+        raf.seek(offset);
+        raf.readFully(chunk);
+        Resource rsc = buildResource(instanceFileUri, contentType);
+        rsc.header(ByteRanges.CONTENT_RANGE_HEADER,
+            ByteRanges.contentRange(offset, offset + len - 1, total));
+        try {
+          response = rsc.post(chunk);
+        } catch (ClientWebException e) {
+          throw e;
+        } catch (ClientRuntimeException e) {
+          // most likely a socket timeout. Ask the server what it received.
+          log.w(LOGTAG, "uploading " + instanceFileUri.toString() + " failed at " + offset
+              + " bytes: " + e.toString());
+          if (++failures > 2) {
+            return false;
+          }
+          response = queryUploadedLength(instanceFileUri, contentType, total);
+        }
+      }
+    } catch (IOException e) {
+      log.e(LOGTAG, "unable to read " + file.getAbsolutePath() + ": " + e.toString());
+      return false;
+    } finally {
+      if (raf != null) {
+        try {
+          raf.close();
+        } catch (IOException e) {
+          // no-op
+        }
+      }
+    }
+  }
+
   /**
    * Get the URI to which to post in order to upload the file.
    *
@@ -1305,6 +1635,86 @@ public class AggregateSynchronizer implements Synchronizer {
   }
 
   /**
+   * @param file
+   * @return the file holding the partial download of file.
+   */
+  private static File getPartialDownloadFile(File file) {
+    return new File(file.getParentFile(), file.getName() + PARTIAL_DOWNLOAD_SUFFIX);
+  }
+
+  /**
+   * @param file
+   * @return the file holding the ETag of the partial download of file.
+   */
+  private static File getPartialDownloadETagFile(File file) {
+    return new File(file.getParentFile(), file.getName() + PARTIAL_DOWNLOAD_ETAG_SUFFIX);
+  }
+
+  private static boolean isPartialDownload(File f) {
+    return f.getName().endsWith(PARTIAL_DOWNLOAD_SUFFIX)
+        || f.getName().endsWith(PARTIAL_DOWNLOAD_ETAG_SUFFIX);
+  }
+
+  /**
+   * @param eTagFile
+   * @return null or the ETag of the entity whose leading bytes were saved.
+   */
+  private String readPartialDownloadETag(File eTagFile) {
+    if (!eTagFile.exists()) {
+      return null;
+    }
+    FileInputStream in = null;
+    try {
+      in = new FileInputStream(eTagFile);
+      byte[] buf = new byte[(int) Math.min(eTagFile.length(), 1024L)];
+      int len = 0;
+      int n;
+      while (len < buf.length && (n = in.read(buf, len, buf.length - len)) > 0) {
+        len += n;
+      }
+      String eTag = new String(buf, 0, len, CharEncoding.UTF_8);
+      return (eTag.length() == 0) ? null : eTag;
+    } catch (IOException e) {
+      log.w(LOGTAG, "unable to read " + eTagFile.getAbsolutePath() + ": " + e.toString());
+      return null;
+    } finally {
+      if (in != null) {
+        try {
+          in.close();
+        } catch (IOException e) {
+          // no-op
+        }
+      }
+    }
+  }
+
+  private void writePartialDownloadETag(File eTagFile, String eTag) throws IOException {
+    FileOutputStream out = new FileOutputStream(eTagFile);
+    try {
+      out.write(eTag.getBytes(CharEncoding.UTF_8));
+    } finally {
+      out.close();
+    }
+  }
+
+  private static void discardPartialDownload(File tmp, File tmpETag) {
+    if (tmp.exists()) {
+      tmp.delete();
+    }
+    if (tmpETag.exists()) {
+      tmpETag.delete();
+    }
+  }
+
+  /**
+   * Download a file. The bytes are written to a temporary file that is
+   * renamed to destFile once complete.
+   * <p>
+   * If the response carries an ETag and is not content-encoded, the temporary
+   * file (and the ETag) are kept when the transfer fails, and a later
+   * download resumes with a Range request for the missing bytes. The If-Range
+   * header ensures that the server sends the whole file again if it has
+   * changed.
    *
    * @param destFile
    * @param downloadUrl
@@ -1313,11 +1723,15 @@ public class AggregateSynchronizer implements Synchronizer {
    */
   private int downloadFile(File destFile, URI downloadUrl) throws Exception {
 
+    File tmp = getPartialDownloadFile(destFile);
+    File tmpETag = getPartialDownloadETagFile(destFile);
+
     // WiFi network connections can be renegotiated during a large form download
     // sequence.
     // This will cause intermittent download failures. Silently retry once after
     // each
     // failure. Only if there are two consecutive failures, do we abort.
+    // Each retry resumes from the bytes already received.
     boolean success = false;
     int attemptCount = 0;
     while (!success && attemptCount++ <= 2) {
@@ -1327,13 +1741,36 @@ public class AggregateSynchronizer implements Synchronizer {
         String md5Hash = ODKFileUtils.getMd5Hash(appName, destFile);
         resource.header(HttpHeaders.IF_NONE_MATCH, md5Hash);
       }
+
+      // resume a partial download, if we know what it is a part of.
+      long offset = 0L;
+      String partialETag = null;
+      if (tmp.exists() && tmp.length() > 0L) {
+        partialETag = readPartialDownloadETag(tmpETag);
+      }
+      if (partialETag != null) {
+        offset = tmp.length();
+        // the RangeRequestHandler asks for the identity encoding.
+        resource.header(ByteRanges.RANGE_HEADER, ByteRanges.rangeFrom(offset));
+        resource.header(ByteRanges.IF_RANGE_HEADER, partialETag);
+        log.i(LOGTAG, "resuming download of " + downloadUrl.toString() + " at " + offset);
+      } else {
+        discardPartialDownload(tmp, tmpETag);
+      }
       
       ClientResponse response = null;
       try {
         response = resource.get();
         int statusCode = response.getStatusCode();
 
-        if (statusCode != HttpStatus.SC_OK) {
+        if (statusCode == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE && offset != 0L) {
+          // the partial download is not a prefix of the server's file.
+          response.consumeContent();
+          discardPartialDownload(tmp, tmpETag);
+          continue;
+        }
+
+        if (statusCode != HttpStatus.SC_OK && statusCode != HttpStatus.SC_PARTIAL_CONTENT) {
           response.consumeContent();
           if (statusCode == HttpStatus.SC_UNAUTHORIZED) {
             // clear the cookies -- should not be necessary?
@@ -1348,15 +1785,46 @@ public class AggregateSynchronizer implements Synchronizer {
           log.w(LOGTAG, "downloading " + downloadUrl.toString() + " appears to have been redirected.");
           return 302;
         }
+
+        boolean append = false;
+        if (statusCode == HttpStatus.SC_PARTIAL_CONTENT) {
+          long start = ByteRanges.parseContentRangeStart(response.getHeaders().getFirst(
+              ByteRanges.CONTENT_RANGE_HEADER));
+          if (offset == 0L || start != offset) {
+            // not the range we asked for.
+            response.consumeContent();
+            discardPartialDownload(tmp, tmpETag);
+            continue;
+          }
+          String encoding = response.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING);
+          if (encoding != null
+              && !encoding.equalsIgnoreCase(RangeRequestHandler.IDENTITY_CONTENT_ENCODING)) {
+            // the range counts encoded bytes; they cannot be appended to
+            // the raw bytes we hold. Fetch the whole file instead.
+            response.consumeContent();
+            discardPartialDownload(tmp, tmpETag);
+            continue;
+          }
+          append = true;
+        } else {
+          // the whole file. Remember what it is, so that it can be resumed.
+          // The Range of a content-encoded response would count the encoded
+          // bytes, not those we write to the file, so don't resume those.
+          discardPartialDownload(tmp, tmpETag);
+          String eTag = response.getHeaders().getFirst(HttpHeaders.ETAG);
+          if (eTag != null
+              && !response.getHeaders().containsKey(HttpHeaders.CONTENT_ENCODING)) {
+            writePartialDownloadETag(tmpETag, eTag);
+          }
+        }
         
-        File tmp = new File(destFile.getParentFile(), destFile.getName() + ".tmp");
-        int totalLen = 0;
+        long totalLen = append ? offset : 0L;
         InputStream is = null;
         BufferedOutputStream os = null;
         try {
           // open the InputStream of the (uncompressed) entity body...
           is = response.getEntity(InputStream.class);
-          os = new BufferedOutputStream(new FileOutputStream(tmp));
+          os = new BufferedOutputStream(new FileOutputStream(tmp, append));
           
           // write connection to temporary file
           byte buf[] = new byte[8192];
@@ -1375,6 +1843,9 @@ public class AggregateSynchronizer implements Synchronizer {
           os = null;
 
           success = tmp.renameTo(destFile);
+          if (success) {
+            discardPartialDownload(tmp, tmpETag);
+          }
         } catch (Exception e) {
           // most likely a socket timeout
           e.printStackTrace();
@@ -1410,7 +1881,8 @@ public class AggregateSynchronizer implements Synchronizer {
               // no-op
             }
           }
-          if (tmp.exists()) {
+          if (tmp.exists() && !tmpETag.exists()) {
+            // cannot be resumed
             tmp.delete();
           }
           response.consumeContent();
@@ -1423,13 +1895,93 @@ public class AggregateSynchronizer implements Synchronizer {
         if (attemptCount != 1) {
           throw e;
         }
+      } catch (IOException e) {
+        // the bytes received so far are kept; the next attempt resumes.
+        if (attemptCount > 2) {
+          throw e;
+        }
       }
     }
+    if (!success) {
+      log.w(LOGTAG, "unable to complete download of " + downloadUrl.toString());
+      return HttpStatus.SC_INTERNAL_SERVER_ERROR;
+    }
     return HttpStatus.SC_OK;
   }
 
+  /**
+   * Ask the server whether it holds the instance file, without transferring
+   * its content. Issues a HEAD request carrying the md5 hash of the local
+   * file, if any.
+   *
+   * @param instanceFileUri
+   * @param md5Hash
+   *          null or the md5 hash of the local file
+   * @return SC_NOT_MODIFIED if the server's file matches the local file,
+   *         SC_OK if it differs, SC_NOT_FOUND or SC_NO_CONTENT if the server
+   *         does not have it, otherwise the status code of the failure.
+   * @throws InvalidAuthTokenException
+   */
+  private int checkFileOnServer(URI instanceFileUri, String md5Hash)
+      throws InvalidAuthTokenException {
+    Resource resource = buildFileDownloadResource(instanceFileUri);
+    if (md5Hash != null) {
+      resource.header(HttpHeaders.IF_NONE_MATCH, md5Hash);
+    }
+    ClientResponse response = resource.head();
+    response.consumeContent();
+    int statusCode = response.getStatusCode();
+    if (statusCode == HttpStatus.SC_OK
+        && !response.getHeaders().containsKey(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER)) {
+      log.w(LOGTAG, "checking " + instanceFileUri.toString() + " appears to have been redirected.");
+      return 302;
+    }
+    return statusCode;
+  }
+
+  /**
+   * Retrieve the list of the attachments the server holds for a row.
+   *
+   * @param instanceFileUri
+   * @param instanceId
+   * @return a map from the path of each attachment, relative to the instance
+   *         folder, to its md5 hash.
+   * @throws ClientWebException
+   * @throws InvalidAuthTokenException
+   */
+  private Map<String, String> getInstanceFileManifest(String instanceFileUri, String instanceId)
+      throws ClientWebException, InvalidAuthTokenException {
+    URI instanceManifestUri = normalizeUri(instanceFileUri, instanceId + "/manifest");
+    ClientResponse rsp = buildResource(instanceManifestUri).get();
+    if (rsp.getStatusCode() < 200 || rsp.getStatusCode() >= 300) {
+      throw new ClientWebException(null, rsp);
+    }
+    if (!rsp.getHeaders().containsKey(ApiConstants.OPEN_DATA_KIT_VERSION_HEADER) ) {
+      throw new ClientWebException(null, rsp);
+    }
+
+    OdkTablesFileManifest manifest;
+    manifest = rsp.getEntity(OdkTablesFileManifest.class);
+    Map<String, String> serverFiles = new HashMap<String, String>();
+    if (manifest != null && manifest.getFiles() != null) {
+      for (OdkTablesFileManifestEntry entry : manifest.getFiles()) {
+        if (entry.filename == null) {
+          continue;
+        }
+        String filename = entry.filename;
+        if (filename.startsWith("/")) {
+          filename = filename.substring(1);
+        }
+        serverFiles.put(filename, entry.md5hash);
+      }
+    }
+    return serverFiles;
+  }
+
   private static final class CommonFileAttachmentTerms {
     File localFile;
+    /** path of the file relative to the instance folder */
+    String instancePath;
     URI instanceFileDownloadUri;
   }
 
@@ -1463,21 +2015,58 @@ public class AggregateSynchronizer implements Synchronizer {
   
     CommonFileAttachmentTerms cat = new CommonFileAttachmentTerms();
     cat.localFile = localFile;
+    cat.instancePath = partialValue;
     cat.instanceFileDownloadUri = instanceFileDownloadUri;
     
     return cat;
   }
-  
+
+  @Override
+  public FileSyncETags getFileSyncETags(String instanceFileUri, String tableId,
+      SyncRowPending row) {
+    FileSyncETags eTags = new FileSyncETags(tableId);
+    SyncETagsUtils seu = new SyncETagsUtils();
+
+    String instanceId = row.getRowId();
+    File instanceFolder = new File(ODKFileUtils.getInstanceFolder(appName, tableId, instanceId));
+    for (String relativePath : row.getUriFragments()) {
+      CommonFileAttachmentTerms cat;
+      try {
+        cat = computeCommonFileAttachmentTerms(instanceFileUri, instanceId, instanceFolder,
+            relativePath);
+      } catch (IllegalStateException e) {
+        // reported when the attachments are transferred
+        continue;
+      }
+      if (cat.localFile.exists()) {
+        long lastModified = cat.localFile.lastModified();
+        String md5Hash = seu.getFileSyncETag(context, appName, cat.instanceFileDownloadUri,
+            tableId, lastModified);
+        if (md5Hash != null) {
+          eTags.putRecorded(cat.instanceFileDownloadUri, lastModified, md5Hash);
+        }
+      }
+    }
+    return eTags;
+  }
+
+  @Override
+  public void updateFileSyncETags(FileSyncETags eTags) {
+    SyncETagsUtils seu = new SyncETagsUtils();
+    for (FileSyncETags.Update update : eTags.getUpdates()) {
+      seu.updateFileSyncETag(context, appName, update.getFileUri(), eTags.getTableId(),
+          update.getLastModified(), update.getMd5Hash());
+    }
+  }
+
   @Override
   public boolean getFileAttachments(String instanceFileUri, String tableId, SyncRowPending serverRow,
-      boolean deferInstanceAttachments) throws ClientWebException {
+      FileSyncETags eTags, boolean deferInstanceAttachments) throws ClientWebException {
 
     if (serverRow.getUriFragments().isEmpty()) {
       this.log.w("getFileAttachments", "logic error - probably from conflict mgmt - should never get here!");
       return true;
     }
-    
-    SyncETagsUtils seu = new SyncETagsUtils();
 
     /**********************************************
      * 
@@ -1523,8 +2112,7 @@ public class AggregateSynchronizer implements Synchronizer {
           int statusCode = downloadFile(cat.localFile, cat.instanceFileDownloadUri);
           if (statusCode == HttpStatus.SC_OK || statusCode == HttpStatus.SC_NOT_MODIFIED) { 
             String md5Hash = ODKFileUtils.getMd5Hash(appName, cat.localFile);
-            seu.updateFileSyncETag(context, appName, cat.instanceFileDownloadUri, tableId,
-                cat.localFile.lastModified(), md5Hash);
+            eTags.update(cat.instanceFileDownloadUri, cat.localFile.lastModified(), md5Hash);
           } else {
             success = false;
           }
@@ -1533,12 +2121,11 @@ public class AggregateSynchronizer implements Synchronizer {
           // content on the server.
           // this could be inaccurate if there are buggy programs on the
           // device!
-          String md5hash = seu.getFileSyncETag(context, appName, cat.instanceFileDownloadUri,
-              tableId, cat.localFile.lastModified());
+          String md5hash = eTags.getRecorded(cat.instanceFileDownloadUri,
+              cat.localFile.lastModified());
           if (md5hash == null) {
             md5hash = ODKFileUtils.getMd5Hash(appName, cat.localFile);
-            seu.updateFileSyncETag(context, appName, cat.instanceFileDownloadUri, tableId,
-                cat.localFile.lastModified(), md5hash);
+            eTags.update(cat.instanceFileDownloadUri, cat.localFile.lastModified(), md5hash);
           }
         }
       }
@@ -1575,7 +2162,7 @@ public class AggregateSynchronizer implements Synchronizer {
 
   @Override
   public boolean putFileAttachments(String instanceFileUri, String tableId, SyncRowPending localRow,
-      boolean deferInstanceAttachments) throws ClientWebException {
+      FileSyncETags eTags, boolean deferInstanceAttachments) throws ClientWebException {
 
     if (localRow.getUriFragments().isEmpty()) {
       this.log.w("putFileAttachments", "logic error - probably from conflict mgmt - should never get here!");
@@ -1589,10 +2176,10 @@ public class AggregateSynchronizer implements Synchronizer {
      * 
      * With the new mechanism, we can directly fetch any file from the server
      * in the fileAttachmentColumns. For PUT, we don't know if the local file
-     * exists on the server, so we need to PUT every attachment. This can be 
-     * done by retrieving the manifest, and comparing that against the local 
-     * directory, or we can issue an if-none-match GET request for each file 
-     * we need. If we do not get a NOT_MODIFIED return, then we upload it. 
+     * exists on the server. If the server supports it, we retrieve the row's
+     * attachment manifest, and compare that against the local files.
+     * Otherwise, we issue an if-none-match HEAD request for each file. 
+     * Only the files the server does not have are uploaded. 
      */
     boolean success = true;
     try {
@@ -1602,7 +2189,13 @@ public class AggregateSynchronizer implements Synchronizer {
       // 2) Get the folder holding the instance attachments
       File instanceFolder = new File(ODKFileUtils.getInstanceFolder(appName, tableId, instanceId));
 
-      // 3) Iterate over all non-null file attachments in the data row
+      // 3) Get the md5 hashes of the files the server has for this row
+      Map<String, String> serverFiles = null;
+      if (serverCapabilities.contains(CAPABILITY_ATTACHMENT_MANIFEST)) {
+        serverFiles = getInstanceFileManifest(instanceFileUri, instanceId);
+      }
+
+      // 4) Iterate over all non-null file attachments in the data row
       for (String relativePath : localRow.getUriFragments()) {
         // clean up the value...
         if (relativePath.startsWith("/")) {
@@ -1613,16 +2206,34 @@ public class AggregateSynchronizer implements Synchronizer {
 
         if (cat.localFile.exists()) {
 
-          // issue a GET. If the return is NOT_MODIFIED, then we don't need to
-          // POST it.
-          int statusCode = downloadFile(cat.localFile, cat.instanceFileDownloadUri);
+          String md5Hash = eTags.getRecorded(cat.instanceFileDownloadUri,
+              cat.localFile.lastModified());
+          if (md5Hash == null) {
+            md5Hash = ODKFileUtils.getMd5Hash(appName, cat.localFile);
+          }
+
+          // If the return is NOT_MODIFIED, then we don't need to POST it.
+          int statusCode;
+          if (serverFiles != null) {
+            String serverMd5Hash = serverFiles.get(cat.instancePath);
+            if (serverMd5Hash == null) {
+              statusCode = HttpStatus.SC_NOT_FOUND;
+            } else if (serverMd5Hash.equals(md5Hash)) {
+              statusCode = HttpStatus.SC_NOT_MODIFIED;
+            } else {
+              statusCode = HttpStatus.SC_OK;
+            }
+          } else {
+            statusCode = checkFileOnServer(cat.instanceFileDownloadUri, md5Hash);
+          }
           if (statusCode == HttpStatus.SC_NOT_MODIFIED) {
             // no-op... what is on server matches local.
           } else if (statusCode == HttpStatus.SC_OK) {
             // The test for ODK header ensures we detect wifi login overlays
             // this should not happen -- indicates something is corrupted.
+            // File attachments are immutable on the server -- leave it.
             log.e(LOGTAG,
-                "Unexpectedly overwriting attachment: " + cat.instanceFileDownloadUri.toString());
+                "Server attachment differs from local file: " + cat.instanceFileDownloadUri.toString());
           } else if (statusCode == HttpStatus.SC_NOT_FOUND
               || statusCode == HttpStatus.SC_NO_CONTENT) {
 
@@ -1634,6 +2245,8 @@ public class AggregateSynchronizer implements Synchronizer {
             boolean outcome = uploadInstanceFile(cat.localFile, cat.instanceFileDownloadUri);
             if (!outcome) {
               success = false;
+            } else {
+              eTags.update(cat.instanceFileDownloadUri, cat.localFile.lastModified(), md5Hash);
             }
           } else {
             success = false;
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sync.aggregate;
+
+/**
+ * Formats and parses the byte-range headers used to resume file transfers.
+ * <p>
+ * Downloads resume with a Range request ("bytes=N-"); the server answers 206
+ * (Partial Content) with a Content-Range header ("bytes N-M/TOTAL").
+ * <p>
+ * Uploads are sent in chunks, each with a Content-Range header. Until the
+ * last chunk, the server answers 308 (Resume Incomplete) with a Range header
+ * ("bytes=0-M") acknowledging the bytes it holds. An empty request with
+ * Content-Range "bytes &#42;/TOTAL" asks the server how much it holds.
+ */
+public final class ByteRanges {
+
+  public static final String RANGE_HEADER = "Range";
+  public static final String IF_RANGE_HEADER = "If-Range";
+  public static final String CONTENT_RANGE_HEADER = "Content-Range";
+
+  /** status returned by the server while a chunked upload is incomplete */
+  public static final int SC_RESUME_INCOMPLETE = 308;
+
+  private static final String BYTES_UNIT = "bytes";
+
+  private ByteRanges() {
+  }
+
+  /**
+   * @param offset
+   * @return the Range header value requesting the bytes from offset onward.
+   */
+  public static String rangeFrom(long offset) {
+    return BYTES_UNIT + "=" + offset + "-";
+  }
+
+  /**
+   * @param first
+   *          offset of the first byte of the chunk
+   * @param last
+   *          offset of the last byte of the chunk (inclusive)
+   * @param total
+   *          length of the whole file
+   * @return the Content-Range header value for the chunk
+   */
+  public static String contentRange(long first, long last, long total) {
+    return BYTES_UNIT + " " + first + "-" + last + "/" + total;
+  }
+
+  /**
+   * @param total
+   *          length of the whole file
+   * @return the Content-Range header value of a request carrying no bytes
+   */
+  public static String unsatisfiedContentRange(long total) {
+    return BYTES_UNIT + " */" + total;
+  }
+
+  /**
+   * @param contentRange
+   *          e.g., "bytes 100-199/200"
+   * @return the offset of the first byte (100), or -1 if the header is absent
+   *         or cannot be parsed.
+   */
+  public static long parseContentRangeStart(String contentRange) {
+    if (contentRange == null) {
+      return -1L;
+    }
+    String value = contentRange.trim();
+    if (!value.startsWith(BYTES_UNIT + " ")) {
+      return -1L;
+    }
+    value = value.substring(BYTES_UNIT.length() + 1).trim();
+    int dash = value.indexOf('-');
+    if (dash <= 0) {
+      return -1L;
+    }
+    try {
+      return Long.parseLong(value.substring(0, dash).trim());
+    } catch (NumberFormatException e) {
+      return -1L;
+    }
+  }
+
+  /**
+   * @param range
+   *          the Range header of a 308 response, e.g., "bytes=0-1048575"
+   * @return the number of bytes the server holds (1048576); 0 if the header
+   *         is absent; -1 if it cannot be parsed or does not start at 0.
+   */
+  public static long parseAcknowledgedLength(String range) {
+    if (range == null) {
+      return 0L;
+    }
+    String value = range.trim();
+    if (!value.startsWith(BYTES_UNIT + "=")) {
+      return -1L;
+    }
+    value = value.substring(BYTES_UNIT.length() + 1).trim();
+    int dash = value.indexOf('-');
+    if (dash <= 0) {
+      return -1L;
+    }
+    try {
+      long first = Long.parseLong(value.substring(0, dash).trim());
+      long last = Long.parseLong(value.substring(dash + 1).trim());
+      if (first != 0L || last < first) {
+        return -1L;
+      }
+      return last + 1L;
+    } catch (NumberFormatException e) {
+      return -1L;
+    }
+  }
+}
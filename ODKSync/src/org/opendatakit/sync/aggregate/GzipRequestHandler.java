@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sync.aggregate;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.ws.rs.core.HttpHeaders;
+
+import org.apache.wink.client.ClientRequest;
+import org.apache.wink.client.ClientResponse;
+import org.apache.wink.client.handlers.ClientHandler;
+import org.apache.wink.client.handlers.HandlerContext;
+import org.apache.wink.client.handlers.OutputStreamAdapter;
+import org.opendatakit.aggregate.odktables.rest.ApiConstants;
+
+/**
+ * Handler that gzips the entity of a request marked with a gzip
+ * Content-Encoding header. The entity is compressed as it is written to the
+ * connection, which sends the compressed bytes in chunks as they are produced
+ * (see StreamingConnectionHandler); neither the uncompressed nor the
+ * compressed entity is held in memory as a whole. If the server refuses
+ * chunked requests, the connection buffers the compressed entity instead.
+ * <p>
+ * Whether to compress a request is decided by the caller, which knows the
+ * approximate size of the entity and whether the server accepts compressed
+ * requests.
+ */
+public class GzipRequestHandler implements ClientHandler {
+
+  /** size of the compressor's output buffer */
+  private static final int BUFFER_SIZE = 8192;
+
+  private static final OutputStreamAdapter gzipAdapter = new OutputStreamAdapter() {
+
+    @Override
+    public OutputStream adapt(OutputStream os, ClientRequest request) throws IOException {
+      return new GZIPOutputStream(os, BUFFER_SIZE);
+    }
+  };
+
+  public ClientResponse handle(ClientRequest request, HandlerContext context) throws Exception {
+    String encoding = request.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING);
+    if (request.getEntity() != null && encoding != null
+        && encoding.equalsIgnoreCase(ApiConstants.GZIP_CONTENT_ENCODING)) {
+      context.addOutputStreamAdapter(gzipAdapter);
+    }
+    return context.doChain(request);
+  }
+
+}
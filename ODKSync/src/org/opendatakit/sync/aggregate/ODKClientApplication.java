@@ -6,6 +6,7 @@ import java.util.Set;
 import javax.ws.rs.core.Application;
 
 import org.apache.wink.common.internal.providers.entity.FileProvider;
+import org.apache.wink.common.internal.providers.entity.InputStreamProvider;
 
 public class ODKClientApplication extends Application {
 
@@ -16,6 +17,12 @@ public class ODKClientApplication extends Application {
       // standard content stream reader/writer
       classes.add(SimpleJSONMessageReaderWriter.class);
       classes.add(FileProvider.class);
+      // raw response stream, for decoding large responses incrementally
+      classes.add(InputStreamProvider.class);
+      // binary JSON, if the codec is packaged with the app
+      if (SmileMessageReader.isAvailable()) {
+        classes.add(SmileMessageReader.class);
+      }
       return classes;
     }
 }
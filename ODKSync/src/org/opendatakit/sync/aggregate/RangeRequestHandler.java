@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sync.aggregate;
+
+import javax.ws.rs.core.HttpHeaders;
+
+import org.apache.wink.client.ClientRequest;
+import org.apache.wink.client.ClientResponse;
+import org.apache.wink.client.handlers.ClientHandler;
+import org.apache.wink.client.handlers.HandlerContext;
+import org.opendatakit.aggregate.odktables.rest.ApiConstants;
+
+/**
+ * Handler that asks for the identity encoding on requests carrying a Range
+ * header. The Content-Range of a content-encoded response counts encoded
+ * bytes, which cannot be appended to the raw bytes of a partial download.
+ * <p>
+ * Must follow the GzipHandler, which asks for gzip on every request.
+ */
+public class RangeRequestHandler implements ClientHandler {
+
+  public static final String IDENTITY_CONTENT_ENCODING = "identity";
+
+  public ClientResponse handle(ClientRequest request, HandlerContext context) throws Exception {
+    if (request.getHeaders().containsKey(ByteRanges.RANGE_HEADER)) {
+      request.getHeaders().remove(ApiConstants.ACCEPT_CONTENT_ENCODING_HEADER);
+      request.getHeaders().putSingle(HttpHeaders.ACCEPT_ENCODING, IDENTITY_CONTENT_ENCODING);
+    }
+    return context.doChain(request);
+  }
+
+}
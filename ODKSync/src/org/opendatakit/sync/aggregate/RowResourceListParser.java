@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sync.aggregate;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opendatakit.aggregate.odktables.rest.entity.RowResource;
+import org.opendatakit.sync.SyncRow;
+import org.opendatakit.sync.SyncRowLayout;
+import org.opendatakit.sync.SyncRowPage;
+import org.opendatakit.sync.SyncValuePool;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Decodes a RowResourceList response into a SyncRowPage as it streams in.
+ * <p>
+ * The JSON is parsed token by token straight from the (gzip) response
+ * stream. Each element of the rows array is bound to a RowResource on its
+ * own and immediately converted to a SyncRow, so only one RowResource is
+ * alive at a time and the page is never held as a whole object tree. The
+ * other properties of the list that the pull needs are read as they go by;
+ * the rest are skipped.
+ * <p>
+ * The response may be JSON or, if it was offered to the server, Smile; the
+ * two are told apart by the Smile header.
+ */
+final class RowResourceListParser {
+
+  // property names of the RowResourceList entity
+  private static final String ROWS = "rows";
+  private static final String DATA_ETAG = "dataETag";
+  private static final String WEB_SAFE_RESUME_CURSOR = "webSafeResumeCursor";
+  private static final String HAS_MORE_RESULTS = "hasMoreResults";
+
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  private RowResourceListParser() {
+  }
+
+  private static String getText(JsonParser parser) throws IOException {
+    return (parser.getCurrentToken() == JsonToken.VALUE_NULL) ? null : parser.getText();
+  }
+
+  /**
+   * Open a parser for the entity in whichever encoding it is in.
+   *
+   * @param stream
+   * @return
+   * @throws IOException
+   */
+  private static JsonParser createParser(InputStream stream) throws IOException {
+    PushbackInputStream in = new PushbackInputStream(stream,
+        SmileMessageReader.getHeaderLength());
+    byte[] header = new byte[SmileMessageReader.getHeaderLength()];
+    int length = 0;
+    while (length < header.length) {
+      int count = in.read(header, length, header.length - length);
+      if (count == -1) {
+        break;
+      }
+      length += count;
+    }
+    in.unread(header, 0, length);
+    if (SmileMessageReader.hasSmileHeader(header, length)) {
+      JsonFactory smile = SmileMessageReader.getFactory();
+      if (smile == null) {
+        in.close();
+        throw new IOException("Smile response, but Smile is not available");
+      }
+      return smile.createParser(in);
+    }
+    return mapper.getFactory().createParser(in);
+  }
+
+  /**
+   * Decode the response and close the stream.
+   *
+   * @param stream
+   *          the response entity
+   * @param layout
+   *          the layout of the SyncRows to build
+   * @param pool
+   *          canonicalizes the metadata values of the rows
+   * @return the page
+   * @throws IOException
+   */
+  static SyncRowPage parse(InputStream stream, SyncRowLayout layout, SyncValuePool pool)
+      throws IOException {
+    JsonParser parser = createParser(stream);
+    try {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new JsonParseException("expected a RowResourceList", parser.getCurrentLocation());
+      }
+      List<SyncRow> rows = new ArrayList<SyncRow>();
+      String dataETag = null;
+      String webSafeResumeCursor = null;
+      boolean hasMoreResults = false;
+
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String name = parser.getCurrentName();
+        JsonToken value = parser.nextToken();
+        if (ROWS.equals(name) && value == JsonToken.START_ARRAY) {
+          while (parser.nextToken() == JsonToken.START_OBJECT) {
+            RowResource row = mapper.readValue(parser, RowResource.class);
+            rows.add(SyncRow.convertToSyncRow(pool, layout, row));
+          }
+        } else if (DATA_ETAG.equals(name)) {
+          dataETag = getText(parser);
+        } else if (WEB_SAFE_RESUME_CURSOR.equals(name)) {
+          webSafeResumeCursor = getText(parser);
+        } else if (HAS_MORE_RESULTS.equals(name)) {
+          hasMoreResults = parser.getValueAsBoolean();
+        } else {
+          parser.skipChildren();
+        }
+      }
+      return new SyncRowPage(rows, dataETag, webSafeResumeCursor, hasMoreResults);
+    } finally {
+      // also closes the stream
+      parser.close();
+    }
+  }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sync.aggregate;
+
+import org.apache.wink.client.ClientRequest;
+import org.apache.wink.client.ClientResponse;
+import org.apache.wink.client.handlers.ClientHandler;
+import org.apache.wink.client.handlers.HandlerContext;
+
+/**
+ * Handler that records the optional protocol features the server reports it
+ * supports in the capabilities header of its responses. Servers that do not
+ * report any are sent only the baseline protocol.
+ */
+public class ServerCapabilitiesHandler implements ClientHandler {
+
+  private AggregateSynchronizer sync;
+
+  public ServerCapabilitiesHandler(AggregateSynchronizer sync) {
+    this.sync = sync;
+  }
+
+  public ClientResponse handle(ClientRequest request, HandlerContext context) throws Exception {
+    ClientResponse response = context.doChain(request);
+    String capabilities = response.getHeaders().getFirst(
+        AggregateSynchronizer.SERVER_CAPABILITIES_HEADER);
+    if (capabilities != null) {
+      sync.recordServerCapabilities(capabilities);
+    }
+    return response;
+  }
+
+}
@@ -16,31 +16,23 @@
 
 package org.opendatakit.sync.aggregate;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Type;
-import java.math.BigInteger;
-import java.nio.charset.Charset;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 
 import javax.ws.rs.Consumes;
 import javax.ws.rs.Produces;
 import javax.ws.rs.WebApplicationException;
-import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.MultivaluedMap;
 import javax.ws.rs.ext.MessageBodyReader;
 import javax.ws.rs.ext.MessageBodyWriter;
 import javax.ws.rs.ext.Provider;
 
-import org.opendatakit.aggregate.odktables.rest.ApiConstants;
-
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 @Consumes({MediaType.APPLICATION_JSON})
@@ -76,8 +68,9 @@ public class SimpleJSONMessageReaderWriter<T> implements MessageBodyReader<T>,
         throw new IllegalArgumentException("charset for the request is not utf-8");
       }
 
-      InputStreamReader r = new InputStreamReader(stream);
-      return mapper.readValue(r, aClass);
+      // let the parser decode the UTF-8 bytes itself, into its own
+      // (recycled) buffers.
+      return mapper.readValue(stream, aClass);
     } catch (Exception e) {
       throw new IOException(e);
     }
@@ -92,31 +85,19 @@ public class SimpleJSONMessageReaderWriter<T> implements MessageBodyReader<T>,
       if (!encoding.equalsIgnoreCase(DEFAULT_ENCODING)) {
         throw new IllegalArgumentException("charset for the response is not utf-8");
       }
-      // write it to a byte array
-      ByteArrayOutputStream bas = new ByteArrayOutputStream(8192);
-      OutputStreamWriter w = new OutputStreamWriter(bas,
-          Charset.forName(ApiConstants.UTF8_ENCODE));
-      mapper.writeValue(w, o);
-      // get the array and compute md5 hash
-      byte[] bytes = bas.toByteArray();
-      String eTag;
-      try {
-        MessageDigest md = MessageDigest.getInstance("MD5");
-        md.update(bytes);
-
-        byte[] messageDigest = md.digest();
-
-        BigInteger number = new BigInteger(1, messageDigest);
-        String md5 = number.toString(16);
-        while (md5.length() < 32)
-          md5 = "0" + md5;
-        eTag = "md5_" + md5;
-      } catch (NoSuchAlgorithmException e) {
-        throw new IllegalStateException("Unexpected problem computing md5 hash", e);
-      }
-      map.putSingle(HttpHeaders.ETAG, eTag);
-
-      rawStream.write(bytes);
+      // serialize straight to the stream. The generator encodes UTF-8
+      // itself into Jackson's recycled buffers, and the connection sends
+      // the entity in chunks as it is written (see
+      // StreamingConnectionHandler), so the entity is never held in memory
+      // as a whole. No ETag is sent with the entity: the
+      // server does not use the ETag of a request, and computing one would
+      // mean buffering the entity to hash it before the headers go out.
+      JsonGenerator generator = mapper.getFactory().createGenerator(rawStream,
+          JsonEncoding.UTF8);
+      // the transport owns the stream
+      generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+      mapper.writeValue(generator, o);
+      generator.flush();
       rawStream.flush();
 
     } catch (Exception e) {
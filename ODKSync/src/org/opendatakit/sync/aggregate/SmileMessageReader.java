@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sync.aggregate;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.ext.MessageBodyReader;
+import javax.ws.rs.ext.Provider;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Reads entities encoded as Smile, Jackson's binary encoding of the JSON data
+ * model. Smile responses are smaller than JSON and faster to decode, since
+ * field names and repeated short strings are back-referenced and numbers are
+ * not rendered as text.
+ * <p>
+ * The Smile codec (jackson-dataformat-smile, of the same version as the
+ * Jackson libraries supplied by androidcommon) is an optional library that
+ * this project does not package. It is loaded reflectively; unless it is added
+ * to the app's libs/, this provider is not registered and Smile is not offered
+ * to the server, so all responses are JSON. Servers that do not offer Smile
+ * respond with JSON as before.
+ */
+@Consumes({ SmileMessageReader.APPLICATION_SMILE })
+@Provider
+public class SmileMessageReader<T> implements MessageBodyReader<T> {
+
+  public static final String APPLICATION_SMILE = "application/x-jackson-smile";
+  public static final MediaType APPLICATION_SMILE_TYPE = MediaType
+      .valueOf(APPLICATION_SMILE);
+
+  private static final String SMILE_FACTORY_CLASS = "com.fasterxml.jackson.dataformat.smile.SmileFactory";
+
+  /** first bytes of every Smile document (":)\n") */
+  private static final byte[] SMILE_HEADER = { 0x3A, 0x29, 0x0A };
+
+  private static final ObjectMapper mapper = createMapper();
+
+  private static ObjectMapper createMapper() {
+    try {
+      JsonFactory factory = (JsonFactory) Class.forName(SMILE_FACTORY_CLASS).newInstance();
+      return new ObjectMapper(factory);
+    } catch (Exception e) {
+      // not packaged with the app
+      return null;
+    } catch (LinkageError e) {
+      // packaged, but does not match the Jackson version
+      return null;
+    }
+  }
+
+  /**
+   * @return true if the Smile codec is packaged with the app.
+   */
+  public static boolean isAvailable() {
+    return mapper != null;
+  }
+
+  /**
+   * @return the factory for Smile parsers and generators, or null if the
+   *         codec is not packaged with the app.
+   */
+  public static JsonFactory getFactory() {
+    return (mapper == null) ? null : mapper.getFactory();
+  }
+
+  /**
+   * @param bytes
+   *          the first bytes of an entity
+   * @param length
+   *          the number of bytes available
+   * @return true if the entity is a Smile document.
+   */
+  public static boolean hasSmileHeader(byte[] bytes, int length) {
+    if (length < SMILE_HEADER.length) {
+      return false;
+    }
+    for (int i = 0; i < SMILE_HEADER.length; ++i) {
+      if (bytes[i] != SMILE_HEADER[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the number of bytes needed by hasSmileHeader().
+   */
+  public static int getHeaderLength() {
+    return SMILE_HEADER.length;
+  }
+
+  @Override
+  public boolean isReadable(Class<?> type, Type genericType, Annotation annotations[],
+      MediaType mediaType) {
+    return mapper != null && mediaType.getType().equals(APPLICATION_SMILE_TYPE.getType())
+        && mediaType.getSubtype().equals(APPLICATION_SMILE_TYPE.getSubtype());
+  }
+
+  @Override
+  public T readFrom(Class<T> aClass, Type genericType, Annotation[] annotations,
+      MediaType mediaType, MultivaluedMap<String, String> map, InputStream stream)
+      throws IOException, WebApplicationException {
+    try {
+      return mapper.readValue(stream, aClass);
+    } catch (Exception e) {
+      throw new IOException(e);
+    }
+  }
+}
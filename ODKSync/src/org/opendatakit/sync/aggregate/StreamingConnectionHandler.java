@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2014 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sync.aggregate;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+
+import org.apache.http.HttpStatus;
+import org.apache.wink.client.ClientRequest;
+import org.apache.wink.client.ClientResponse;
+import org.apache.wink.client.handlers.HandlerContext;
+import org.apache.wink.client.internal.handlers.HttpURLConnectionHandler;
+
+/**
+ * Connection handler that sends request entities with chunked transfer
+ * encoding. Without a streaming mode, HttpURLConnection buffers the whole
+ * entity in memory so that it can send a Content-Length header; in chunked
+ * mode the entity goes out on the wire as the message body writer (and any
+ * output stream adapter, e.g., GzipRequestHandler) produces it.
+ * <p>
+ * A server that cannot read chunked requests answers 411 (Length Required).
+ * The request is then re-sent buffered, as are all later requests of this
+ * sync.
+ */
+public class StreamingConnectionHandler extends HttpURLConnectionHandler {
+
+  /** size of each chunk written to the connection */
+  public static final int CHUNK_BYTES = 8192;
+
+  private volatile boolean chunkedRequestsRejected = false;
+
+  @Override
+  protected HttpURLConnection openConnection(ClientRequest request) throws IOException {
+    HttpURLConnection connection = super.openConnection(request);
+    if (request.getEntity() != null && !chunkedRequestsRejected) {
+      connection.setChunkedStreamingMode(CHUNK_BYTES);
+    }
+    return connection;
+  }
+
+  @Override
+  public ClientResponse handle(ClientRequest request, HandlerContext context) throws Exception {
+    boolean chunked = request.getEntity() != null && !chunkedRequestsRejected;
+    ClientResponse response = super.handle(request, context);
+    if (chunked && response.getStatusCode() == HttpStatus.SC_LENGTH_REQUIRED) {
+      chunkedRequestsRejected = true;
+      response.consumeContent();
+      // the entity is serialized again, this time into the connection's buffer.
+      response = super.handle(request, context);
+    }
+    return response;
+  }
+}
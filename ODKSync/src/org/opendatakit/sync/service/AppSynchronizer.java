@@ -168,6 +168,9 @@ public class AppSynchronizer {
         ProcessAppAndTableLevelChanges appAndTableLevelProcessor = new ProcessAppAndTableLevelChanges(sharedContext);
         
         ProcessRowDataChanges rowDataProcessor = new ProcessRowDataChanges(sharedContext);
+        rowDataProcessor.setStageServerChanges(prefs.getStageServerChanges());
+        rowDataProcessor.setPipelinePush(prefs.getPipelinePush());
+        rowDataProcessor.setAttachmentTransferThreads(prefs.getAttachmentTransferThreads());
 
         status = SyncStatus.SYNCING;
         ODKFileUtils.assertDirectoryStructure(appName);
@@ -0,0 +1,51 @@
+package org.opendatakit.sync;
+
+import junit.framework.TestCase;
+
+public class AdaptivePageSizerTest extends TestCase {
+
+	public void testGrowsOnFastLinks() {
+		AdaptivePageSizer sizer = new AdaptivePageSizer(100);
+		// 100 rows in 100ms -- lots of headroom
+		sizer.recordFetch(100, 100, 100);
+		assertEquals(200, sizer.getPageSize());
+		sizer.recordFetch(200, 200, 200);
+		assertEquals(400, sizer.getPageSize());
+	}
+
+	public void testShortPageDoesNotGrow() {
+		AdaptivePageSizer sizer = new AdaptivePageSizer(100);
+		// end of the data -- tells us nothing about bigger pages
+		sizer.recordFetch(100, 10, 10);
+		assertEquals(100, sizer.getPageSize());
+	}
+
+	public void testShrinksOnSlowLinks() {
+		AdaptivePageSizer sizer = new AdaptivePageSizer(1000);
+		// 1000 rows in 60s -- far over the per-page budget
+		sizer.recordFetch(1000, 1000, 60000);
+		assertTrue(sizer.getPageSize() < 1000);
+		assertTrue(sizer.getPageSize() >= AdaptivePageSizer.MIN_PAGE_SIZE);
+	}
+
+	public void testSlowApplyLimitsGrowth() {
+		AdaptivePageSizer sizer = new AdaptivePageSizer(500);
+		sizer.recordApply(500, 30000);
+		int afterApply = sizer.getPageSize();
+		assertTrue(afterApply < 500);
+		// a fast fetch cannot grow past what the database can absorb
+		sizer.recordFetch(afterApply, afterApply, 1);
+		assertEquals(afterApply, sizer.getPageSize());
+	}
+
+	public void testFailureHalvesWithinBounds() {
+		AdaptivePageSizer sizer = new AdaptivePageSizer(AdaptivePageSizer.MAX_PAGE_SIZE * 4);
+		assertEquals(AdaptivePageSizer.MAX_PAGE_SIZE, sizer.getPageSize());
+		sizer.recordFailure();
+		assertEquals(AdaptivePageSizer.MAX_PAGE_SIZE / 2, sizer.getPageSize());
+		for (int i = 0; i < 20; ++i) {
+			sizer.recordFailure();
+		}
+		assertEquals(AdaptivePageSizer.MIN_PAGE_SIZE, sizer.getPageSize());
+	}
+}
@@ -0,0 +1,170 @@
+package org.opendatakit.sync;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import org.opendatakit.aggregate.odktables.rest.entity.ChangeSetList;
+import org.opendatakit.aggregate.odktables.rest.entity.Column;
+import org.opendatakit.aggregate.odktables.rest.entity.RowOutcomeList;
+import org.opendatakit.aggregate.odktables.rest.entity.TableDefinitionResource;
+import org.opendatakit.aggregate.odktables.rest.entity.TableResource;
+import org.opendatakit.aggregate.odktables.rest.entity.TableResourceList;
+
+public class AttachmentTransferEngineTest extends TestCase {
+
+	private static final String INSTANCE_FILE_URI = "https://example.org/odktables/app/tables/t/ref/s/attachments";
+
+	private static final SyncRowLayout LAYOUT = new SyncRowLayout(Arrays.asList(new String[] {
+			"col_a" }));
+
+	/**
+	 * Transfers take longer for earlier rows, so they finish out of order.
+	 */
+	private static class SlowSynchronizer implements Synchronizer {
+		final AtomicInteger active = new AtomicInteger();
+		final AtomicInteger maxActive = new AtomicInteger();
+		final List<String> recordedOnThreads = new ArrayList<String>();
+
+		private boolean transfer(SyncRowPending row) {
+			int now = active.incrementAndGet();
+			synchronized (maxActive) {
+				maxActive.set(Math.max(maxActive.get(), now));
+			}
+			try {
+				Thread.sleep(50 - 5 * Integer.parseInt(row.getRowId()));
+			} catch (InterruptedException e) {
+				return false;
+			} finally {
+				active.decrementAndGet();
+			}
+			return !row.getRowId().equals("3");
+		}
+
+		public FileSyncETags getFileSyncETags(String instanceFileUri, String tableId,
+				SyncRowPending row) {
+			recordedOnThreads.add(Thread.currentThread().getName());
+			return new FileSyncETags(tableId);
+		}
+
+		public void updateFileSyncETags(FileSyncETags eTags) {
+			recordedOnThreads.add(Thread.currentThread().getName());
+		}
+
+		public boolean getFileAttachments(String instanceFileUri, String tableId,
+				SyncRowPending serverRow, FileSyncETags eTags, boolean deferInstanceAttachments) {
+			eTags.update(URI.create(instanceFileUri + "/" + serverRow.getRowId()), 1L, "md5");
+			return transfer(serverRow);
+		}
+
+		public boolean putFileAttachments(String instanceFileUri, String tableId,
+				SyncRowPending localRow, FileSyncETags eTags, boolean deferInstanceAttachments) {
+			return true;
+		}
+
+		public TableResourceList getTables(String webSafeResumeCursor, Integer fetchLimit) {
+			throw new UnsupportedOperationException();
+		}
+
+		public TableDefinitionResource getTableDefinition(String tableDefinitionUri) {
+			throw new UnsupportedOperationException();
+		}
+
+		public TableResource createTable(String tableId, String schemaETag, ArrayList<Column> columns) {
+			throw new UnsupportedOperationException();
+		}
+
+		public void deleteTable(TableResource table) {
+			throw new UnsupportedOperationException();
+		}
+
+		public ChangeSetList getChangeSets(TableResource tableResource, String dataETag) {
+			throw new UnsupportedOperationException();
+		}
+
+		public SyncRowPage getChangeSet(TableResource tableResource, String dataETag,
+				boolean activeOnly, String websafeResumeCursor, Integer fetchLimit,
+				SyncRowLayout layout, SyncValuePool pool) {
+			throw new UnsupportedOperationException();
+		}
+
+		public SyncRowPage getUpdates(TableResource tableResource, String dataETag,
+				String websafeResumeCursor, Integer fetchLimit, SyncRowLayout layout,
+				SyncValuePool pool) {
+			throw new UnsupportedOperationException();
+		}
+
+		public RowOutcomeList alterRows(TableResource tableResource,
+				List<SyncRow> rowsToInsertUpdateOrDelete) {
+			throw new UnsupportedOperationException();
+		}
+
+		public boolean supportsRowDeltas() {
+			return false;
+		}
+
+		public boolean syncAppLevelFiles(boolean pushLocalFiles, String serverReportedAppLevelETag,
+				SynchronizerStatus syncStatus) {
+			throw new UnsupportedOperationException();
+		}
+
+		public void syncTableLevelFiles(String tableId, String serverReportedTableLevelETag,
+				OnTablePropertiesChanged onChange, boolean pushLocal, SynchronizerStatus syncStatus) {
+			throw new UnsupportedOperationException();
+		}
+
+		public URI constructTableInstanceFileUri(String tableId, String schemaETag) {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	private static SyncRowPending row(int i) {
+		SyncRow syncRow = new SyncRow(Integer.toString(i), "etag", false, null, null, null, null,
+				null, null, LAYOUT, new String[] { "a" });
+		return new SyncRowPending(syncRow, true, false, true);
+	}
+
+	public void testCompletesInSubmissionOrderWithinThreadLimit() throws InterruptedException {
+		SlowSynchronizer synchronizer = new SlowSynchronizer();
+		AttachmentTransferEngine engine = new AttachmentTransferEngine(synchronizer, 2, "test");
+		try {
+			for (int i = 0; i < 8; ++i) {
+				engine.submit(INSTANCE_FILE_URI, "t", row(i), false);
+			}
+			for (int i = 0; i < 8; ++i) {
+				assertTrue(engine.hasPending());
+				AttachmentTransferEngine.Completion completion = engine.take();
+				assertEquals(Integer.toString(i), completion.getRow().getRowId());
+				assertEquals(i != 3, completion.isSuccess());
+			}
+			assertFalse(engine.hasPending());
+		} finally {
+			engine.shutdown();
+		}
+		assertTrue(synchronizer.maxActive.get() <= 2);
+		// the md5 hashes are read and recorded only on the sync thread
+		assertEquals(16, synchronizer.recordedOnThreads.size());
+		for (String thread : synchronizer.recordedOnThreads) {
+			assertEquals(Thread.currentThread().getName(), thread);
+		}
+	}
+
+	public void testNotedHashesAreVisibleAtOnce() {
+		FileSyncETags eTags = new FileSyncETags("t");
+		URI uri = URI.create(INSTANCE_FILE_URI + "/1/file/a.jpg");
+		eTags.putRecorded(uri, 10L, "old");
+		assertEquals("old", eTags.getRecorded(uri, 10L));
+		assertNull(eTags.getRecorded(uri, 11L));
+		assertTrue(eTags.getUpdates().isEmpty());
+
+		eTags.update(uri, 11L, "new");
+		assertEquals("new", eTags.getRecorded(uri, 11L));
+		assertNull(eTags.getRecorded(uri, 10L));
+		assertEquals(1, eTags.getUpdates().size());
+		assertEquals("new", eTags.getUpdates().get(0).getMd5Hash());
+	}
+}
@@ -0,0 +1,30 @@
+package org.opendatakit.sync;
+
+import junit.framework.TestCase;
+
+import org.opendatakit.sync.aggregate.ByteRanges;
+
+public class ByteRangesTest extends TestCase {
+
+	public void testFormat() {
+		assertEquals("bytes=1024-", ByteRanges.rangeFrom(1024));
+		assertEquals("bytes 0-511/2048", ByteRanges.contentRange(0, 511, 2048));
+		assertEquals("bytes */2048", ByteRanges.unsatisfiedContentRange(2048));
+	}
+
+	public void testParseContentRangeStart() {
+		assertEquals(100L, ByteRanges.parseContentRangeStart("bytes 100-199/200"));
+		assertEquals(100L, ByteRanges.parseContentRangeStart("bytes 100-199/*"));
+		assertEquals(-1L, ByteRanges.parseContentRangeStart(null));
+		assertEquals(-1L, ByteRanges.parseContentRangeStart("bytes */200"));
+		assertEquals(-1L, ByteRanges.parseContentRangeStart("items 1-2/3"));
+	}
+
+	public void testParseAcknowledgedLength() {
+		assertEquals(0L, ByteRanges.parseAcknowledgedLength(null));
+		assertEquals(1048576L, ByteRanges.parseAcknowledgedLength("bytes=0-1048575"));
+		assertEquals(-1L, ByteRanges.parseAcknowledgedLength("bytes=10-20"));
+		assertEquals(-1L, ByteRanges.parseAcknowledgedLength("bytes=0-"));
+		assertEquals(-1L, ByteRanges.parseAcknowledgedLength("garbage"));
+	}
+}
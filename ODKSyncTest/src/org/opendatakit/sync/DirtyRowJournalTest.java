@@ -0,0 +1,337 @@
+package org.opendatakit.sync;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.opendatakit.aggregate.odktables.rest.SyncState;
+import org.opendatakit.common.android.provider.DataTableColumns;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+public class DirtyRowJournalTest extends AndroidTestCase {
+
+	private static final String TABLE_ID = "journal_test";
+
+	private static final SyncRowLayout LAYOUT = new SyncRowLayout(Arrays.asList(new String[] {
+			"col_a", "col_b" }));
+
+	private static final SyncState[] DIRTY_STATES = { SyncState.new_row, SyncState.changed,
+			SyncState.deleted, SyncState.synced_pending_files };
+
+	private SQLiteDatabase db;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		db = SQLiteDatabase.create(null);
+		db.execSQL("CREATE TABLE " + TABLE_ID + " (" + DataTableColumns.ID + " TEXT NOT NULL, "
+				+ DataTableColumns.SYNC_STATE + " TEXT NOT NULL, " + DataTableColumns.ROW_ETAG
+				+ " TEXT NULL, col_a TEXT NULL, col_b TEXT NULL)");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		db.close();
+		super.tearDown();
+	}
+
+	private void localRow(String rowId, SyncState state) {
+		ContentValues values = new ContentValues();
+		values.put(DataTableColumns.ID, rowId);
+		values.put(DataTableColumns.SYNC_STATE, state.name());
+		values.put(DataTableColumns.ROW_ETAG, "etag");
+		values.put("col_a", "a");
+		values.put("col_b", "b");
+		db.insertOrThrow(TABLE_ID, null, values);
+	}
+
+	private void setState(String rowId, SyncState state) {
+		ContentValues values = new ContentValues();
+		values.put(DataTableColumns.SYNC_STATE, state.name());
+		db.update(TABLE_ID, values, DataTableColumns.ID + "=?", new String[] { rowId });
+	}
+
+	/**
+	 * A local edit of one value, as made by the app.
+	 */
+	private void edit(String rowId, String elementKey, String value) {
+		ContentValues values = new ContentValues();
+		values.put(elementKey, value);
+		values.put(DataTableColumns.SYNC_STATE, SyncState.changed.name());
+		db.update(TABLE_ID, values, DataTableColumns.ID + "=?", new String[] { rowId });
+	}
+
+	/**
+	 * The row is pushed, and the server issues it a new rowETag.
+	 */
+	private void synced(String rowId, String rowETag) {
+		ContentValues values = new ContentValues();
+		values.put(DataTableColumns.SYNC_STATE, SyncState.synced.name());
+		values.put(DataTableColumns.ROW_ETAG, rowETag);
+		db.update(TABLE_ID, values, DataTableColumns.ID + "=?", new String[] { rowId });
+	}
+
+	private int journaled() {
+		return count("_sync_dirty_rows");
+	}
+
+	private int count(String journal) {
+		Cursor c = db.rawQuery("SELECT COUNT(*) FROM " + journal + " WHERE _table_id=?",
+				new String[] { TABLE_ID });
+		try {
+			c.moveToFirst();
+			return c.getInt(0);
+		} finally {
+			c.close();
+		}
+	}
+
+	private List<String> dirtyRowIds(SyncState[] states, String afterRowId, int limit) {
+		List<String> rowIds = new ArrayList<String>();
+		Cursor c = DirtyRowJournal.queryDirtyRows(db, TABLE_ID, states, afterRowId, limit);
+		try {
+			int idxRowId = c.getColumnIndexOrThrow(DataTableColumns.ID);
+			while (c.moveToNext()) {
+				rowIds.add(c.getString(idxRowId));
+			}
+		} finally {
+			c.close();
+		}
+		return rowIds;
+	}
+
+	private String baseRowETag(String rowId) {
+		Cursor c = db.rawQuery("SELECT _row_etag FROM _sync_delta_base WHERE _table_id=? AND"
+				+ " _row_id=?", new String[] { TABLE_ID, rowId });
+		try {
+			return c.moveToFirst() ? c.getString(0) : "absent";
+		} finally {
+			c.close();
+		}
+	}
+
+	/**
+	 * @return the changed columns of each row that would be sent as a delta
+	 */
+	private Map<String, List<String>> changedColumns(String afterRowId, String lastRowId) {
+		Map<String, List<String>> changed = new TreeMap<String, List<String>>();
+		Cursor c = DirtyRowJournal.queryChangedColumns(db, TABLE_ID, afterRowId, lastRowId);
+		try {
+			while (c.moveToNext()) {
+				String rowId = c.getString(DirtyRowJournal.CHANGED_ROW_ID_INDEX);
+				List<String> columns = changed.get(rowId);
+				if (columns == null) {
+					columns = new ArrayList<String>();
+					changed.put(rowId, columns);
+				}
+				if (!c.isNull(DirtyRowJournal.CHANGED_ELEMENT_KEY_INDEX)) {
+					columns.add(c.getString(DirtyRowJournal.CHANGED_ELEMENT_KEY_INDEX));
+				}
+			}
+		} finally {
+			c.close();
+		}
+		for (List<String> columns : changed.values()) {
+			Collections.sort(columns);
+		}
+		return changed;
+	}
+
+	public void testInstallSeedsFromExistingRows() {
+		localRow("a", SyncState.synced);
+		localRow("b", SyncState.new_row);
+		localRow("c", SyncState.changed);
+		localRow("d", SyncState.synced_pending_files);
+		localRow("e", SyncState.in_conflict);
+
+		DirtyRowJournal.install(db, TABLE_ID);
+		assertEquals(3, journaled());
+		assertTrue(DirtyRowJournal.hasDirtyRows(db, TABLE_ID));
+		assertEquals("[b, c, d]", dirtyRowIds(DIRTY_STATES, null, 0).toString());
+
+		// installing again neither re-seeds nor drops entries
+		DirtyRowJournal.install(db, TABLE_ID);
+		assertEquals(3, journaled());
+	}
+
+	public void testTriggersJournalNewAndDirtiedRows() {
+		localRow("a", SyncState.synced);
+		DirtyRowJournal.install(db, TABLE_ID);
+		assertFalse(DirtyRowJournal.hasDirtyRows(db, TABLE_ID));
+
+		// insert trigger: only dirty rows are journaled
+		localRow("b", SyncState.new_row);
+		localRow("c", SyncState.synced);
+		assertEquals(1, journaled());
+
+		// _sync_state update trigger
+		setState("a", SyncState.changed);
+		setState("c", SyncState.deleted);
+		assertEquals(3, journaled());
+		assertEquals("[a, b, c]", dirtyRowIds(DIRTY_STATES, null, 0).toString());
+		assertEquals("[a]", dirtyRowIds(new SyncState[] { SyncState.changed }, null, 0)
+				.toString());
+		assertEquals(1, DirtyRowJournal.countDirtyRows(db, TABLE_ID,
+				new SyncState[] { SyncState.deleted }));
+
+		// updates that leave the row clean are not journaled
+		localRow("d", SyncState.synced);
+		setState("d", SyncState.in_conflict);
+		assertEquals(3, journaled());
+	}
+
+	public void testKeysetPagination() {
+		DirtyRowJournal.install(db, TABLE_ID);
+		for (int i = 0; i < 7; ++i) {
+			localRow("r" + i, SyncState.new_row);
+		}
+		List<String> all = new ArrayList<String>();
+		String afterRowId = null;
+		int pages = 0;
+		for (;;) {
+			List<String> page = dirtyRowIds(DIRTY_STATES, afterRowId, 3);
+			if (page.isEmpty()) {
+				break;
+			}
+			assertTrue(page.size() <= 3);
+			all.addAll(page);
+			afterRowId = page.get(page.size() - 1);
+			++pages;
+		}
+		assertEquals(3, pages);
+		assertEquals("[r0, r1, r2, r3, r4, r5, r6]", all.toString());
+	}
+
+	public void testStaleEntriesAreFilteredThenPruned() {
+		DirtyRowJournal.install(db, TABLE_ID);
+		localRow("a", SyncState.changed);
+		localRow("b", SyncState.new_row);
+		localRow("c", SyncState.deleted);
+
+		// a is pushed; b's row goes away; c stays dirty
+		setState("a", SyncState.synced);
+		db.delete(TABLE_ID, DataTableColumns.ID + "=?", new String[] { "b" });
+		assertEquals(3, journaled());
+		assertEquals("[c]", dirtyRowIds(DIRTY_STATES, null, 0).toString());
+		assertEquals(1, DirtyRowJournal.countDirtyRows(db, TABLE_ID, DIRTY_STATES));
+
+		DirtyRowJournal.prune(db, TABLE_ID);
+		assertEquals(1, journaled());
+		assertEquals("[c]", dirtyRowIds(DIRTY_STATES, null, 0).toString());
+
+		setState("c", SyncState.synced);
+		DirtyRowJournal.prune(db, TABLE_ID);
+		assertEquals(0, journaled());
+		assertFalse(DirtyRowJournal.hasDirtyRows(db, TABLE_ID));
+	}
+
+	public void testFirstEditStartsDeltaFromSyncedVersion() {
+		localRow("a", SyncState.synced);
+		DirtyRowJournal.installColumns(db, TABLE_ID, LAYOUT);
+
+		edit("a", "col_a", "a1");
+		assertEquals("etag", baseRowETag("a"));
+		assertEquals("{a=[col_a]}", changedColumns(null, "z").toString());
+
+		// pushed, then edited again: the delta restarts from the new version
+		synced("a", "etag2");
+		edit("a", "col_b", "b1");
+		assertEquals("etag2", baseRowETag("a"));
+		assertEquals("{a=[col_b]}", changedColumns(null, "z").toString());
+	}
+
+	public void testLaterEditsAccumulate() {
+		localRow("a", SyncState.synced);
+		DirtyRowJournal.installColumns(db, TABLE_ID, LAYOUT);
+
+		edit("a", "col_a", "a1");
+		edit("a", "col_b", "b1");
+		// rewriting a value with itself marks nothing
+		edit("a", "col_a", "a1");
+		assertEquals("etag", baseRowETag("a"));
+		assertEquals("{a=[col_a, col_b]}", changedColumns(null, "z").toString());
+
+		// a value put back to its synced value is still sent
+		edit("a", "col_a", "a");
+		assertEquals("{a=[col_a, col_b]}", changedColumns(null, "z").toString());
+	}
+
+	public void testRowsNeverSyncedOrRowETagChangedAreSentInFull() {
+		localRow("a", SyncState.synced);
+		localRow("b", SyncState.synced);
+		localRow("c", SyncState.new_row);
+		DirtyRowJournal.installColumns(db, TABLE_ID, LAYOUT);
+
+		edit("a", "col_a", "a1");
+		edit("b", "col_a", "a1");
+		edit("c", "col_a", "a1");
+		assertEquals("{a=[col_a], b=[col_a]}", changedColumns(null, "z").toString());
+
+		// b's rowETag no longer matches the version the delta is against
+		ContentValues values = new ContentValues();
+		values.put(DataTableColumns.ROW_ETAG, "other");
+		db.update(TABLE_ID, values, DataTableColumns.ID + "=?", new String[] { "b" });
+		assertEquals("{a=[col_a]}", changedColumns(null, "z").toString());
+	}
+
+	public void testChangedColumnsAreBoundedByTheBatch() {
+		localRow("a", SyncState.synced);
+		localRow("b", SyncState.synced);
+		localRow("c", SyncState.synced);
+		DirtyRowJournal.installColumns(db, TABLE_ID, LAYOUT);
+		edit("a", "col_a", "a1");
+		edit("b", "col_a", "a1");
+		edit("c", "col_b", "b1");
+
+		assertEquals("{a=[col_a], b=[col_a]}", changedColumns(null, "b").toString());
+		assertEquals("{c=[col_b]}", changedColumns("b", "c").toString());
+	}
+
+	public void testTriggerRebuiltWhenColumnAdded() {
+		localRow("a", SyncState.synced);
+		DirtyRowJournal.installColumns(db, TABLE_ID, LAYOUT);
+		edit("a", "col_a", "a1");
+
+		// same layout: the journal is kept
+		DirtyRowJournal.installColumns(db, TABLE_ID, LAYOUT);
+		assertEquals("{a=[col_a]}", changedColumns(null, "z").toString());
+
+		db.execSQL("ALTER TABLE " + TABLE_ID + " ADD COLUMN col_c TEXT NULL");
+		SyncRowLayout wider = new SyncRowLayout(Arrays.asList(new String[] { "col_a", "col_b",
+				"col_c" }));
+		DirtyRowJournal.installColumns(db, TABLE_ID, wider);
+		// the old trigger missed any edit to col_c, so a is sent in full
+		assertEquals(0, count("_sync_delta_base"));
+		assertEquals(0, count("_sync_dirty_columns"));
+		assertTrue(changedColumns(null, "z").isEmpty());
+
+		// and the new trigger journals the added column
+		synced("a", "etag2");
+		edit("a", "col_c", "c1");
+		assertEquals("{a=[col_c]}", changedColumns(null, "z").toString());
+	}
+
+	public void testPruneDropsColumnsOfRowsNoLongerChanged() {
+		localRow("a", SyncState.synced);
+		localRow("b", SyncState.synced);
+		DirtyRowJournal.install(db, TABLE_ID);
+		DirtyRowJournal.installColumns(db, TABLE_ID, LAYOUT);
+		edit("a", "col_a", "a1");
+		edit("b", "col_a", "a1");
+		edit("b", "col_b", "b1");
+
+		synced("a", "etag2");
+		DirtyRowJournal.prune(db, TABLE_ID);
+		assertEquals(1, count("_sync_delta_base"));
+		assertEquals(2, count("_sync_dirty_columns"));
+		assertEquals("absent", baseRowETag("a"));
+		assertEquals("{b=[col_a, col_b]}", changedColumns(null, "z").toString());
+	}
+}
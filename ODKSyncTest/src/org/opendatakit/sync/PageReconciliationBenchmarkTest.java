@@ -0,0 +1,146 @@
+package org.opendatakit.sync;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.opendatakit.common.android.provider.DataTableColumns;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+public class PageReconciliationBenchmarkTest extends AndroidTestCase {
+
+	private static final String TAG = "PageReconciliationBenchmarkTest";
+	private static final String TABLE_ID = "reconcile_test";
+	private static final int PAGE_ROWS = 100;
+
+	private SQLiteDatabase db;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		db = SQLiteDatabase.create(null);
+		db.execSQL("CREATE TABLE " + TABLE_ID + " (" + DataTableColumns.ID + " TEXT NOT NULL, "
+				+ DataTableColumns.SYNC_STATE + " TEXT NOT NULL, col_a TEXT NULL)");
+		// as the pull does before its first per-page lookup
+		ProcessRowDataChanges.createRowIdIndex(db, TABLE_ID);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		db.close();
+		super.tearDown();
+	}
+
+	private static String rowId(int i) {
+		return String.format("uuid:%08d", i);
+	}
+
+	private void growLocalTable(int from, int to) {
+		SQLiteStatement insert = db.compileStatement("INSERT INTO " + TABLE_ID
+				+ " VALUES (?, 'synced', ?)");
+		db.beginTransaction();
+		try {
+			for (int i = from; i < to; ++i) {
+				insert.bindString(1, rowId(i));
+				insert.bindString(2, "value" + i);
+				insert.executeInsert();
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			insert.close();
+			db.endTransaction();
+		}
+	}
+
+	/**
+	 * Looks up the local rows for changedRows server changes, PAGE_ROWS at a
+	 * time, spread evenly over the local table.
+	 *
+	 * @return elapsed milliseconds
+	 */
+	private long reconcile(int localRows, int changedRows) {
+		long start = System.currentTimeMillis();
+		int found = 0;
+		int stride = localRows / changedRows;
+		for (int page = 0; page < changedRows; page += PAGE_ROWS) {
+			List<String> rowIds = new ArrayList<String>(PAGE_ROWS);
+			for (int i = page; i < page + PAGE_ROWS && i < changedRows; ++i) {
+				rowIds.add(rowId(i * stride));
+			}
+			Cursor c = ProcessRowDataChanges.getLocalRowsWithIds(db, TABLE_ID, rowIds);
+			try {
+				while (c.moveToNext()) {
+					++found;
+				}
+			} finally {
+				c.close();
+			}
+		}
+		assertEquals(changedRows, found);
+		return System.currentTimeMillis() - start;
+	}
+
+	public void testOnlyTouchedRowsAreRead() {
+		growLocalTable(0, 1000);
+		List<String> rowIds = new ArrayList<String>();
+		rowIds.add(rowId(5));
+		rowIds.add(rowId(3));
+		rowIds.add("uuid:absent");
+		Cursor c = ProcessRowDataChanges.getLocalRowsWithIds(db, TABLE_ID, rowIds);
+		try {
+			assertEquals(2, c.getCount());
+			c.moveToFirst();
+			assertEquals(rowId(3), c.getString(c.getColumnIndex(DataTableColumns.ID)));
+		} finally {
+			c.close();
+		}
+	}
+
+	/**
+	 * The per-page lookup must search the _id index rather than scan the
+	 * table, so its cost grows with the number of changed rows, not with the
+	 * size of the local table.
+	 */
+	public void testLookupSearchesRowIdIndex() {
+		List<String> rowIds = new ArrayList<String>();
+		rowIds.add(rowId(1));
+		rowIds.add(rowId(2));
+		StringBuilder plan = new StringBuilder();
+		Cursor c = db.rawQuery("EXPLAIN QUERY PLAN SELECT * FROM " + TABLE_ID + " WHERE "
+				+ DataTableColumns.ID + " IN (?,?) ORDER BY " + DataTableColumns.ID + " ASC",
+				rowIds.toArray(new String[rowIds.size()]));
+		try {
+			int idxDetail = c.getColumnIndexOrThrow("detail");
+			while (c.moveToNext()) {
+				plan.append(c.getString(idxDetail)).append("\n");
+			}
+		} finally {
+			c.close();
+		}
+		assertTrue(plan.toString(), plan.indexOf(TABLE_ID + "_sync_row_id") != -1);
+		assertTrue(plan.toString(), plan.indexOf("SCAN") == -1);
+	}
+
+	/**
+	 * Logs the time to reconcile 1000 and 2000 changed rows against local
+	 * tables of 10k and 50k rows. Timings on a device are noisy, so only
+	 * correctness is asserted; testLookupSearchesRowIdIndex() checks the
+	 * query plan the timings depend on.
+	 */
+	public void testLogPullTimes() {
+		growLocalTable(0, 10000);
+		long small1k = reconcile(10000, 1000);
+		long small2k = reconcile(10000, 2000);
+		growLocalTable(10000, 50000);
+		long large1k = reconcile(50000, 1000);
+		long large2k = reconcile(50000, 2000);
+
+		Log.i(TAG, "10k local rows: " + small1k + " ms for 1000 changes, " + small2k
+				+ " ms for 2000; 50k local rows: " + large1k + " ms for 1000 changes, " + large2k
+				+ " ms for 2000");
+	}
+}
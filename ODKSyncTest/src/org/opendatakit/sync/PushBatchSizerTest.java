@@ -0,0 +1,69 @@
+package org.opendatakit.sync;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class PushBatchSizerTest extends TestCase {
+
+	public void testGrowsOnFastLinks() {
+		PushBatchSizer sizer = new PushBatchSizer(256 * 1024);
+		// 256KiB in 100ms -- lots of headroom
+		sizer.recordUpload(256 * 1024, true, 100);
+		assertEquals(512 * 1024, sizer.getBatchBytes());
+		sizer.recordUpload(512 * 1024, true, 200);
+		assertEquals(1024 * 1024, sizer.getBatchBytes());
+	}
+
+	public void testShortBatchDoesNotGrow() {
+		PushBatchSizer sizer = new PushBatchSizer(256 * 1024);
+		// the last few rows -- tells us nothing about bigger batches
+		sizer.recordUpload(1000, false, 10);
+		assertEquals(256 * 1024, sizer.getBatchBytes());
+	}
+
+	public void testShrinksOnSlowLinks() {
+		PushBatchSizer sizer = new PushBatchSizer(256 * 1024);
+		// 256KiB in 60s -- far over the per-request budget
+		sizer.recordUpload(256 * 1024, true, 60000);
+		assertTrue(sizer.getBatchBytes() < 256 * 1024);
+		assertTrue(sizer.getBatchBytes() >= PushBatchSizer.MIN_BATCH_BYTES);
+	}
+
+	public void testFailureHalvesWithinBounds() {
+		PushBatchSizer sizer = new PushBatchSizer(PushBatchSizer.MAX_BATCH_BYTES * 4);
+		assertEquals(PushBatchSizer.MAX_BATCH_BYTES, sizer.getBatchBytes());
+		sizer.recordFailure();
+		assertEquals(PushBatchSizer.MAX_BATCH_BYTES / 2, sizer.getBatchBytes());
+		for (int i = 0; i < 20; ++i) {
+			sizer.recordFailure();
+		}
+		assertEquals(PushBatchSizer.MIN_BATCH_BYTES, sizer.getBatchBytes());
+	}
+
+	public void testEstimateGrowsWithValues() {
+		SyncRowLayout layout = new SyncRowLayout(Arrays.asList(new String[] { "col_a", "col_b" }));
+		SyncRow small = new SyncRow("uuid:1", null, false, null, null, null, null, null, null,
+				layout, new String[] { "a", null });
+		char[] text = new char[10000];
+		Arrays.fill(text, 'x');
+		SyncRow large = new SyncRow("uuid:2", null, false, null, null, null, null, null, null,
+				layout, new String[] { "a", new String(text) });
+		assertEquals(10000, PushBatchSizer.estimateBytes(large)
+				- PushBatchSizer.estimateBytes(small));
+	}
+
+	public void testEstimateCountsOnlyChangedValuesOfDelta() {
+		SyncRowLayout layout = new SyncRowLayout(Arrays.asList(new String[] { "col_a", "col_b" }));
+		char[] text = new char[10000];
+		Arrays.fill(text, 'x');
+		SyncRow row = new SyncRow("uuid:1", "etag", false, null, null, null, null, null, null,
+				layout, new String[] { "a", new String(text) });
+		int full = PushBatchSizer.estimateBytes(row);
+		row.setChangedColumns(new boolean[] { true, false });
+		assertTrue(full - PushBatchSizer.estimateBytes(row) > 10000);
+		assertEquals(2, row.getValues().size());
+		assertEquals(1, row.getChangedValues().size());
+		assertEquals("col_a", row.getChangedValues().get(0).column);
+	}
+}
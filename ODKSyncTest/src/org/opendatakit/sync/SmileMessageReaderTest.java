@@ -0,0 +1,121 @@
+package org.opendatakit.sync;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import junit.framework.TestCase;
+
+import org.opendatakit.sync.aggregate.SmileMessageReader;
+
+import android.util.Log;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class SmileMessageReaderTest extends TestCase {
+
+	private static final String TAG = "SmileMessageReaderTest";
+	private static final int ROWS = 500;
+	private static final int COLUMNS = 100;
+	private static final int PARSE_ITERATIONS = 10;
+
+	private static final ObjectMapper json = new ObjectMapper();
+
+	/**
+	 * A page of rows shaped like a RowResourceList.
+	 */
+	private static Map<String, Object> page() {
+		List<Object> rows = new ArrayList<Object>(ROWS);
+		for (int i = 0; i < ROWS; ++i) {
+			Map<String, Object> row = new HashMap<String, Object>();
+			row.put("rowId", "uuid:" + i);
+			row.put("rowETag", "uuid:etag" + i);
+			row.put("deleted", Boolean.FALSE);
+			row.put("formId", "household_survey");
+			row.put("locale", "en_US");
+			row.put("savepointType", "COMPLETE");
+			row.put("savepointTimestamp", "2014-01-01T00:00:00.000000000");
+			row.put("savepointCreator", "mailto:enumerator@example.com");
+			Map<String, Object> scope = new HashMap<String, Object>();
+			scope.put("type", "DEFAULT");
+			scope.put("value", null);
+			row.put("filterScope", scope);
+			List<Object> values = new ArrayList<Object>(COLUMNS);
+			for (int j = 0; j < COLUMNS; ++j) {
+				Map<String, Object> value = new HashMap<String, Object>();
+				value.put("column", "question_" + j);
+				value.put("value", Integer.toString(i * j));
+				values.add(value);
+			}
+			row.put("orderedColumns", values);
+			rows.add(row);
+		}
+		Map<String, Object> page = new HashMap<String, Object>();
+		page.put("rows", rows);
+		page.put("dataETag", "uuid:data");
+		page.put("webSafeResumeCursor", "cursor");
+		page.put("hasMoreResults", Boolean.TRUE);
+		return page;
+	}
+
+	private static int gzippedLength(byte[] bytes) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		GZIPOutputStream gzip = new GZIPOutputStream(out);
+		gzip.write(bytes);
+		gzip.close();
+		return out.size();
+	}
+
+	private static long parseMs(ObjectMapper mapper, byte[] bytes) throws IOException {
+		// warm up
+		mapper.readValue(bytes, Map.class);
+		long start = System.currentTimeMillis();
+		for (int i = 0; i < PARSE_ITERATIONS; ++i) {
+			mapper.readValue(bytes, Map.class);
+		}
+		return (System.currentTimeMillis() - start) / PARSE_ITERATIONS;
+	}
+
+	public void testHeaderDetection() throws Exception {
+		assertTrue(SmileMessageReader.hasSmileHeader(new byte[] { ':', ')', '\n', 0 }, 4));
+		assertFalse(SmileMessageReader.hasSmileHeader(new byte[] { ':', ')' }, 2));
+		byte[] jsonBytes = json.writeValueAsBytes(page());
+		assertFalse(SmileMessageReader.hasSmileHeader(jsonBytes, jsonBytes.length));
+	}
+
+	/**
+	 * Logs the size and parse time of a page of rows as JSON and, if the Smile
+	 * codec is packaged with the app, as Smile. The project does not package
+	 * the codec, so by default only the JSON baseline is measured.
+	 */
+	public void testSizeAndParseTime() throws Exception {
+		Map<String, Object> page = page();
+		byte[] jsonBytes = json.writeValueAsBytes(page);
+		assertEquals(page, json.readValue(jsonBytes, Map.class));
+
+		Log.i(TAG, "page of " + ROWS + " rows of " + COLUMNS + " columns");
+		Log.i(TAG, "JSON: " + jsonBytes.length + " bytes, " + gzippedLength(jsonBytes)
+				+ " gzipped, parsed in " + parseMs(json, jsonBytes) + "ms");
+
+		JsonFactory factory = SmileMessageReader.getFactory();
+		if (factory == null) {
+			Log.w(TAG, "Smile codec (jackson-dataformat-smile) is not packaged;"
+					+ " Smile is not offered to the server and was not measured");
+			return;
+		}
+		ObjectMapper smile = new ObjectMapper(factory);
+		byte[] smileBytes = smile.writeValueAsBytes(page);
+
+		assertTrue(SmileMessageReader.hasSmileHeader(smileBytes, smileBytes.length));
+		assertEquals(page, smile.readValue(smileBytes, Map.class));
+		assertTrue(smileBytes.length < jsonBytes.length);
+
+		Log.i(TAG, "Smile: " + smileBytes.length + " bytes, " + gzippedLength(smileBytes)
+				+ " gzipped, parsed in " + parseMs(smile, smileBytes) + "ms");
+	}
+}
@@ -0,0 +1,192 @@
+package org.opendatakit.sync;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.opendatakit.aggregate.odktables.rest.SyncState;
+import org.opendatakit.aggregate.odktables.rest.entity.DataKeyValue;
+import org.opendatakit.common.android.provider.DataTableColumns;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+public class SyncRowBulkWriterTest extends AndroidTestCase {
+
+	private static final String TAG = "SyncRowBulkWriterTest";
+	private static final String TABLE_ID = "bulk_test";
+	private static final int BENCHMARK_ROWS = 5000;
+
+	private static final String[] DATA_COLUMNS = { "col_a", "col_b", "col_c", "col_d", "col_e" };
+	private static final SyncRowLayout LAYOUT = new SyncRowLayout(Arrays.asList(DATA_COLUMNS));
+
+	private SQLiteDatabase db;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		db = SQLiteDatabase.create(null);
+		StringBuilder b = new StringBuilder();
+		b.append("CREATE TABLE ").append(TABLE_ID).append(" (")
+				.append(DataTableColumns.ID).append(" TEXT NOT NULL, ")
+				.append(DataTableColumns.ROW_ETAG).append(" TEXT NULL, ")
+				.append(DataTableColumns.SYNC_STATE).append(" TEXT NOT NULL, ")
+				.append(DataTableColumns.CONFLICT_TYPE).append(" INTEGER NULL, ")
+				.append(DataTableColumns.FILTER_TYPE).append(" TEXT NULL, ")
+				.append(DataTableColumns.FILTER_VALUE).append(" TEXT NULL, ")
+				.append(DataTableColumns.FORM_ID).append(" TEXT NULL, ")
+				.append(DataTableColumns.LOCALE).append(" TEXT NULL, ")
+				.append(DataTableColumns.SAVEPOINT_TYPE).append(" TEXT NULL, ")
+				.append(DataTableColumns.SAVEPOINT_TIMESTAMP).append(" TEXT NULL, ")
+				.append(DataTableColumns.SAVEPOINT_CREATOR).append(" TEXT NULL");
+		for (String column : DATA_COLUMNS) {
+			b.append(", ").append(column).append(" TEXT NULL");
+		}
+		b.append(")");
+		db.execSQL(b.toString());
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		db.close();
+		super.tearDown();
+	}
+
+	private static SyncRow serverRow(int i, String suffix) {
+		ArrayList<DataKeyValue> values = new ArrayList<DataKeyValue>();
+		for (String column : DATA_COLUMNS) {
+			values.add(new DataKeyValue(column, column + "-" + i + suffix));
+		}
+		return new SyncRow("uuid:" + i, "etag" + suffix, false, "form", "en_US", "COMPLETE",
+				"2014-01-01T00:00:00.000000000", "mailto:test@example.com", null, values, LAYOUT);
+	}
+
+	private int countRows() {
+		Cursor c = db.rawQuery("SELECT COUNT(*) FROM " + TABLE_ID, null);
+		try {
+			c.moveToFirst();
+			return c.getInt(0);
+		} finally {
+			c.close();
+		}
+	}
+
+	private String getValue(String rowId, String column) {
+		Cursor c = db.rawQuery("SELECT " + column + " FROM " + TABLE_ID + " WHERE "
+				+ DataTableColumns.ID + "=?", new String[] { rowId });
+		try {
+			assertTrue(c.moveToFirst());
+			return c.getString(0);
+		} finally {
+			c.close();
+		}
+	}
+
+	public void testInsertUpdateDelete() {
+		SyncRowBulkWriter writer = new SyncRowBulkWriter(db, TABLE_ID, LAYOUT);
+		db.beginTransaction();
+		try {
+			for (int i = 0; i < 10; ++i) {
+				writer.insert(serverRow(i, ""), SyncState.synced);
+			}
+			writer.update(serverRow(3, "-v2"), SyncState.synced_pending_files);
+			List<String> rowIds = new ArrayList<String>();
+			rowIds.add("uuid:0");
+			rowIds.add("uuid:1");
+			writer.delete(rowIds);
+			db.setTransactionSuccessful();
+		} finally {
+			writer.close();
+			db.endTransaction();
+		}
+
+		assertEquals(8, countRows());
+		assertEquals("col_c-3-v2", getValue("uuid:3", "col_c"));
+		assertEquals("etag-v2", getValue("uuid:3", DataTableColumns.ROW_ETAG));
+		assertEquals(SyncState.synced_pending_files.name(),
+				getValue("uuid:3", DataTableColumns.SYNC_STATE));
+		assertEquals("col_a-4", getValue("uuid:4", "col_a"));
+		assertEquals("DEFAULT", getValue("uuid:4", DataTableColumns.FILTER_TYPE));
+	}
+
+	public void testUpdateWritesOnlyTheServerValues() {
+		SyncRowBulkWriter writer = new SyncRowBulkWriter(db, TABLE_ID, LAYOUT);
+		db.beginTransaction();
+		try {
+			writer.insert(serverRow(1, ""), SyncState.synced);
+			db.execSQL("UPDATE " + TABLE_ID + " SET " + DataTableColumns.CONFLICT_TYPE + "=1");
+			SyncRow changed = serverRow(1, "-v2");
+			changed.setSavepointType(null);
+			writer.update(changed, SyncState.synced);
+			db.setTransactionSuccessful();
+		} finally {
+			writer.close();
+			db.endTransaction();
+		}
+
+		// the conflict type is left alone; the savepoint type is the server's
+		assertEquals("1", getValue("uuid:1", DataTableColumns.CONFLICT_TYPE));
+		assertNull(getValue("uuid:1", DataTableColumns.SAVEPOINT_TYPE));
+		assertEquals("col_a-1-v2", getValue("uuid:1", "col_a"));
+	}
+
+	/**
+	 * Compares rows/sec of the compiled statement against a ContentValues
+	 * insert per row. The per-row path here omits the column validation done
+	 * by ODKDatabaseUtils, so it understates the cost of the old path.
+	 */
+	public void testInsertBenchmark() {
+		List<SyncRow> rows = new ArrayList<SyncRow>();
+		for (int i = 0; i < BENCHMARK_ROWS; ++i) {
+			rows.add(serverRow(i, ""));
+		}
+
+		long start = System.currentTimeMillis();
+		db.beginTransaction();
+		try {
+			for (SyncRow row : rows) {
+				ContentValues values = new ContentValues();
+				values.put(DataTableColumns.ID, row.getRowId());
+				values.put(DataTableColumns.ROW_ETAG, row.getRowETag());
+				values.put(DataTableColumns.SYNC_STATE, SyncState.synced.name());
+				values.put(DataTableColumns.FORM_ID, row.getFormId());
+				values.put(DataTableColumns.LOCALE, row.getLocale());
+				values.put(DataTableColumns.SAVEPOINT_TYPE, row.getSavepointType());
+				values.put(DataTableColumns.SAVEPOINT_TIMESTAMP, row.getSavepointTimestamp());
+				values.put(DataTableColumns.SAVEPOINT_CREATOR, row.getSavepointCreator());
+				for (DataKeyValue entry : row.getValues()) {
+					values.put(entry.column, entry.value);
+				}
+				db.insertOrThrow(TABLE_ID, null, values);
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			db.endTransaction();
+		}
+		long contentValuesMs = System.currentTimeMillis() - start;
+		assertEquals(BENCHMARK_ROWS, countRows());
+		db.execSQL("DELETE FROM " + TABLE_ID);
+
+		start = System.currentTimeMillis();
+		SyncRowBulkWriter writer = new SyncRowBulkWriter(db, TABLE_ID, LAYOUT);
+		db.beginTransaction();
+		try {
+			for (SyncRow row : rows) {
+				writer.insert(row, SyncState.synced);
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			writer.close();
+			db.endTransaction();
+		}
+		long bulkMs = System.currentTimeMillis() - start;
+		assertEquals(BENCHMARK_ROWS, countRows());
+
+		Log.i(TAG, "ContentValues insert: " + (BENCHMARK_ROWS * 1000L / Math.max(1L, contentValuesMs))
+				+ " rows/sec; compiled statement: " + (BENCHMARK_ROWS * 1000L / Math.max(1L, bulkMs))
+				+ " rows/sec");
+	}
+}
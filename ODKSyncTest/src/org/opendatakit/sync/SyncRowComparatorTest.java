@@ -0,0 +1,40 @@
+package org.opendatakit.sync;
+
+import junit.framework.TestCase;
+
+public class SyncRowComparatorTest extends TestCase {
+
+	public void testRepresentationDifferences() {
+		assertTrue(SyncRowComparator.equivalentNumbers("9.80", "9.8"));
+		assertTrue(SyncRowComparator.equivalentNumbers("1e2", "100"));
+		assertTrue(SyncRowComparator.equivalentNumbers("0.0", "-0.0"));
+		assertFalse(SyncRowComparator.equivalentNumbers("1", "2"));
+	}
+
+	public void testUlpDistance() {
+		double local = 9.8;
+		double server = local;
+		for (int i = 0; i < SyncRowComparator.MAX_ULP_DISTANCE; ++i) {
+			server = Math.nextUp(server);
+		}
+		assertTrue(SyncRowComparator.equivalentNumbers(Double.toString(local),
+				Double.toString(server)));
+		assertTrue(SyncRowComparator.equivalentNumbers(Double.toString(server),
+				Double.toString(local)));
+		assertFalse(SyncRowComparator.equivalentNumbers(Double.toString(local),
+				Double.toString(Math.nextUp(server))));
+		// across zero
+		assertTrue(SyncRowComparator.equivalentNumbers(Double.toString(Double.MIN_VALUE),
+				Double.toString(-Double.MIN_VALUE)));
+		assertFalse(SyncRowComparator.equivalentNumbers("1e308", "-1e308"));
+	}
+
+	public void testSpecialValues() {
+		assertTrue(SyncRowComparator.equivalentNumbers("NaN", "NaN"));
+		assertTrue(SyncRowComparator.equivalentNumbers("Infinity", "Infinity"));
+		assertTrue(SyncRowComparator.equivalentNumbers("-Infinity", "-Infinity"));
+		assertFalse(SyncRowComparator.equivalentNumbers("Infinity", "-Infinity"));
+		assertFalse(SyncRowComparator.equivalentNumbers("NaN", "1"));
+		assertFalse(SyncRowComparator.equivalentNumbers("Infinity", "1.7976931348623157E308"));
+	}
+}
@@ -0,0 +1,119 @@
+package org.opendatakit.sync;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.opendatakit.aggregate.odktables.rest.ConflictType;
+import org.opendatakit.aggregate.odktables.rest.SyncState;
+import org.opendatakit.common.android.provider.DataTableColumns;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+
+public class SyncRowStagingTableTest extends AndroidTestCase {
+
+	private static final String TABLE_ID = "staging_test";
+
+	private static final SyncRowLayout LAYOUT = new SyncRowLayout(Arrays.asList(new String[] {
+			"col_a" }));
+
+	private SQLiteDatabase db;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		db = SQLiteDatabase.create(null);
+		db.execSQL("CREATE TABLE " + TABLE_ID + " (" + DataTableColumns.ID + " TEXT NOT NULL, "
+				+ DataTableColumns.SYNC_STATE + " TEXT NOT NULL, " + DataTableColumns.CONFLICT_TYPE
+				+ " INTEGER NULL, col_a TEXT NULL)");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		db.close();
+		super.tearDown();
+	}
+
+	private void localRow(String rowId, SyncState state, Integer conflictType) {
+		ContentValues values = new ContentValues();
+		values.put(DataTableColumns.ID, rowId);
+		values.put(DataTableColumns.SYNC_STATE, state.name());
+		values.put(DataTableColumns.CONFLICT_TYPE, conflictType);
+		values.put("col_a", "local");
+		db.insertOrThrow(TABLE_ID, null, values);
+	}
+
+	private static SyncRow serverRow(String rowId, boolean deleted) {
+		return new SyncRow(rowId, "etag", deleted, null, null, null, null, null, null, LAYOUT,
+				new String[] { "server" });
+	}
+
+	public void testClassification() {
+		localRow("synced", SyncState.synced, null);
+		localRow("pending", SyncState.synced_pending_files, null);
+		localRow("changed", SyncState.changed, null);
+		localRow("new", SyncState.new_row, null);
+		localRow("deleted", SyncState.deleted, null);
+		localRow("deleted2", SyncState.deleted, null);
+		localRow("conflict", SyncState.in_conflict, ConflictType.LOCAL_UPDATED_UPDATED_VALUES);
+		localRow("conflict", SyncState.in_conflict, ConflictType.SERVER_UPDATED_UPDATED_VALUES);
+		localRow("ldo", SyncState.in_conflict, ConflictType.LOCAL_DELETED_OLD_VALUES);
+		localRow("ldo", SyncState.in_conflict, ConflictType.SERVER_UPDATED_UPDATED_VALUES);
+
+		SyncRow[] changes = { serverRow("synced", false), serverRow("pending", true),
+				serverRow("changed", false), serverRow("new", false), serverRow("deleted", false),
+				serverRow("deleted2", true), serverRow("conflict", false), serverRow("ldo", true),
+				serverRow("absent", false), serverRow("gone", true),
+				// superseded by the next report of the same rowId
+				serverRow("synced", true) };
+
+		Map<String, Integer> actions = new HashMap<String, Integer>();
+		Map<String, Integer> conflictTypes = new HashMap<String, Integer>();
+		db.beginTransaction();
+		SyncRowStagingTable staging = new SyncRowStagingTable(db);
+		try {
+			for (int i = 0; i < changes.length; ++i) {
+				staging.stage(i, changes[i]);
+			}
+			Cursor c = staging.classify(TABLE_ID);
+			try {
+				while (c.moveToNext()) {
+					String rowId = changes[c.getInt(c.getColumnIndex(SyncRowStagingTable.ORDINAL))]
+							.getRowId();
+					assertFalse(actions.containsKey(rowId));
+					actions.put(rowId, c.getInt(c.getColumnIndex(SyncRowStagingTable.ACTION)));
+					int idx = c.getColumnIndex(SyncRowStagingTable.LOCAL_CONFLICT_TYPE);
+					if (!c.isNull(idx)) {
+						conflictTypes.put(rowId, c.getInt(idx));
+					}
+				}
+			} finally {
+				c.close();
+			}
+			db.setTransactionSuccessful();
+		} finally {
+			staging.close();
+			db.endTransaction();
+		}
+
+		assertEquals(10, actions.size());
+		assertEquals(SyncRowStagingTable.ACTION_DELETE, (int) actions.get("synced"));
+		assertEquals(SyncRowStagingTable.ACTION_DELETE, (int) actions.get("pending"));
+		assertEquals(SyncRowStagingTable.ACTION_CONFLICT, (int) actions.get("changed"));
+		assertEquals(SyncRowStagingTable.ACTION_CONFLICT, (int) actions.get("new"));
+		assertEquals(SyncRowStagingTable.ACTION_CONFLICT, (int) actions.get("deleted"));
+		assertEquals(SyncRowStagingTable.ACTION_DELETE, (int) actions.get("deleted2"));
+		assertEquals(SyncRowStagingTable.ACTION_CONFLICT, (int) actions.get("conflict"));
+		assertEquals(SyncRowStagingTable.ACTION_DELETE, (int) actions.get("ldo"));
+		assertEquals(SyncRowStagingTable.ACTION_INSERT, (int) actions.get("absent"));
+		assertEquals(SyncRowStagingTable.ACTION_SKIP, (int) actions.get("gone"));
+
+		assertEquals(ConflictType.LOCAL_UPDATED_UPDATED_VALUES, (int) conflictTypes.get("changed"));
+		assertEquals(ConflictType.LOCAL_UPDATED_UPDATED_VALUES, (int) conflictTypes.get("new"));
+		assertEquals(ConflictType.LOCAL_DELETED_OLD_VALUES, (int) conflictTypes.get("deleted"));
+		assertEquals(ConflictType.LOCAL_UPDATED_UPDATED_VALUES, (int) conflictTypes.get("conflict"));
+	}
+}
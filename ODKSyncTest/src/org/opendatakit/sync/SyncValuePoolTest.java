@@ -0,0 +1,104 @@
+package org.opendatakit.sync;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.opendatakit.aggregate.odktables.rest.entity.Scope;
+
+import android.util.Log;
+
+public class SyncValuePoolTest extends TestCase {
+
+	private static final String TAG = "SyncValuePoolTest";
+	private static final int HEAP_ROWS = 50000;
+
+	private static final SyncRowLayout LAYOUT = new SyncRowLayout(Arrays.asList(new String[] {
+			"col_a", "col_b" }));
+
+	public void testCanonicalInstances() {
+		SyncValuePool pool = new SyncValuePool();
+		String a = new String("form");
+		String b = new String("form");
+		assertNotSame(a, b);
+		assertSame(a, pool.intern(a));
+		assertSame(a, pool.intern(b));
+		assertNull(pool.intern((String) null));
+
+		Scope s1 = Scope.asScope("USER", "mailto:a@example.com");
+		Scope s2 = Scope.asScope("USER", "mailto:a@example.com");
+		assertSame(s1, pool.intern(s1));
+		assertSame(s1, pool.intern(s2));
+		assertNull(pool.intern((Scope) null));
+	}
+
+	public void testPoolIsBounded() {
+		SyncValuePool pool = new SyncValuePool();
+		for (int i = 0; i < SyncValuePool.MAX_ENTRIES + 10; ++i) {
+			String value = "value" + i;
+			assertEquals(value, pool.intern(value));
+		}
+		assertEquals(SyncValuePool.MAX_ENTRIES, pool.getStringCount());
+		String overflow = new String("overflow");
+		assertSame(overflow, pool.intern(overflow));
+		assertEquals(SyncValuePool.MAX_ENTRIES, pool.getStringCount());
+	}
+
+	private static SyncRow row(SyncValuePool pool, int i) {
+		// new String(...) mirrors the distinct instances produced by
+		// deserialization or a cursor read.
+		String formId = new String("household_survey");
+		String locale = new String("en_US");
+		String savepointType = new String("COMPLETE");
+		String creator = new String("mailto:enumerator@example.com");
+		Scope scope = Scope.asScope(new String("DEFAULT"), null);
+		if (pool != null) {
+			formId = pool.intern(formId);
+			locale = pool.intern(locale);
+			savepointType = pool.intern(savepointType);
+			creator = pool.intern(creator);
+			scope = pool.intern(scope);
+		}
+		return new SyncRow("uuid:" + i, "etag" + i, false, formId, locale, savepointType,
+				"2014-01-01T00:00:00.000000000", creator, scope, LAYOUT, new String[] {
+						"a" + i, "b" + i });
+	}
+
+	private static long usedHeap() {
+		Runtime rt = Runtime.getRuntime();
+		for (int i = 0; i < 3; ++i) {
+			System.gc();
+			System.runFinalization();
+		}
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+	private static long retainedBytes(SyncValuePool pool) {
+		long before = usedHeap();
+		List<SyncRow> rows = new ArrayList<SyncRow>(HEAP_ROWS);
+		for (int i = 0; i < HEAP_ROWS; ++i) {
+			rows.add(row(pool, i));
+		}
+		long after = usedHeap();
+		assertEquals(HEAP_ROWS, rows.size());
+		return after - before;
+	}
+
+	/**
+	 * Logs the heap retained by a 50k-row page set with and without the pool.
+	 * GC-based measurement is approximate, so only the sharing is asserted.
+	 */
+	public void testHeapReduction() {
+		long unpooled = retainedBytes(null);
+		SyncValuePool pool = new SyncValuePool();
+		long pooled = retainedBytes(pool);
+		assertSame(row(pool, 1).getFormId(), row(pool, 2).getFormId());
+		assertSame(row(pool, 1).getFilterScope(), row(pool, 2).getFilterScope());
+
+		Log.i(TAG, HEAP_ROWS + " rows retain " + (unpooled / 1024) + " KiB without the pool and "
+				+ (pooled / 1024) + " KiB with it (" + ((unpooled - pooled) / HEAP_ROWS)
+				+ " bytes/row saved)");
+	}
+}